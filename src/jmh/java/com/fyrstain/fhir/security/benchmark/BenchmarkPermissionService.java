@@ -0,0 +1,26 @@
+package com.fyrstain.fhir.security.benchmark;
+
+import com.fyrstain.fhir.security.core.PermissionService;
+import com.fyrstain.fhir.security.core.model.PermissionContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.List;
+
+/**
+ * Permission service of the facade benchmarks, selected through
+ * {@code JavaPermissionFacade.PERMISSION_SERVICE_PROPERTY}: every user gets the Permissions built by {@link Policies},
+ * sized by the {@value #RULE_COUNT_PROPERTY} and {@value #EXPRESSION_COUNT_PROPERTY} system properties.
+ */
+public class BenchmarkPermissionService implements PermissionService {
+
+    static final String RULE_COUNT_PROPERTY = "benchmark.ruleCount";
+    static final String EXPRESSION_COUNT_PROPERTY = "benchmark.expressionCount";
+
+    private final List<IBaseResource> permissions = Policies.permissions(
+            Integer.getInteger(RULE_COUNT_PROPERTY, 10), Integer.getInteger(EXPRESSION_COUNT_PROPERTY, 1));
+
+    @Override
+    public List<IBaseResource> getPermissions(PermissionContext context) {
+        return permissions;
+    }
+}
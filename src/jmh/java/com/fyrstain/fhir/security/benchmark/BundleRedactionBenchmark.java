@@ -0,0 +1,80 @@
+package com.fyrstain.fhir.security.benchmark;
+
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.FhirResponse;
+import com.fyrstain.fhir.security.core.r4.SimpleR4PermissionEvaluator;
+import com.fyrstain.fhir.security.core.r5.SimpleR5PermissionEvaluator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redaction of searchset Bundles of Patients and Observations, for R4 and R5: with
+ * {@code FilterUtils.removeFieldsByExpression} (every expression on every entry), and with the evaluators
+ * {@code filterResponse} (expressions routed by entry type). Each invocation works on a fresh copy of the Bundle, as
+ * redaction modifies it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BundleRedactionBenchmark {
+
+    @Param({"10", "100"})
+    public int entries;
+
+    @Param({"1", "4"})
+    public int expressionCount;
+
+    private final SimpleR4PermissionEvaluator r4Evaluator = new SimpleR4PermissionEvaluator();
+    private final SimpleR5PermissionEvaluator r5Evaluator = new SimpleR5PermissionEvaluator();
+    private List<String> expressions;
+    private CompiledPolicy r4Policy;
+    private CompiledPolicy r5Policy;
+
+    private org.hl7.fhir.r4.model.Bundle r4Template;
+    private org.hl7.fhir.r5.model.Bundle r5Template;
+    private org.hl7.fhir.r4.model.Bundle r4Bundle;
+    private org.hl7.fhir.r5.model.Bundle r5Bundle;
+
+    @Setup(Level.Trial)
+    public void setUpTemplates() {
+        // A Patient and an Observation group of rules, redacting the same expressions
+        expressions = Policies.expressions(expressionCount);
+        r4Policy = new CompiledPolicy(r4Evaluator.compileRules(Policies.permissions(8, expressionCount)));
+        r5Policy = new CompiledPolicy(r5Evaluator.compileRules(Policies.permissions(8, expressionCount)));
+        r4Template = LargeResources.r4Searchset(entries, 10);
+        r5Template = LargeResources.r5Searchset(entries, 10);
+    }
+
+    @Setup(Level.Invocation)
+    public void copyBundles() {
+        r4Bundle = r4Template.copy();
+        r5Bundle = r5Template.copy();
+    }
+
+    @Benchmark
+    public Object r4RemoveFields() {
+        com.fyrstain.fhir.security.core.r4.FilterUtils.removeFieldsByExpression(r4Bundle, expressions);
+        return r4Bundle;
+    }
+
+    @Benchmark
+    public Object r5RemoveFields() {
+        com.fyrstain.fhir.security.core.r5.FilterUtils.removeFieldsByExpression(r5Bundle, expressions);
+        return r5Bundle;
+    }
+
+    @Benchmark
+    public Object r4FilterResponse() {
+        return r4Evaluator.filterResponse(new FhirResponse().setResource(r4Bundle), r4Policy);
+    }
+
+    @Benchmark
+    public Object r5FilterResponse() {
+        return r5Evaluator.filterResponse(new FhirResponse().setResource(r5Bundle), r5Policy);
+    }
+}
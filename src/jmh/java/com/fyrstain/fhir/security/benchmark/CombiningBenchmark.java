@@ -0,0 +1,84 @@
+package com.fyrstain.fhir.security.benchmark;
+
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.PermissionOperation;
+import com.fyrstain.fhir.security.core.model.PermissionRule;
+import com.fyrstain.fhir.security.core.r4.SimpleR4PermissionEvaluator;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r5.model.Enumerations;
+import org.hl7.fhir.r5.model.Permission;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@code Permission.combining}: deciding operations with the compiled policy and with the plain rule list, and
+ * building the decision table, for Permissions combined with deny-overrides or permit-overrides. Each Permission built
+ * by {@link Policies} gets an extra rule denying every operation on every type, which its own permits override under
+ * permit-overrides.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CombiningBenchmark {
+
+    private static final PermissionOperation[] OPERATIONS = {
+            PermissionOperation.READ, PermissionOperation.SEARCH, PermissionOperation.CREATE, PermissionOperation.DELETE};
+
+    @Param({"100", "500"})
+    public int ruleCount;
+
+    @Param({"DENYOVERRIDES", "PERMITOVERRIDES"})
+    public Permission.PermissionRuleCombining combining;
+
+    private final SimpleR4PermissionEvaluator evaluator = new SimpleR4PermissionEvaluator();
+    private List<PermissionRule> rules;
+    private CompiledPolicy policy;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<IBaseResource> permissions = Policies.permissions(ruleCount, 2);
+        for (IBaseResource resource : permissions) {
+            Permission permission = (Permission) resource;
+            permission.setCombining(combining);
+            Permission.RuleComponent denyAll = permission.addRule().setType(Enumerations.ConsentProvisionType.DENY);
+            denyAll.addData().addResource()
+                    .setMeaning(Enumerations.ConsentDataMeaning.INSTANCE)
+                    .getReference().setDisplay("*");
+            Permission.RuleActivityComponent activity = denyAll.addActivity();
+            for (PermissionOperation op : OPERATIONS) {
+                activity.addAction().addCoding().setCode(op.name().toLowerCase());
+            }
+        }
+        rules = evaluator.compileRules(permissions);
+        policy = new CompiledPolicy(rules);
+    }
+
+    @Benchmark
+    public CompiledPolicy compilePolicy() {
+        return new CompiledPolicy(rules);
+    }
+
+    @Benchmark
+    public void canPerform(Blackhole blackhole) {
+        for (String resourceType : Policies.RESOURCE_TYPES) {
+            for (PermissionOperation op : OPERATIONS) {
+                blackhole.consume(policy.canPerform(resourceType, op));
+            }
+        }
+    }
+
+    @Benchmark
+    public void canPerformRules(Blackhole blackhole) {
+        for (String resourceType : Policies.RESOURCE_TYPES) {
+            for (PermissionOperation op : OPERATIONS) {
+                blackhole.consume(evaluator.canPerform(resourceType, op, rules));
+            }
+        }
+    }
+}
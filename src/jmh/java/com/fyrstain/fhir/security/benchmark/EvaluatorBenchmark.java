@@ -0,0 +1,104 @@
+package com.fyrstain.fhir.security.benchmark;
+
+import com.fyrstain.fhir.security.core.cache.PermissionFragmentCache;
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.PermissionOperation;
+import com.fyrstain.fhir.security.core.model.PermissionRule;
+import com.fyrstain.fhir.security.core.r4.SimpleR4PermissionEvaluator;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per request work of {@code SimplePermissionEvaluator}: compiling the Permissions of a user (without and with the
+ * fragment cache, and into a {@link CompiledPolicy}), deciding operations and rewriting search parameters, with the
+ * compiled policy and with the plain rule list. Permissions are built by {@link Policies}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvaluatorBenchmark {
+
+    private static final PermissionOperation[] OPERATIONS = {
+            PermissionOperation.READ, PermissionOperation.SEARCH, PermissionOperation.CREATE, PermissionOperation.DELETE};
+
+    @Param({"10", "100", "1000"})
+    public int ruleCount;
+
+    @Param({"1", "4"})
+    public int expressionCount;
+
+    private final SimpleR4PermissionEvaluator evaluator = new SimpleR4PermissionEvaluator();
+    private final SimpleR4PermissionEvaluator uncachedEvaluator = new SimpleR4PermissionEvaluator(new PermissionFragmentCache(0));
+    private List<IBaseResource> permissions;
+    private List<PermissionRule> rules;
+    private CompiledPolicy policy;
+    private Map<String, List<String>> searchParameters;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        permissions = Policies.permissions(ruleCount, expressionCount);
+        rules = evaluator.compileRules(permissions);
+        policy = new CompiledPolicy(rules);
+        searchParameters = new LinkedHashMap<>();
+        searchParameters.put("name", List.of("Doe"));
+        searchParameters.put("_count", List.of("50"));
+    }
+
+    /**
+     * Compiles every Permission, parsing blacklist expressions, as on a policy cache miss for unknown Permissions.
+     */
+    @Benchmark
+    public List<PermissionRule> compileRules() {
+        return uncachedEvaluator.compileRules(permissions);
+    }
+
+    /**
+     * Compiles Permissions already seen by the evaluator, as on a policy cache miss for a user sharing them.
+     */
+    @Benchmark
+    public List<PermissionRule> compileRulesCached() {
+        return evaluator.compileRules(permissions);
+    }
+
+    @Benchmark
+    public CompiledPolicy compilePolicy() {
+        return new CompiledPolicy(evaluator.compileRules(permissions));
+    }
+
+    @Benchmark
+    public void canPerform(Blackhole blackhole) {
+        for (String resourceType : Policies.RESOURCE_TYPES) {
+            for (PermissionOperation op : OPERATIONS) {
+                blackhole.consume(policy.canPerform(resourceType, op));
+            }
+        }
+    }
+
+    @Benchmark
+    public void canPerformRules(Blackhole blackhole) {
+        for (String resourceType : Policies.RESOURCE_TYPES) {
+            for (PermissionOperation op : OPERATIONS) {
+                blackhole.consume(evaluator.canPerform(resourceType, op, rules));
+            }
+        }
+    }
+
+    @Benchmark
+    public Map<String, List<String>> updateSearchParameters() {
+        return evaluator.updateSearchParameters("Patient", searchParameters, policy);
+    }
+
+    @Benchmark
+    public Map<String, List<String>> updateSearchParametersRules() {
+        return evaluator.updateSearchParameters("Patient", searchParameters, rules);
+    }
+}
@@ -0,0 +1,73 @@
+package com.fyrstain.fhir.security.benchmark;
+
+import com.fyrstain.fhir.security.adapter.iris.JavaPermissionFacade;
+import org.hl7.fhir.r4.formats.JsonParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls of the IRIS facade, strings in and out: evaluating one request, a batch of requests, and redacting a searchset
+ * Bundle response. The facade is configured once per fork with a {@link BenchmarkPermissionService}, so each
+ * parameter combination must run in its own fork. Policies are cached per user, as in production.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FacadeBenchmark {
+
+    private static final String USER_ID = "benchmark-user";
+
+    @Param({"10", "1000"})
+    public int ruleCount;
+
+    @Param({"1", "4"})
+    public int expressionCount;
+
+    @Param({"10", "100"})
+    public int entries;
+
+    private JavaPermissionFacade facade;
+    private String requests;
+    private String response;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // Before the facade is initialized
+        System.setProperty(JavaPermissionFacade.PERMISSION_SERVICE_PROPERTY, BenchmarkPermissionService.class.getName());
+        System.setProperty(BenchmarkPermissionService.RULE_COUNT_PROPERTY, String.valueOf(ruleCount));
+        System.setProperty(BenchmarkPermissionService.EXPRESSION_COUNT_PROPERTY, String.valueOf(expressionCount));
+        facade = new JavaPermissionFacade();
+
+        StringBuilder batch = new StringBuilder();
+        for (int i = 0; i < entries; i++) {
+            batch.append("{\"httpVerb\":\"GET\",\"resourceType\":\"")
+                    .append(Policies.RESOURCE_TYPES[i % Policies.RESOURCE_TYPES.length])
+                    .append("\",\"searchParameters\":\"_count=50\"}\n");
+        }
+        requests = batch.toString();
+        response = new JsonParser().composeString(LargeResources.r4Searchset(entries, 10));
+    }
+
+    @Benchmark
+    public String evaluateRequest() throws Throwable {
+        return JavaPermissionFacade.evaluateRequest(USER_ID, null, "GET", "Patient", null, null, "name=Doe&_count=50", null);
+    }
+
+    /**
+     * One request per entry, over all resource types.
+     */
+    @Benchmark
+    public String evaluateRequests() throws Throwable {
+        return JavaPermissionFacade.evaluateRequests(USER_ID, null, requests);
+    }
+
+    @Benchmark
+    public String filterResponse() throws Throwable {
+        return facade.filterResponse(USER_ID, null, "200", response);
+    }
+}
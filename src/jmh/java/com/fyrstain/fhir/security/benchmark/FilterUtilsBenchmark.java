@@ -0,0 +1,82 @@
+package com.fyrstain.fhir.security.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redaction of large Patient and Observation resources with {@code FilterUtils.removeFieldsByExpression}, for R4 and
+ * R5. Each invocation works on a fresh copy of the resource, as redaction modifies it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FilterUtilsBenchmark {
+
+    static final List<String> PATIENT_EXPRESSIONS = List.of(
+            "Patient.telecom.where(system='email')",
+            "Patient.address.line",
+            "Patient.contact.telecom",
+            "Patient.name.given");
+
+    static final List<String> OBSERVATION_EXPRESSIONS = List.of(
+            "Observation.component.value",
+            "Observation.note");
+
+    @Param({"20", "200"})
+    public int size;
+
+    private org.hl7.fhir.r4.model.Patient r4PatientTemplate;
+    private org.hl7.fhir.r4.model.Observation r4ObservationTemplate;
+    private org.hl7.fhir.r5.model.Patient r5PatientTemplate;
+    private org.hl7.fhir.r5.model.Observation r5ObservationTemplate;
+
+    private org.hl7.fhir.r4.model.Patient r4Patient;
+    private org.hl7.fhir.r4.model.Observation r4Observation;
+    private org.hl7.fhir.r5.model.Patient r5Patient;
+    private org.hl7.fhir.r5.model.Observation r5Observation;
+
+    @Setup(Level.Trial)
+    public void setUpTemplates() {
+        r4PatientTemplate = LargeResources.r4Patient(size);
+        r4ObservationTemplate = LargeResources.r4Observation(size);
+        r5PatientTemplate = LargeResources.r5Patient(size);
+        r5ObservationTemplate = LargeResources.r5Observation(size);
+    }
+
+    @Setup(Level.Invocation)
+    public void copyResources() {
+        r4Patient = r4PatientTemplate.copy();
+        r4Observation = r4ObservationTemplate.copy();
+        r5Patient = r5PatientTemplate.copy();
+        r5Observation = r5ObservationTemplate.copy();
+    }
+
+    @Benchmark
+    public Object r4Patient() {
+        com.fyrstain.fhir.security.core.r4.FilterUtils.removeFieldsByExpression(r4Patient, PATIENT_EXPRESSIONS);
+        return r4Patient;
+    }
+
+    @Benchmark
+    public Object r4Observation() {
+        com.fyrstain.fhir.security.core.r4.FilterUtils.removeFieldsByExpression(r4Observation, OBSERVATION_EXPRESSIONS);
+        return r4Observation;
+    }
+
+    @Benchmark
+    public Object r5Patient() {
+        com.fyrstain.fhir.security.core.r5.FilterUtils.removeFieldsByExpression(r5Patient, PATIENT_EXPRESSIONS);
+        return r5Patient;
+    }
+
+    @Benchmark
+    public Object r5Observation() {
+        com.fyrstain.fhir.security.core.r5.FilterUtils.removeFieldsByExpression(r5Observation, OBSERVATION_EXPRESSIONS);
+        return r5Observation;
+    }
+}
@@ -0,0 +1,57 @@
+package com.fyrstain.fhir.security.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import com.fyrstain.fhir.security.adapter.iris.JsonCodec;
+import org.hl7.fhir.r4.formats.IParser;
+import org.hl7.fhir.r4.formats.JsonParser;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and serializing an R4 searchset Bundle as the IRIS facade does: a new pretty printing parser per call (the
+ * former implementation) against the reusable {@link JsonCodec}s. Run with {@code -prof gc} for bytes per call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonCodecBenchmark {
+
+    @Param({"1", "50"})
+    public int entries;
+
+    private final JsonCodec core = JsonCodec.core(false);
+    private final JsonCodec hapi = JsonCodec.hapi(FhirContext.forCached(FhirVersionEnum.R4), false);
+    private String json;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        json = new JsonParser().composeString(LargeResources.r4Searchset(entries, 20));
+    }
+
+    @Benchmark
+    public String legacy() throws Exception {
+        Resource resource = new JsonParser().parse(json);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new JsonParser().setOutputStyle(IParser.OutputStyle.PRETTY).compose(os, resource);
+        os.close();
+        return os.toString();
+    }
+
+    @Benchmark
+    public String core() throws Exception {
+        return core.encode(core.parse(json));
+    }
+
+    @Benchmark
+    public String hapi() throws Exception {
+        return hapi.encode(hapi.parse(json));
+    }
+}
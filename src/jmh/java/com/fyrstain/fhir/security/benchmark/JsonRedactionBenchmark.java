@@ -0,0 +1,80 @@
+package com.fyrstain.fhir.security.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import com.fyrstain.fhir.security.core.StreamingJsonRedactor;
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.FhirResponse;
+import com.fyrstain.fhir.security.core.model.PermissionOperation;
+import com.fyrstain.fhir.security.core.model.PermissionRule;
+import com.fyrstain.fhir.security.core.r4.FilterUtils;
+import com.fyrstain.fhir.security.core.r4.SimpleR4PermissionEvaluator;
+import org.hl7.fhir.r4.formats.JsonParser;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redaction of an R4 searchset Bundle given as JSON, as done by the IRIS facade: parsing into the resource model,
+ * {@code FilterUtils} and serializing back (with all expressions on every entry, or routed by type), against
+ * {@link StreamingJsonRedactor}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonRedactionBenchmark {
+
+    static final List<String> EXPRESSIONS = List.of(
+            "Patient.telecom",
+            "Patient.address.line",
+            "Patient.contact.telecom",
+            "Observation.component.value",
+            "Observation.note");
+
+    static final CompiledPolicy POLICY = new CompiledPolicy(List.of(
+            new PermissionRule("Patient", EnumSet.of(PermissionOperation.SEARCH), false,
+                    List.of("Patient.telecom", "Patient.address.line", "Patient.contact.telecom"), List.of()),
+            new PermissionRule("Observation", EnumSet.of(PermissionOperation.SEARCH), false,
+                    List.of("Observation.component.value", "Observation.note"), List.of())));
+
+    @Param({"10", "100"})
+    public int entries;
+
+    private final StreamingJsonRedactor redactor = new StreamingJsonRedactor(FhirContext.forCached(FhirVersionEnum.R4));
+    private final SimpleR4PermissionEvaluator evaluator = new SimpleR4PermissionEvaluator();
+    private String json;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        json = new JsonParser().composeString(LargeResources.r4Searchset(entries, 20));
+    }
+
+    @Benchmark
+    public String model() throws IOException {
+        Resource resource = new JsonParser().parse(json);
+        FilterUtils.removeFieldsByExpression(resource, EXPRESSIONS);
+        return new JsonParser().composeString(resource);
+    }
+
+    /**
+     * Same as {@link #model()}, each entry only being evaluated against the expressions of its own type.
+     */
+    @Benchmark
+    public String modelByType() throws IOException {
+        Resource resource = new JsonParser().parse(json);
+        evaluator.filterResponse(new FhirResponse().setResource(resource), POLICY);
+        return new JsonParser().composeString(resource);
+    }
+
+    @Benchmark
+    public String streaming() {
+        return redactor.redact(json, EXPRESSIONS);
+    }
+}
@@ -0,0 +1,93 @@
+package com.fyrstain.fhir.security.benchmark;
+
+/**
+ * Builds large resources for benchmarks: a Patient with many names, telecoms, addresses and contacts, and an
+ * Observation with many components and notes, and searchset Bundles of them.
+ */
+final class LargeResources {
+
+    private LargeResources() {
+    }
+
+    static org.hl7.fhir.r4.model.Patient r4Patient(int size) {
+        org.hl7.fhir.r4.model.Patient patient = new org.hl7.fhir.r4.model.Patient();
+        patient.setId("Patient/large");
+        for (int i = 0; i < size; i++) {
+            patient.addIdentifier().setSystem("urn:system:" + (i % 5)).setValue("id-" + i);
+            patient.addName().setFamily("Family" + i).addGiven("Given" + i).addGiven("Middle" + i);
+            patient.addTelecom()
+                    .setSystem(i % 2 == 0 ? org.hl7.fhir.r4.model.ContactPoint.ContactPointSystem.EMAIL : org.hl7.fhir.r4.model.ContactPoint.ContactPointSystem.PHONE)
+                    .setValue(i % 2 == 0 ? "mail" + i + "@example.org" : "0600" + i);
+            patient.addAddress().addLine(i + " main street").addLine("Building " + i).setCity("City" + (i % 10));
+            patient.addContact().setName(new org.hl7.fhir.r4.model.HumanName().setFamily("Contact" + i)).addTelecom().setValue("0700" + i);
+        }
+        return patient;
+    }
+
+    static org.hl7.fhir.r4.model.Bundle r4Searchset(int entries, int size) {
+        org.hl7.fhir.r4.model.Bundle bundle = new org.hl7.fhir.r4.model.Bundle();
+        bundle.setType(org.hl7.fhir.r4.model.Bundle.BundleType.SEARCHSET);
+        bundle.setTotal(entries);
+        for (int i = 0; i < entries; i++) {
+            org.hl7.fhir.r4.model.Resource resource = i % 2 == 0 ? r4Patient(size) : r4Observation(size);
+            resource.setId(resource.fhirType() + "/" + i);
+            bundle.addEntry().setFullUrl(resource.getId()).setResource(resource);
+        }
+        return bundle;
+    }
+
+    static org.hl7.fhir.r4.model.Observation r4Observation(int size) {
+        org.hl7.fhir.r4.model.Observation observation = new org.hl7.fhir.r4.model.Observation();
+        observation.setId("Observation/large");
+        observation.setStatus(org.hl7.fhir.r4.model.Observation.ObservationStatus.FINAL);
+        observation.getCode().addCoding().setSystem("http://loinc.org").setCode("85354-9");
+        for (int i = 0; i < size; i++) {
+            org.hl7.fhir.r4.model.Observation.ObservationComponentComponent component = observation.addComponent();
+            component.getCode().addCoding().setSystem("http://loinc.org").setCode("code-" + i);
+            component.setValue(new org.hl7.fhir.r4.model.Quantity().setValue(i).setUnit("mmHg"));
+            observation.addNote().setText("Note " + i);
+        }
+        return observation;
+    }
+
+    static org.hl7.fhir.r5.model.Patient r5Patient(int size) {
+        org.hl7.fhir.r5.model.Patient patient = new org.hl7.fhir.r5.model.Patient();
+        patient.setId("Patient/large");
+        for (int i = 0; i < size; i++) {
+            patient.addIdentifier().setSystem("urn:system:" + (i % 5)).setValue("id-" + i);
+            patient.addName().setFamily("Family" + i).addGiven("Given" + i).addGiven("Middle" + i);
+            patient.addTelecom()
+                    .setSystem(i % 2 == 0 ? org.hl7.fhir.r5.model.ContactPoint.ContactPointSystem.EMAIL : org.hl7.fhir.r5.model.ContactPoint.ContactPointSystem.PHONE)
+                    .setValue(i % 2 == 0 ? "mail" + i + "@example.org" : "0600" + i);
+            patient.addAddress().addLine(i + " main street").addLine("Building " + i).setCity("City" + (i % 10));
+            patient.addContact().setName(new org.hl7.fhir.r5.model.HumanName().setFamily("Contact" + i)).addTelecom().setValue("0700" + i);
+        }
+        return patient;
+    }
+
+    static org.hl7.fhir.r5.model.Bundle r5Searchset(int entries, int size) {
+        org.hl7.fhir.r5.model.Bundle bundle = new org.hl7.fhir.r5.model.Bundle();
+        bundle.setType(org.hl7.fhir.r5.model.Bundle.BundleType.SEARCHSET);
+        bundle.setTotal(entries);
+        for (int i = 0; i < entries; i++) {
+            org.hl7.fhir.r5.model.Resource resource = i % 2 == 0 ? r5Patient(size) : r5Observation(size);
+            resource.setId(resource.fhirType() + "/" + i);
+            bundle.addEntry().setFullUrl(resource.getId()).setResource(resource);
+        }
+        return bundle;
+    }
+
+    static org.hl7.fhir.r5.model.Observation r5Observation(int size) {
+        org.hl7.fhir.r5.model.Observation observation = new org.hl7.fhir.r5.model.Observation();
+        observation.setId("Observation/large");
+        observation.setStatus(org.hl7.fhir.r5.model.Enumerations.ObservationStatus.FINAL);
+        observation.getCode().addCoding().setSystem("http://loinc.org").setCode("85354-9");
+        for (int i = 0; i < size; i++) {
+            org.hl7.fhir.r5.model.Observation.ObservationComponentComponent component = observation.addComponent();
+            component.getCode().addCoding().setSystem("http://loinc.org").setCode("code-" + i);
+            component.setValue(new org.hl7.fhir.r5.model.Quantity().setValue(i).setUnit("mmHg"));
+            observation.addNote().setText("Note " + i);
+        }
+        return observation;
+    }
+}
@@ -0,0 +1,134 @@
+package com.fyrstain.fhir.security.benchmark;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r5.model.Enumerations;
+import org.hl7.fhir.r5.model.Permission;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds R5 Permission resources for benchmarks, with a given number of rules and of blacklist expressions per
+ * redaction rule.
+ * <p>
+ * Rules come in groups of four on the same resource type: a permit on read and search with a search expression, a
+ * plain permit on read and search, a deny on delete, and a redaction rule (deny without activity) with blacklist
+ * expressions on Patient or Observation. Groups cycle over {@link #RESOURCE_TYPES}, and Permissions hold
+ * {@link #RULES_PER_PERMISSION} rules each.
+ */
+final class Policies {
+
+    static final int RULES_PER_PERMISSION = 10;
+
+    static final String[] RESOURCE_TYPES = {
+            "Patient", "Observation", "Encounter", "Condition", "Practitioner",
+            "Organization", "MedicationRequest", "Procedure", "DiagnosticReport", "AllergyIntolerance"};
+
+    /**
+     * Simple paths only, so that redaction of JSON responses stays on the streaming path.
+     */
+    static final List<String> PATIENT_EXPRESSIONS = List.of(
+            "Patient.telecom",
+            "Patient.address.line",
+            "Patient.contact.telecom",
+            "Patient.name.given",
+            "Patient.identifier.value",
+            "Patient.birthDate",
+            "Patient.photo",
+            "Patient.communication");
+
+    static final List<String> OBSERVATION_EXPRESSIONS = List.of(
+            "Observation.note",
+            "Observation.component.value",
+            "Observation.value",
+            "Observation.interpretation",
+            "Observation.performer",
+            "Observation.method",
+            "Observation.referenceRange",
+            "Observation.bodySite");
+
+    private Policies() {
+    }
+
+    /**
+     * @param ruleCount       the total number of rules
+     * @param expressionCount the number of blacklist expressions of each redaction rule, at most 8
+     * @return the active, versioned Permissions
+     */
+    static List<IBaseResource> permissions(int ruleCount, int expressionCount) {
+        return permissions("bench", ruleCount, expressionCount);
+    }
+
+    /**
+     * Same as {@link #permissions(int, int)}, with Permission ids and search expressions specific to the prefix, so
+     * that Permissions of different prefixes compile to different rules.
+     */
+    static List<IBaseResource> permissions(String prefix, int ruleCount, int expressionCount) {
+        List<IBaseResource> permissions = new ArrayList<>();
+        Permission permission = null;
+        for (int i = 0; i < ruleCount; i++) {
+            if (i % RULES_PER_PERMISSION == 0) {
+                permission = new Permission();
+                permission.setId("Permission/" + prefix + "-" + i / RULES_PER_PERMISSION);
+                permission.getMeta().setVersionId("1");
+                permission.setStatus(Permission.PermissionStatus.ACTIVE);
+                permissions.add(permission);
+            }
+
+            int group = i / 4;
+            String resourceType = RESOURCE_TYPES[group % RESOURCE_TYPES.length];
+            Permission.RuleComponent rule = permission.addRule();
+            switch (i % 4) {
+                case 0:
+                    rule.setType(Enumerations.ConsentProvisionType.PERMIT);
+                    addData(rule, resourceType, "application/x-fhir-query", "_tag=" + prefix + "-group-" + group);
+                    addActivity(rule, "read", "search");
+                    break;
+                case 1:
+                    rule.setType(Enumerations.ConsentProvisionType.PERMIT);
+                    addData(rule, resourceType, null, null);
+                    addActivity(rule, "read", "search");
+                    break;
+                case 2:
+                    rule.setType(Enumerations.ConsentProvisionType.DENY);
+                    addData(rule, resourceType, null, null);
+                    addActivity(rule, "delete");
+                    break;
+                default:
+                    String redactedType = group % 2 == 0 ? "Patient" : "Observation";
+                    List<String> pool = group % 2 == 0 ? PATIENT_EXPRESSIONS : OBSERVATION_EXPRESSIONS;
+                    rule.setType(Enumerations.ConsentProvisionType.DENY);
+                    for (int e = 0; e < expressionCount; e++) {
+                        addData(rule, redactedType, "text/fhirpath", pool.get((group / 2 + e) % pool.size()));
+                    }
+            }
+        }
+        return permissions;
+    }
+
+    /**
+     * @return the expressions of the redaction rules of the first Patient and Observation groups
+     */
+    static List<String> expressions(int expressionCount) {
+        List<String> expressions = new ArrayList<>(PATIENT_EXPRESSIONS.subList(0, expressionCount));
+        expressions.addAll(OBSERVATION_EXPRESSIONS.subList(0, expressionCount));
+        return expressions;
+    }
+
+    private static void addData(Permission.RuleComponent rule, String resourceType, String language, String expression) {
+        Permission.RuleDataComponent data = rule.addData();
+        Permission.RuleDataResourceComponent resource = data.addResource();
+        resource.setMeaning(Enumerations.ConsentDataMeaning.INSTANCE);
+        resource.getReference().setDisplay(resourceType);
+        if (expression != null) {
+            data.getExpression().setLanguage(language).setExpression(expression);
+        }
+    }
+
+    private static void addActivity(Permission.RuleComponent rule, String... actions) {
+        Permission.RuleActivityComponent activity = rule.addActivity();
+        for (String action : actions) {
+            activity.addAction().addCoding().setCode(action);
+        }
+    }
+}
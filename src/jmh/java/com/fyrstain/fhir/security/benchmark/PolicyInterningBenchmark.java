@@ -0,0 +1,96 @@
+package com.fyrstain.fhir.security.benchmark;
+
+import com.fyrstain.fhir.security.core.cache.PermissionContextKey;
+import com.fyrstain.fhir.security.core.cache.PolicyInterner;
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.PermissionContext;
+import com.fyrstain.fhir.security.core.r4.SimpleR4PermissionEvaluator;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap retained by the compiled policies of many users sharing a few roles, with and without {@link PolicyInterner}.
+ * Each user has the Permissions common to all users ({@code ruleCount} rules) and those of one of {@code roleCount}
+ * roles (10 rules each). The time is that of compiling every policy; the {@code retainedKilobytes} secondary result is
+ * the heap still used once the policies are compiled and the garbage collected, rules included (these are shared
+ * either way through the fragment cache of the evaluator). JMH sums secondary results over the measurement
+ * iterations, the value of each iteration is printed with it.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class PolicyInterningBenchmark {
+
+    @Param({"100000"})
+    public int users;
+
+    @Param({"50"})
+    public int roleCount;
+
+    @Param({"10", "100"})
+    public int ruleCount;
+
+    @Param({"false", "true"})
+    public boolean interning;
+
+    private List<PermissionContext> contexts;
+    private List<List<IBaseResource>> permissions;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+        public long retainedKilobytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            retainedKilobytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<IBaseResource> common = Policies.permissions(ruleCount, 2);
+        permissions = new ArrayList<>(roleCount);
+        for (int role = 0; role < roleCount; role++) {
+            List<IBaseResource> rolePermissions = new ArrayList<>(common);
+            rolePermissions.addAll(Policies.permissions("role-" + role, Policies.RULES_PER_PERMISSION, 2));
+            permissions.add(rolePermissions);
+        }
+        contexts = new ArrayList<>(users);
+        for (int user = 0; user < users; user++) {
+            contexts.add(new PermissionContext("user-" + user, null, null, Set.of("role-" + user % roleCount), "org"));
+        }
+    }
+
+    @Benchmark
+    public Map<PermissionContextKey, CompiledPolicy> compileAll(Heap heap) {
+        long before = usedHeap();
+        SimpleR4PermissionEvaluator evaluator = new SimpleR4PermissionEvaluator();
+        PolicyInterner interner = new PolicyInterner();
+        Map<PermissionContextKey, CompiledPolicy> policies = new HashMap<>(users * 2);
+        for (int user = 0; user < users; user++) {
+            CompiledPolicy policy = evaluator.compilePolicy(permissions.get(user % roleCount));
+            policies.put(PermissionContextKey.of(contexts.get(user)), interning ? interner.intern(policy) : policy);
+        }
+        heap.retainedKilobytes = (usedHeap() - before) / 1024;
+        return policies;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
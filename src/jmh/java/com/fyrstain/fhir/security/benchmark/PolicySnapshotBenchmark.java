@@ -0,0 +1,105 @@
+package com.fyrstain.fhir.security.benchmark;
+
+import com.fyrstain.fhir.security.core.cache.PermissionContextKey;
+import com.fyrstain.fhir.security.core.cache.PolicyCache;
+import com.fyrstain.fhir.security.core.cache.PolicySnapshot;
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.PermissionContext;
+import com.fyrstain.fhir.security.core.r4.SimpleR4PermissionEvaluator;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup of a policy cache for many users: compiling the Permissions of every user with a new evaluator, as after a
+ * cold start, against reading a {@link PolicySnapshot} written from the same cache. Each user has the Permissions
+ * common to all users ({@code ruleCount} rules) and those of one of {@code roleCount} roles (10 rules each).
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PolicySnapshotBenchmark {
+
+    private static final String VERSION = "benchmark";
+
+    @Param({"10000"})
+    public int users;
+
+    @Param({"100"})
+    public int roleCount;
+
+    @Param({"10", "100"})
+    public int ruleCount;
+
+    private List<PermissionContext> contexts;
+    private List<List<IBaseResource>> permissions;
+    private Path snapshot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        List<IBaseResource> common = Policies.permissions(ruleCount, 2);
+        permissions = new ArrayList<>(roleCount);
+        for (int role = 0; role < roleCount; role++) {
+            List<IBaseResource> rolePermissions = new ArrayList<>(common);
+            rolePermissions.addAll(Policies.permissions("role-" + role, Policies.RULES_PER_PERMISSION, 2));
+            permissions.add(rolePermissions);
+        }
+        contexts = new ArrayList<>(users);
+        for (int user = 0; user < users; user++) {
+            contexts.add(new PermissionContext("user-" + user, null, null, Set.of("role-" + user % roleCount), "org"));
+        }
+
+        snapshot = Files.createTempFile("policies", ".bin");
+        PolicySnapshot.write(snapshot, VERSION, coldCompile().entries());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(snapshot);
+    }
+
+    /**
+     * Compiles the policy of every user, compiled Permissions being shared through the fragment cache.
+     */
+    @Benchmark
+    public PolicyCache coldCompile() {
+        SimpleR4PermissionEvaluator evaluator = new SimpleR4PermissionEvaluator();
+        PolicyCache cache = cache();
+        for (int user = 0; user < users; user++) {
+            List<IBaseResource> userPermissions = permissions.get(user % roleCount);
+            cache.get(contexts.get(user), context -> evaluator.compilePolicy(userPermissions));
+        }
+        return cache;
+    }
+
+    /**
+     * Reads the snapshot and fills the cache with it, parsing blacklist expressions once per distinct rule.
+     */
+    @Benchmark
+    public PolicyCache snapshotLoad() {
+        SimpleR4PermissionEvaluator evaluator = new SimpleR4PermissionEvaluator();
+        Map<PermissionContextKey, CompiledPolicy> policies = PolicySnapshot.read(snapshot, VERSION, evaluator::parseExpressions);
+        if (policies == null || policies.size() != users) {
+            throw new IllegalStateException("Snapshot not read");
+        }
+        PolicyCache cache = cache();
+        cache.preload(policies);
+        return cache;
+    }
+
+    private static PolicyCache cache() {
+        return new PolicyCache(Long.MAX_VALUE, Duration.ofHours(1));
+    }
+}
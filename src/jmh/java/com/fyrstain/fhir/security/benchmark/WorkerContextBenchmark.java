@@ -0,0 +1,45 @@
+package com.fyrstain.fhir.security.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the first FHIRPath parse in a new JVM, which builds the shared worker context of the FHIR version unless
+ * {@code FhirPathEngines.warmUp()} already did during setup (standing for the startup of the server). Each fork
+ * measures a single parse, so the number of forks is the sample size.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(3)
+@State(Scope.Benchmark)
+public class WorkerContextBenchmark {
+
+    private static final String EXPRESSION = "Patient.name.given";
+
+    @Param({"R4", "R5"})
+    public String version;
+
+    @Param({"false", "true"})
+    public boolean warmUp;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (warmUp) {
+            if ("R4".equals(version)) {
+                com.fyrstain.fhir.security.core.r4.FhirPathEngines.warmUp().join();
+            } else {
+                com.fyrstain.fhir.security.core.r5.FhirPathEngines.warmUp().join();
+            }
+        }
+    }
+
+    @Benchmark
+    public Object firstParse() {
+        return "R4".equals(version)
+                ? com.fyrstain.fhir.security.core.r4.FilterUtils.parse(EXPRESSION)
+                : com.fyrstain.fhir.security.core.r5.FilterUtils.parse(EXPRESSION);
+    }
+}
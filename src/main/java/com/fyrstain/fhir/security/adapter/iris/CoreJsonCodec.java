@@ -0,0 +1,34 @@
+package com.fyrstain.fhir.security.adapter.iris;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.formats.IParser;
+import org.hl7.fhir.r4.formats.JsonParser;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * {@link JsonCodec} on the {@code org.hl7.fhir.r4.formats} parser. The parser keeps state while working, so each
+ * thread gets its own.
+ */
+class CoreJsonCodec implements JsonCodec {
+
+    private final ThreadLocal<JsonParser> parsers;
+
+    CoreJsonCodec(boolean pretty) {
+        IParser.OutputStyle style = pretty ? IParser.OutputStyle.PRETTY : IParser.OutputStyle.NORMAL;
+        this.parsers = ThreadLocal.withInitial(() -> {
+            JsonParser parser = new JsonParser();
+            parser.setOutputStyle(style);
+            return parser;
+        });
+    }
+
+    @Override
+    public IBaseResource parse(String json) throws Exception {
+        return parsers.get().parse(json);
+    }
+
+    @Override
+    public String encode(IBaseResource resource) throws Exception {
+        return parsers.get().composeString((Resource) resource);
+    }
+}
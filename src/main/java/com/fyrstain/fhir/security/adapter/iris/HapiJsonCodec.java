@@ -0,0 +1,28 @@
+package com.fyrstain.fhir.security.adapter.iris;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * {@link JsonCodec} on the HAPI JSON parser of a {@link FhirContext}. HAPI parsers are not thread-safe, so each thread
+ * gets its own.
+ */
+class HapiJsonCodec implements JsonCodec {
+
+    private final ThreadLocal<IParser> parsers;
+
+    HapiJsonCodec(FhirContext context, boolean pretty) {
+        this.parsers = ThreadLocal.withInitial(() -> context.newJsonParser().setPrettyPrint(pretty));
+    }
+
+    @Override
+    public IBaseResource parse(String json) {
+        return parsers.get().parseResource(json);
+    }
+
+    @Override
+    public String encode(IBaseResource resource) {
+        return parsers.get().encodeResourceToString(resource);
+    }
+}
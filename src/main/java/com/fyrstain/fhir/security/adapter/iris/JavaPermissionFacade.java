@@ -1,32 +1,115 @@
 package com.fyrstain.fhir.security.adapter.iris;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
 import com.fyrstain.fhir.security.core.FhirAuthorizationEngine;
+import com.fyrstain.fhir.security.core.FilePermissionService;
 import com.fyrstain.fhir.security.core.PermissionService;
+import com.fyrstain.fhir.security.core.StreamingJsonRedactor;
+import com.fyrstain.fhir.security.core.cache.PermissionContextKey;
+import com.fyrstain.fhir.security.core.cache.PolicyCache;
+import com.fyrstain.fhir.security.core.cache.PolicySnapshot;
+import com.fyrstain.fhir.security.core.metrics.AuthorizationMetrics;
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
 import com.fyrstain.fhir.security.core.model.FhirRequest;
 import com.fyrstain.fhir.security.core.model.FhirResponse;
 import com.fyrstain.fhir.security.core.model.PermissionContext;
 import com.fyrstain.fhir.security.core.model.RequestEvaluationResult;
+import com.fyrstain.fhir.security.core.r4.FhirPathEngines;
 import com.fyrstain.fhir.security.core.r4.SimpleR4PermissionEvaluator;
 import org.hl7.fhir.instance.model.api.IBaseResource;
-import org.hl7.fhir.r4.formats.JsonParser;
-import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.stream.Collectors;
 
 public class JavaPermissionFacade {
 
+    /**
+     * System property naming the {@link PermissionService} class, which must have a public no-argument constructor.
+     * Without it (nor {@link #PERMISSION_FILE_PROPERTY}), no permission is granted.
+     */
+    public static final String PERMISSION_SERVICE_PROPERTY = "fhir.security.permissionService";
+
+    /**
+     * System property with the path of a file or directory of Permission resources, served by a
+     * {@link FilePermissionService} reloaded on changes. Takes precedence over {@link #PERMISSION_SERVICE_PROPERTY}.
+     */
+    public static final String PERMISSION_FILE_PROPERTY = "fhir.security.permissionFile";
+
+    /**
+     * System property with the path of a {@link PolicySnapshot}, used with {@link #PERMISSION_FILE_PROPERTY}: the cache
+     * is filled from it on startup if it matches the Permission files, and it is written again on shutdown.
+     */
+    public static final String POLICY_SNAPSHOT_PROPERTY = "fhir.security.policySnapshot";
+
+    /**
+     * System property which, when {@code true}, builds the R4 FHIRPath worker context in the background as soon as the
+     * facade is loaded, instead of on the first request that needs it.
+     */
+    public static final String WARM_UP_PROPERTY = "fhir.security.warmUp";
+
     private static final FhirAuthorizationEngine AUTHORIZATION_ENGINE;
+    private static final JsonCodec CODEC = JsonCodec.fromSystemProperties();
+    private static final StreamingJsonRedactor JSON_REDACTOR = new StreamingJsonRedactor(FhirContext.forCached(FhirVersionEnum.R4));
 
     static {
-        AUTHORIZATION_ENGINE = new FhirAuthorizationEngine(
-                /*TODO A voir comment on passe ça !*/ new MockPermissionService()
-                , new SimpleR4PermissionEvaluator());
+        if (Boolean.getBoolean(WARM_UP_PROPERTY)) {
+            FhirPathEngines.warmUp();
+        }
+        String permissionFile = System.getProperty(PERMISSION_FILE_PROPERTY);
+        if (permissionFile != null && !permissionFile.isBlank()) {
+            FilePermissionService filePermissionService = new FilePermissionService(Path.of(permissionFile.trim()));
+            SimpleR4PermissionEvaluator evaluator = new SimpleR4PermissionEvaluator();
+            AUTHORIZATION_ENGINE = new FhirAuthorizationEngine(
+                    filePermissionService
+                    , evaluator
+                    , new PolicyCache());
+            String policySnapshot = System.getProperty(POLICY_SNAPSHOT_PROPERTY);
+            if (policySnapshot != null && !policySnapshot.isBlank()) {
+                usePolicySnapshot(Path.of(policySnapshot.trim()), filePermissionService, evaluator);
+            }
+            // Policies compiled from the previous files must not outlive them
+            filePermissionService.addReloadListener(AUTHORIZATION_ENGINE::invalidateAll);
+            filePermissionService.startWatching();
+        } else {
+            AUTHORIZATION_ENGINE = new FhirAuthorizationEngine(
+                    permissionService(System.getProperty(PERMISSION_SERVICE_PROPERTY))
+                    , new SimpleR4PermissionEvaluator()
+                    , new PolicyCache());
+        }
+    }
+
+    private static void usePolicySnapshot(Path file, FilePermissionService permissionService,
+                                          SimpleR4PermissionEvaluator evaluator) {
+        Map<PermissionContextKey, CompiledPolicy> policies = PolicySnapshot.read(file, permissionService.getVersion(),
+                evaluator::parseExpressions);
+        if (policies != null) {
+            AUTHORIZATION_ENGINE.getPolicyCache().preload(policies);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                PolicySnapshot.write(file, permissionService.getVersion(), AUTHORIZATION_ENGINE.getPolicyCache().entries());
+            } catch (IOException e) {
+                LoggerFactory.getLogger(JavaPermissionFacade.class).warn("Cannot write the policy snapshot {}: {}", file, e.getMessage());
+            }
+        }, "policy-snapshot-writer"));
+    }
+
+    static PermissionService permissionService(String className) {
+        if (className == null || className.isBlank()) {
+            return new MockPermissionService();
+        }
+        try {
+            return Class.forName(className.trim()).asSubclass(PermissionService.class).getConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalStateException("Cannot create the permission service " + className, e);
+        }
     }
 
     public static String evaluateRequest(
@@ -42,12 +125,7 @@ public class JavaPermissionFacade {
 
         PermissionContext permissionContext = new PermissionContext(userId, null, token, null, null);
 
-        FhirRequest request = new FhirRequest().setMethod(FhirRequest.HTTPVerb.valueOf(httpVerb))
-                .setResourceType(resourceType)
-                .setResourceId(resourceId)
-                .setOperationName(operationName)
-                .setSearchParameters(parseSearchParameters(searchParameters))
-                .setBody(deserialize(body));
+        FhirRequest request = toRequest(httpVerb, resourceType, resourceId, operationName, searchParameters, body);
 
         RequestEvaluationResult requestEvaluationResult = AUTHORIZATION_ENGINE.evaluateRequest(permissionContext, request);
 
@@ -58,6 +136,72 @@ public class JavaPermissionFacade {
         return toQueryString(requestEvaluationResult.getModifiedSearchParameters());
     }
 
+    /**
+     * Evaluates many requests of one user in a single call, against a single compiled policy. Unlike
+     * {@link #evaluateRequest}, denied requests do not throw: every request gets a decision.
+     *
+     * @param requests the requests as NDJSON, one object per line with the arguments of {@link #evaluateRequest}
+     *                 (see {@link RequestBatch})
+     * @return the decisions as NDJSON, one line per request in the same order, with the rewritten query string of
+     * allowed requests
+     */
+    public static String evaluateRequests(
+            String userId,
+            String token,
+            String requests
+    ) throws Throwable {
+
+        PermissionContext permissionContext = new PermissionContext(userId, null, token, null, null);
+
+        List<RequestBatch.Item> items = RequestBatch.parse(requests);
+        List<FhirRequest> fhirRequests = new ArrayList<>(items.size());
+        for (RequestBatch.Item item : items) {
+            if (item.error != null) continue;
+            try {
+                fhirRequests.add(toRequest(item.httpVerb, item.resourceType, item.resourceId, item.operationName,
+                        item.searchParameters, item.body));
+            } catch (Exception e) {
+                item.error = e.getMessage();
+            }
+        }
+
+        Iterator<RequestEvaluationResult> results = AUTHORIZATION_ENGINE.evaluateRequests(permissionContext, fhirRequests).iterator();
+        StringBuilder decisions = new StringBuilder();
+        for (RequestBatch.Item item : items) {
+            if (item.error != null) {
+                decisions.append(RequestBatch.decision(false, null, item.error));
+            } else {
+                RequestEvaluationResult result = results.next();
+                decisions.append(RequestBatch.decision(result.isAllowed(),
+                        result.isAllowed() ? toQueryString(result.getModifiedSearchParameters()) : null, null));
+            }
+            decisions.append('\n');
+        }
+        return decisions.toString();
+    }
+
+    private static FhirRequest toRequest(
+            String httpVerb,
+            String resourceType,
+            String resourceId,
+            String operationName,
+            String searchParameters,
+            String body
+    ) {
+        return new FhirRequest().setMethod(FhirRequest.HTTPVerb.valueOf(httpVerb))
+                .setResourceType(resourceType)
+                .setResourceId(resourceId)
+                .setOperationName(operationName)
+                .setSearchParameters(parseSearchParameters(searchParameters))
+                .setBodySupplier(body == null ? null : () -> {
+                    try {
+                        return deserialize(body);
+                    } catch (Throwable e) {
+                        throw new IllegalArgumentException("Invalid request body: " + e.getMessage(), e);
+                    }
+                });
+    }
+
     private static String toQueryString(Map<String, List<String>> params) {
         return params.entrySet().stream()
                 .map(entry -> entry.getKey() + "=" +
@@ -75,28 +219,44 @@ public class JavaPermissionFacade {
     ) throws Throwable {
 
         PermissionContext permissionContext = new PermissionContext(userId, null, token, null, null);
+
+        CompiledPolicy policy = AUTHORIZATION_ENGINE.getPolicy(permissionContext);
+
+        // Responses without any resource type redacted by the policy are returned as they are
+        if (responseBody == null || !StreamingJsonRedactor.anyResourceType(responseBody, policy::hasRedaction)) {
+            return responseBody;
+        }
+
+        // Simple blacklist paths are applied on the JSON stream, the resource model is only built for the others
+        AuthorizationMetrics metrics = AUTHORIZATION_ENGINE.getMetrics();
+        long start = metrics.isEnabled() ? System.nanoTime() : 0L;
+        String redacted = JSON_REDACTOR.redact(responseBody, policy);
+        if (redacted != null) {
+            if (metrics.isEnabled()) {
+                metrics.recordLatency(AuthorizationMetrics.Phase.REDACTION, System.nanoTime() - start);
+            }
+            return redacted;
+        }
+
         FhirResponse response = new FhirResponse()
                 .setStatusCode(Integer.getInteger(statusCode))
                 .setResource(deserialize(responseBody));
 
-        FhirResponse updatedResponse = AUTHORIZATION_ENGINE.filterResponse(permissionContext, response);
+        // Same policy as the checks above, even if its cache entry was dropped since
+        FhirResponse updatedResponse = AUTHORIZATION_ENGINE.filterResponse(response, policy);
 
         return serialize(updatedResponse.getResource());
     }
 
-    private static String serialize(IBaseResource resource) throws Throwable
-    {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        new JsonParser().setOutputStyle(org.hl7.fhir.r4.formats.IParser.OutputStyle.PRETTY).compose(os, (Resource) resource);
-        os.close();
-        return os.toString();
+    private static String serialize(IBaseResource resource) throws Throwable {
+        return CODEC.encode(resource);
     }
 
     private static IBaseResource deserialize(String resourceAsString) throws Throwable {
         if (resourceAsString == null) {
             return null;
         }
-        return new JsonParser().parse(resourceAsString);
+        return CODEC.parse(resourceAsString);
     }
 
     public static Map<String, List<String>> parseSearchParameters(String queryString) {
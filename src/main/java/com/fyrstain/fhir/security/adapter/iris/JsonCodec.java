@@ -0,0 +1,65 @@
+package com.fyrstain.fhir.security.adapter.iris;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Parses and serializes the R4 JSON exchanged with IRIS. Implementations are thread-safe and reuse their parsers.
+ * <p>
+ * The codec of the facade is chosen with system properties: {@value #CODEC_PROPERTY} ({@code core}, the default, for
+ * the {@code org.hl7.fhir.r4.formats} parser, or {@code hapi} for the HAPI {@link FhirContext} parser) and
+ * {@value #PRETTY_PROPERTY} ({@code false} by default, output is compact).
+ */
+public interface JsonCodec {
+
+    String CODEC_PROPERTY = "fhir.security.codec";
+    String PRETTY_PROPERTY = "fhir.security.pretty";
+
+    /**
+     * @param json a resource as JSON
+     * @return the parsed resource
+     * @throws Exception if the JSON is not a valid resource
+     */
+    IBaseResource parse(String json) throws Exception;
+
+    /**
+     * @param resource a resource
+     * @return the resource as JSON
+     * @throws Exception if the resource cannot be serialized
+     */
+    String encode(IBaseResource resource) throws Exception;
+
+    /**
+     * @param pretty whether the output is indented
+     * @return a codec using the {@code org.hl7.fhir.r4.formats} JSON parser
+     */
+    static JsonCodec core(boolean pretty) {
+        return new CoreJsonCodec(pretty);
+    }
+
+    /**
+     * @param context the HAPI context, of version R4
+     * @param pretty  whether the output is indented
+     * @return a codec using the HAPI JSON parser of the context
+     */
+    static JsonCodec hapi(FhirContext context, boolean pretty) {
+        return new HapiJsonCodec(context, pretty);
+    }
+
+    /**
+     * @return the codec configured by the system properties
+     */
+    static JsonCodec fromSystemProperties() {
+        boolean pretty = Boolean.getBoolean(PRETTY_PROPERTY);
+        String codec = System.getProperty(CODEC_PROPERTY, "core");
+        switch (codec) {
+            case "core":
+                return core(pretty);
+            case "hapi":
+                return hapi(FhirContext.forCached(FhirVersionEnum.R4), pretty);
+            default:
+                throw new IllegalArgumentException("Unknown " + CODEC_PROPERTY + ": " + codec);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.fyrstain.fhir.security.adapter.iris;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * NDJSON format of {@link JavaPermissionFacade#evaluateRequests(String, String, String)}.
+ * <p>
+ * Each request line is an object with the arguments of {@link JavaPermissionFacade#evaluateRequest}:
+ * <pre>
+ * {"httpVerb":"GET","resourceType":"Patient","resourceId":null,"operationName":null,"searchParameters":"name=Doe","body":{...}}
+ * </pre>
+ * {@code body} is the resource itself, and every property but {@code httpVerb} is optional. Each decision line is
+ * {@code {"allowed":true,"searchParameters":"..."}}, {@code {"allowed":false}}, or
+ * {@code {"allowed":false,"error":"..."}} for a request that could not be read.
+ */
+final class RequestBatch {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private RequestBatch() {
+    }
+
+    /**
+     * One line of a batch.
+     */
+    static final class Item {
+        String httpVerb;
+        String resourceType;
+        String resourceId;
+        String operationName;
+        String searchParameters;
+        String body;
+        String error;
+    }
+
+    /**
+     * @param ndjson the request lines, blank lines being ignored
+     * @return one item per line. Lines that cannot be read have their {@code error} set.
+     */
+    static List<Item> parse(String ndjson) {
+        List<Item> items = new ArrayList<>();
+        if (ndjson == null) return items;
+
+        for (String line : ndjson.split("\r?\n")) {
+            if (line.isBlank()) continue;
+
+            Item item = new Item();
+            try {
+                read(line, item);
+            } catch (JsonProcessingException e) {
+                item.error = e.getOriginalMessage();
+            } catch (IOException e) {
+                item.error = e.getMessage();
+            }
+            items.add(item);
+        }
+        return items;
+    }
+
+    private static void read(String line, Item item) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(line)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected a request object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (value.isStructStart() && !"body".equals(name)) {
+                    throw new JsonParseException(parser, name + " must be a string");
+                }
+                switch (name) {
+                    case "httpVerb":
+                        item.httpVerb = parser.getValueAsString();
+                        break;
+                    case "resourceType":
+                        item.resourceType = parser.getValueAsString();
+                        break;
+                    case "resourceId":
+                        item.resourceId = parser.getValueAsString();
+                        break;
+                    case "operationName":
+                        item.operationName = parser.getValueAsString();
+                        break;
+                    case "searchParameters":
+                        item.searchParameters = parser.getValueAsString();
+                        break;
+                    case "body":
+                        if (value == JsonToken.START_OBJECT) {
+                            // Keep the resource as written, it is parsed with the facade codec
+                            int start = (int) parser.currentTokenLocation().getCharOffset();
+                            parser.skipChildren();
+                            item.body = line.substring(start, (int) parser.currentLocation().getCharOffset());
+                        } else if (value != JsonToken.VALUE_NULL) {
+                            throw new JsonParseException(parser, "body must be a resource");
+                        }
+                        break;
+                    default:
+                        // Unknown properties are ignored
+                }
+            }
+            if (item.httpVerb == null) {
+                throw new JsonParseException(parser, "httpVerb is missing");
+            }
+        }
+    }
+
+    /**
+     * @param allowed          whether the request is allowed
+     * @param searchParameters the rewritten query string of an allowed request
+     * @param error            why the request could not be evaluated, null if it was
+     * @return the decision line, without line terminator
+     */
+    static String decision(boolean allowed, String searchParameters, String error) throws IOException {
+        StringWriter out = new StringWriter();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeBooleanField("allowed", allowed);
+            if (allowed) {
+                generator.writeStringField("searchParameters", searchParameters);
+            }
+            if (error != null) {
+                generator.writeStringField("error", error);
+            }
+            generator.writeEndObject();
+        }
+        return out.toString();
+    }
+}
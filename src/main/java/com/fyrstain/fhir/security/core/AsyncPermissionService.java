@@ -0,0 +1,46 @@
+package com.fyrstain.fhir.security.core;
+
+import com.fyrstain.fhir.security.core.model.PermissionContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Non-blocking variant of {@link PermissionService}, for permission stores with an asynchronous client. Used by the
+ * {@code *Async} methods of {@link FhirAuthorizationEngine}.
+ */
+public interface AsyncPermissionService {
+
+    /**
+     * Retrieves all Permission resources associated with the current user.
+     *
+     * @return the Permission resources, completed exceptionally if they could not be retrieved
+     */
+    CompletableFuture<List<IBaseResource>> getPermissionsAsync(PermissionContext context);
+
+    /**
+     * Adapts a synchronous service: each call runs on a virtual thread when the JVM supports them (Java 21 and
+     * later), so that a slow store never blocks the calling thread. Otherwise calls run on a shared pool of at most 64
+     * daemon threads (system property {@code fhir.security.permissionServiceThreads}), further calls waiting for a
+     * thread: use {@link #of(PermissionService, Executor)} to size the pool after the store.
+     *
+     * @param service the synchronous service
+     * @return the asynchronous service
+     */
+    static AsyncPermissionService of(PermissionService service) {
+        return new AsyncPermissionServiceAdapter(service, AsyncPermissionServiceAdapter.defaultExecutor());
+    }
+
+    /**
+     * Adapts a synchronous service, running each call on the given executor.
+     *
+     * @param service  the synchronous service
+     * @param executor runs the blocking calls
+     * @return the asynchronous service
+     */
+    static AsyncPermissionService of(PermissionService service, Executor executor) {
+        return new AsyncPermissionServiceAdapter(service, executor);
+    }
+}
@@ -0,0 +1,84 @@
+package com.fyrstain.fhir.security.core;
+
+import com.fyrstain.fhir.security.core.model.PermissionContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a synchronous {@link PermissionService} on an executor, see {@link AsyncPermissionService#of(PermissionService)}.
+ */
+final class AsyncPermissionServiceAdapter implements AsyncPermissionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncPermissionServiceAdapter.class);
+
+    /**
+     * System property setting the number of platform threads of the default executor when virtual threads are not
+     * available, {@value #DEFAULT_PLATFORM_THREADS} by default.
+     */
+    static final String PLATFORM_THREADS_PROPERTY = "fhir.security.permissionServiceThreads";
+    static final int DEFAULT_PLATFORM_THREADS = 64;
+
+    private final PermissionService service;
+    private final Executor executor;
+
+    AsyncPermissionServiceAdapter(PermissionService service, Executor executor) {
+        this.service = service;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<List<IBaseResource>> getPermissionsAsync(PermissionContext context) {
+        return CompletableFuture.supplyAsync(() -> service.getPermissions(context), executor);
+    }
+
+    /**
+     * @return the executor shared by the adapters without an explicit one, created on first use.
+     */
+    static Executor defaultExecutor() {
+        return DefaultExecutor.INSTANCE;
+    }
+
+    /**
+     * Virtual threads when available, found by reflection as the library still targets Java 17. Otherwise a bounded
+     * pool of daemon threads, see {@link #newPlatformExecutor(int)}, of {@link #PLATFORM_THREADS_PROPERTY} threads.
+     */
+    static ExecutorService newBlockingExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.debug("Virtual threads not available, permission services run on platform threads");
+        }
+        return newPlatformExecutor(Math.max(1, Integer.getInteger(PLATFORM_THREADS_PROPERTY, DEFAULT_PLATFORM_THREADS)));
+    }
+
+    /**
+     * Pool of at most {@code threads} daemon threads: with a slow store, calls beyond that wait in an unbounded queue
+     * rather than each creating a platform thread. Idle threads are released after a minute.
+     */
+    static ExecutorService newPlatformExecutor(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<>(), task -> {
+            Thread thread = new Thread(task, "permission-service-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static final class DefaultExecutor {
+        private static final ExecutorService INSTANCE = newBlockingExecutor();
+    }
+}
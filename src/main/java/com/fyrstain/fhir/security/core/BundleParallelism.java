@@ -0,0 +1,50 @@
+package com.fyrstain.fhir.security.core;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Configures how Bundle entries are redacted: sequentially in the caller thread, or split across a
+ * {@link ForkJoinPool} when the Bundle has at least {@code threshold} entries. Both modes produce the same output, each
+ * entry being redacted independently.
+ *
+ * @param pool      the pool running the entries, null for sequential redaction
+ * @param threshold minimum number of entries for parallel redaction. Smaller Bundles are redacted sequentially, as
+ *                  forking costs more than it saves.
+ */
+public record BundleParallelism(ForkJoinPool pool, int threshold) {
+
+    public static final int DEFAULT_THRESHOLD = 64;
+
+    /**
+     * Always redact entries sequentially.
+     */
+    public static final BundleParallelism SEQUENTIAL = new BundleParallelism(null, Integer.MAX_VALUE);
+
+    public BundleParallelism {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Threshold must be at least 1: " + threshold);
+        }
+    }
+
+    /**
+     * @return parallel redaction on the given pool with {@link #DEFAULT_THRESHOLD}
+     */
+    public static BundleParallelism parallel(ForkJoinPool pool) {
+        return new BundleParallelism(pool, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param entryCount number of entries of the Bundle
+     * @return true if the entries should be redacted in parallel
+     */
+    public boolean isParallel(int entryCount) {
+        return pool != null && entryCount >= threshold;
+    }
+
+    /**
+     * @return number of entries a single task redacts before splitting no further
+     */
+    public int batchSize() {
+        return Math.max(1, threshold / 4);
+    }
+}
@@ -0,0 +1,76 @@
+package com.fyrstain.fhir.security.core;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Removes elements from a resource in a single traversal.
+ * <p>
+ * Elements are matched by identity (typically the results of a FHIRPath evaluation on the same resource), so an
+ * element equal to a target but located elsewhere in the resource is never removed by mistake. The traversal stops as
+ * soon as every target has been removed. Works for any FHIR version, walking resources with {@link TraversalPlan}s
+ * built from the HAPI runtime definitions of the given {@link FhirContext}.
+ */
+public final class ElementRemover {
+
+    private ElementRemover() {
+    }
+
+    /**
+     * Removes the given elements from the resource.
+     *
+     * @param context  the FHIR context of the resource version
+     * @param resource the resource to modify
+     * @param targets  the elements to remove, as found in the resource. Elements that are not part of the resource
+     *                 (e.g. values computed by a FHIRPath function) are ignored.
+     * @return the number of elements removed
+     */
+    public static int removeAll(FhirContext context, IBaseResource resource, Collection<? extends IBase> targets) {
+        if (resource == null || targets == null || targets.isEmpty()) return 0;
+
+        Set<IBase> remaining = Collections.newSetFromMap(new IdentityHashMap<>());
+        remaining.addAll(targets);
+        // The resource itself cannot be removed from itself
+        remaining.remove(resource);
+        if (remaining.isEmpty()) return 0;
+
+        int total = remaining.size();
+        removeFromChildren(resource, TraversalPlan.forResource(context, resource), remaining);
+        return total - remaining.size();
+    }
+
+    private static void removeFromChildren(IBase parent, TraversalPlan plan, Set<IBase> remaining) {
+        for (TraversalPlan.ChildPlan child : plan.children) {
+            List<IBase> values = child.accessor.getValues(parent);
+            if (values.isEmpty()) continue;
+
+            // Backwards, so that removing a value does not shift the ones still to be visited
+            for (int i = values.size() - 1; i >= 0; i--) {
+                IBase value = values.get(i);
+                if (value == null) continue;
+
+                if (remaining.remove(value)) {
+                    if (child.multiple) {
+                        child.mutator.remove(parent, i);
+                    } else {
+                        child.mutator.setValue(parent, null);
+                    }
+                } else {
+                    TraversalPlan valuePlan = child.planFor(value.getClass());
+                    if (valuePlan != TraversalPlan.LEAF) {
+                        removeFromChildren(value, valuePlan, remaining);
+                    }
+                }
+
+                if (remaining.isEmpty()) return;
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.fyrstain.fhir.security.core;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Pool of non thread-safe engines (e.g. HAPI {@code FHIRPathEngine}s).
+ * <p>
+ * Concurrency contract: an engine is only ever used by one thread at a time, from {@link #borrow()} to
+ * {@link #release(Object)}. The pool never blocks: when no idle engine is available a new one is created, so the
+ * number of engines grows with the number of threads using the pool concurrently. At most {@code maxIdle} engines are
+ * kept between uses, the others being dropped on release.
+ *
+ * @param <E> the engine type
+ */
+public class EnginePool<E> {
+
+    public static final int DEFAULT_MAX_IDLE = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+
+    private final Supplier<E> factory;
+    private final int maxIdle;
+    private final ConcurrentLinkedDeque<E> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger created = new AtomicInteger();
+
+    public EnginePool(Supplier<E> factory) {
+        this(factory, DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * @param factory creates new engines
+     * @param maxIdle maximum number of engines kept between uses
+     */
+    public EnginePool(Supplier<E> factory, int maxIdle) {
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Runs the work with an engine of the pool.
+     *
+     * @param work the work, must not keep a reference to the engine once done
+     * @return the result of the work
+     */
+    public <R> R apply(Function<E, R> work) {
+        E engine = borrow();
+        try {
+            return work.apply(engine);
+        } finally {
+            release(engine);
+        }
+    }
+
+    /**
+     * Takes an engine from the pool, creating one if none is idle. It must be given back with {@link #release(Object)}.
+     */
+    public E borrow() {
+        E engine = idle.pollFirst();
+        if (engine != null) {
+            idleCount.decrementAndGet();
+            return engine;
+        }
+        created.incrementAndGet();
+        return factory.get();
+    }
+
+    /**
+     * Gives an engine back to the pool.
+     */
+    public void release(E engine) {
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offerFirst(engine);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of engines created so far
+     */
+    public int getCreatedCount() {
+        return created.get();
+    }
+}
@@ -1,28 +1,87 @@
 package com.fyrstain.fhir.security.core;
 
+import ca.uhn.fhir.context.FhirContext;
+import com.fyrstain.fhir.security.core.cache.PolicyCache;
+import com.fyrstain.fhir.security.core.metrics.AuthorizationMetrics;
+import com.fyrstain.fhir.security.core.metrics.AuthorizationMetrics.Phase;
 import com.fyrstain.fhir.security.core.model.*;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class FhirAuthorizationEngine {
 
     private static final Logger logger = LoggerFactory.getLogger(FhirAuthorizationEngine.class);
 
     private final PermissionService permissionService;
+    // Adapter of a synchronous service created on the first *Async call, so that synchronous engines start no thread
+    private volatile AsyncPermissionService asyncPermissionService;
     private final PermissionEvaluator evaluator;
+    private final PolicyCache policyCache;
+    private final AuthorizationMetrics metrics;
 
     /**
-     * Default constructor for the class.
+     * Default constructor for the class. Compiled rules are not cached: Permissions are fetched and compiled on
+     * every call.
      *
      * @param permissionService used to retrieve Permission resources. Implementation may vary depending on where/how the resources are stored.
      * @param evaluator         evaluation service for the permission. Implementation may vary depending on how rules should be enforced.
      */
     public FhirAuthorizationEngine(PermissionService permissionService, PermissionEvaluator evaluator) {
+        this(permissionService, evaluator, PolicyCache.disabled());
+    }
+
+    /**
+     * Constructor with a cache for compiled rules, so that the request and response phases of a call (and following
+     * calls from the same user) reuse the same compiled rules.
+     *
+     * @param permissionService used to retrieve Permission resources. Implementation may vary depending on where/how the resources are stored.
+     * @param evaluator         evaluation service for the permission. Implementation may vary depending on how rules should be enforced.
+     * @param policyCache       cache for the compiled rules.
+     */
+    public FhirAuthorizationEngine(PermissionService permissionService, PermissionEvaluator evaluator, PolicyCache policyCache) {
+        this(permissionService, evaluator, policyCache, AuthorizationMetrics.noop());
+    }
+
+    /**
+     * Constructor with a cache for compiled rules and metrics recording the latency of each phase.
+     *
+     * @param permissionService used to retrieve Permission resources. Implementation may vary depending on where/how the resources are stored.
+     * @param evaluator         evaluation service for the permission. Implementation may vary depending on how rules should be enforced.
+     * @param policyCache       cache for the compiled rules.
+     * @param metrics           receives the measurements of each call.
+     */
+    public FhirAuthorizationEngine(PermissionService permissionService, PermissionEvaluator evaluator, PolicyCache policyCache,
+                                   AuthorizationMetrics metrics) {
         this.permissionService = permissionService;
         this.evaluator = evaluator;
+        this.policyCache = policyCache;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Constructor for an asynchronous permission service, for use through the {@code *Async} methods. The
+     * synchronous methods still work, blocking on the service.
+     *
+     * @param permissionService used to retrieve Permission resources without blocking.
+     * @param evaluator         evaluation service for the permission. Implementation may vary depending on how rules should be enforced.
+     * @param policyCache       cache for the compiled rules.
+     * @param metrics           receives the measurements of each call.
+     */
+    public FhirAuthorizationEngine(AsyncPermissionService permissionService, PermissionEvaluator evaluator, PolicyCache policyCache,
+                                   AuthorizationMetrics metrics) {
+        this.permissionService = context -> join(permissionService.getPermissionsAsync(context));
+        this.asyncPermissionService = permissionService;
+        this.evaluator = evaluator;
+        this.policyCache = policyCache;
+        this.metrics = metrics;
     }
 
     /**
@@ -37,26 +96,233 @@ public class FhirAuthorizationEngine {
     public RequestEvaluationResult evaluateRequest(
             PermissionContext context,
             FhirRequest request) {
-        List<PermissionRule> rules = getRules(context);
+        return evaluateRequest(request, getPolicy(context));
+    }
+
+    /**
+     * Evaluates several requests of the same context, e.g. the entries of a transaction, against a single compiled
+     * policy. See {@link #evaluateRequest(PermissionContext, FhirRequest)}.
+     *
+     * @param context  the authorization context, containing information on the Permission to retrieve
+     * @param requests the requests that were sent to the server
+     *
+     * @return the results of the Permission evaluation, in the order of the requests.
+     */
+    public List<RequestEvaluationResult> evaluateRequests(
+            PermissionContext context,
+            List<FhirRequest> requests) {
+        CompiledPolicy policy = getPolicy(context);
+
+        List<RequestEvaluationResult> results = new ArrayList<>(requests.size());
+        for (FhirRequest request : requests) {
+            results.add(evaluateRequest(request, policy));
+        }
+        return results;
+    }
+
+    /**
+     * Non-blocking variant of {@link #evaluateRequest(PermissionContext, FhirRequest)}. On a policy cache hit the
+     * result is computed on the calling thread and returned completed. Otherwise the Permissions are retrieved through
+     * the {@link AsyncPermissionService}, and the policy is compiled and the request evaluated on the thread completing
+     * that retrieval.
+     *
+     * @param context the authorization context, containing information on the Permission to retrieve
+     * @param request the request that was sent to the server. Used to check permission for what is requested.
+     *
+     * @return the result of Permission evaluation, completed exceptionally if the Permissions could not be retrieved.
+     */
+    public CompletableFuture<RequestEvaluationResult> evaluateRequestAsync(
+            PermissionContext context,
+            FhirRequest request) {
+        return getPolicyAsync(context).thenApply(policy -> evaluateRequest(request, policy));
+    }
+
+    /**
+     * Non-blocking variant of {@link #evaluateRequests(PermissionContext, List)}, see
+     * {@link #evaluateRequestAsync(PermissionContext, FhirRequest)}.
+     */
+    public CompletableFuture<List<RequestEvaluationResult>> evaluateRequestsAsync(
+            PermissionContext context,
+            List<FhirRequest> requests) {
+        return getPolicyAsync(context).thenApply(policy -> {
+            List<RequestEvaluationResult> results = new ArrayList<>(requests.size());
+            for (FhirRequest request : requests) {
+                results.add(evaluateRequest(request, policy));
+            }
+            return results;
+        });
+    }
+
+    private RequestEvaluationResult evaluateRequest(FhirRequest request, CompiledPolicy policy) {
+        // The decision only needs the type and operation of the request: the body (see FhirRequest#setBodySupplier)
+        // is not read, so it is never parsed here
+        boolean timed = metrics.isEnabled();
+        long start = timed ? System.nanoTime() : 0L;
+        boolean allowed = evaluator.canPerform(request.getResourceTypeId(), request.getOperation(), policy);
+        long decided = timed ? System.nanoTime() : 0L;
+        Map<String, List<String>> searchParameters =
+                evaluator.updateSearchParameters(request.getResourceType(), request.getSearchParameters(), policy);
+        if (timed) {
+            metrics.recordLatency(Phase.DECISION, decided - start);
+            metrics.recordLatency(Phase.SEARCH_REWRITE, System.nanoTime() - decided);
+        }
 
         //Build and return the evaluation result.
         return new RequestEvaluationResult(
-                evaluator.canPerform(request.getResourceType(), request.getOperation(), rules),
-                evaluator.updateSearchParameters(request.getResourceType(), request.getSearchParameters(), rules),
-                rules,
+                allowed,
+                searchParameters,
+                policy.getRules(),
                 null);
     }
 
     public FhirResponse filterResponse(
             PermissionContext context,
             FhirResponse response) {
-        return evaluator.filterResponse(response, getRules(context));
+        return filterResponse(response, getPolicy(context));
+    }
+
+    /**
+     * Non-blocking variant of {@link #filterResponse(PermissionContext, FhirResponse)}, see
+     * {@link #evaluateRequestAsync(PermissionContext, FhirRequest)}. Redaction is CPU bound: it runs on the calling
+     * thread on a policy cache hit, on the thread completing the Permission retrieval otherwise.
+     *
+     * @return the filtered response, completed exceptionally if the Permissions could not be retrieved.
+     */
+    public CompletableFuture<FhirResponse> filterResponseAsync(
+            PermissionContext context,
+            FhirResponse response) {
+        return getPolicyAsync(context).thenApply(policy -> filterResponse(response, policy));
     }
 
-    private List<PermissionRule> getRules(PermissionContext context) {
+    /**
+     * Filters the response with a policy already retrieved, e.g. by {@link #getPolicy(PermissionContext)} to decide
+     * how to redact the response, so that the whole response is handled with the same policy.
+     *
+     * @param response the response of the server
+     * @param policy   the compiled policy of the user
+     * @return the filtered response
+     */
+    public FhirResponse filterResponse(FhirResponse response, CompiledPolicy policy) {
+        if (!metrics.isEnabled()) {
+            return evaluator.filterResponse(response, policy);
+        }
+
+        long start = System.nanoTime();
+        FhirResponse filtered = evaluator.filterResponse(response, policy);
+        metrics.recordLatency(Phase.REDACTION, System.nanoTime() - start);
+        metrics.recordRedactionMatches(filtered.getRedactedElementCount());
+        if (filtered.getResource() instanceof IBaseBundle) {
+            metrics.recordBundleSize(entryCount((IBaseBundle) filtered.getResource()));
+        }
+        return filtered;
+    }
+
+    /**
+     * Drops the cached policy of the given context, e.g. after its Permission resources were updated.
+     *
+     * @param context the authorization context
+     */
+    public void invalidate(PermissionContext context) {
+        policyCache.invalidate(context);
+    }
+
+    /**
+     * Drops all cached policies.
+     */
+    public void invalidateAll() {
+        policyCache.invalidateAll();
+    }
+
+    public PolicyCache getPolicyCache() {
+        return policyCache;
+    }
+
+    public AuthorizationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the compiled policy of the context, from the cache if possible.
+     *
+     * @param context the authorization context
+     * @return the compiled policy
+     */
+    public CompiledPolicy getPolicy(PermissionContext context) {
+        return policyCache.get(context, this::loadPolicy);
+    }
+
+    /**
+     * Non-blocking variant of {@link #getPolicy(PermissionContext)}.
+     *
+     * @param context the authorization context
+     * @return the compiled policy, already completed on a cache hit
+     */
+    public CompletableFuture<CompiledPolicy> getPolicyAsync(PermissionContext context) {
+        return policyCache.getAsync(context, this::loadPolicyAsync);
+    }
+
+    private CompiledPolicy loadPolicy(PermissionContext context) {
+        long start = metrics.isEnabled() ? System.nanoTime() : 0L;
         //Retrieve Permission resources (depends on context)
         List<IBaseResource> permissions = permissionService.getPermissions(context);
+        return compilePolicy(permissions, start);
+    }
+
+    private CompletableFuture<CompiledPolicy> loadPolicyAsync(PermissionContext context) {
+        long start = metrics.isEnabled() ? System.nanoTime() : 0L;
+        return asyncPermissionService().getPermissionsAsync(context)
+                .thenApply(permissions -> compilePolicy(permissions, start));
+    }
+
+    private AsyncPermissionService asyncPermissionService() {
+        AsyncPermissionService service = asyncPermissionService;
+        if (service == null) {
+            synchronized (this) {
+                service = asyncPermissionService;
+                if (service == null) {
+                    service = AsyncPermissionService.of(permissionService);
+                    asyncPermissionService = service;
+                }
+            }
+        }
+        return service;
+    }
+
+    /**
+     * @param start when the Permissions started to be retrieved, for the metrics
+     */
+    private CompiledPolicy compilePolicy(List<IBaseResource> permissions, long start) {
+        boolean timed = metrics.isEnabled();
+        long fetched = timed ? System.nanoTime() : 0L;
         //Compile FHIR Permission resources into a computable set of resource the engine can interpret
-        return evaluator.compileRules(permissions);
+        CompiledPolicy policy = evaluator.compilePolicy(permissions);
+        if (timed) {
+            metrics.recordLatency(Phase.PERMISSION_FETCH, fetched - start);
+            metrics.recordLatency(Phase.COMPILE, System.nanoTime() - fetched);
+            metrics.recordRuleCount(policy.getRules().size());
+        }
+        return policy;
+    }
+
+    /**
+     * Waits for the Permissions of an asynchronous service, rethrowing its runtime exceptions as they are.
+     */
+    private static List<IBaseResource> join(CompletableFuture<List<IBaseResource>> permissions) {
+        try {
+            return permissions.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Counts the entries of a Bundle of any FHIR version, without copying them.
+     */
+    private static int entryCount(IBaseBundle bundle) {
+        FhirContext context = FhirContext.forCached(bundle.getStructureFhirVersionEnum());
+        return context.getResourceDefinition(bundle).getChildByName("entry").getAccessor().getValues(bundle).size();
     }
 }
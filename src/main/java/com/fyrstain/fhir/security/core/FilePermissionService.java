@@ -0,0 +1,434 @@
+package com.fyrstain.fhir.security.core;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import com.fyrstain.fhir.security.core.cache.PermissionFragmentCache;
+import com.fyrstain.fhir.security.core.model.PermissionContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.Identifier;
+import org.hl7.fhir.r5.model.Permission;
+import org.hl7.fhir.r5.model.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Serves R5 Permission resources read from local files, reloaded when they change.
+ * <p>
+ * The path is either a single file or a directory, whose {@code .json} and {@code .ndjson} files are read (not
+ * recursively). A JSON file holds one Permission or a Bundle of Permissions, an NDJSON file one of them per line.
+ * Other resources are ignored.
+ * <p>
+ * Permissions are selected through the actors of their rules ({@code rule.activity.actor}):
+ * <ul>
+ *     <li>{@code Organization/{id}} applies to the users of that organization;</li>
+ *     <li>an identifier with the {@link #ROLE_SYSTEM} system applies to the users having its value as a role;</li>
+ *     <li>any other reference applies to the user whose id is the reference ({@code Practitioner/123}) or its id
+ *     part ({@code 123});</li>
+ *     <li>a Permission without actors applies to every user.</li>
+ * </ul>
+ * Any other actor, e.g. a display only or an identifier of another system, designates nobody.
+ * The actors of all rules select the whole Permission, so a Permission should hold the rules of a single audience.
+ * <p>
+ * Files are read into an immutable snapshot indexed by user, role and organization, which is swapped atomically:
+ * readers never wait for a reload. With {@link #startWatching()}, a background thread reloads the files on changes,
+ * only parsing again the files whose content changed. A reload that fails keeps the previous snapshot. Listeners
+ * registered with {@link #addReloadListener(Runnable)} are told of each new snapshot, e.g. to invalidate cached
+ * policies.
+ */
+public class FilePermissionService implements PermissionService, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FilePermissionService.class);
+
+    /**
+     * Identifier system of the actors designating a role.
+     */
+    public static final String ROLE_SYSTEM = "urn:fyrstain:fhir-security:role";
+
+    private static final FhirContext CONTEXT = FhirContext.forR5Cached();
+    private static final long DEBOUNCE_MILLIS = 100;
+
+    private final Path path;
+    private final List<Runnable> reloadListeners = new CopyOnWriteArrayList<>();
+    // Parsed files of the last load, only used while holding the lock of this service
+    private final Map<Path, ParsedFile> parsedFiles = new HashMap<>();
+
+    private volatile Snapshot snapshot;
+    private WatchService watchService;
+    private Thread watcher;
+
+    /**
+     * Reads the Permissions of the path.
+     *
+     * @param path a file or a directory
+     * @throws UncheckedIOException     if the path cannot be read
+     * @throws IllegalArgumentException if a file is not valid
+     */
+    public FilePermissionService(Path path) {
+        this.path = path.toAbsolutePath().normalize();
+        this.snapshot = load();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Returns the Permissions of the user, of its roles, of its organization and those without actors, in file order.
+     */
+    @Override
+    public List<IBaseResource> getPermissions(PermissionContext context) {
+        return snapshot.select(context);
+    }
+
+    /**
+     * @return the number of Permissions currently loaded
+     */
+    public int size() {
+        return snapshot.permissions.size();
+    }
+
+    /**
+     * @return a hash of the files currently loaded, which changes whenever one of them does, e.g. to stamp a
+     * {@link com.fyrstain.fhir.security.core.cache.PolicySnapshot}
+     */
+    public String getVersion() {
+        return snapshot.version;
+    }
+
+    /**
+     * @param listener called on the watching thread after each successful reload. A listener that throws is logged
+     *                 and does not prevent the other listeners from running.
+     */
+    public void addReloadListener(Runnable listener) {
+        reloadListeners.add(listener);
+    }
+
+    /**
+     * Reads the files again, parsing only those whose content changed.
+     *
+     * @return true if the snapshot was replaced, false if the reload failed and the previous one is kept
+     */
+    public synchronized boolean reload() {
+        Snapshot reloaded;
+        try {
+            reloaded = load();
+        } catch (RuntimeException e) {
+            logger.error("Failed to reload the Permissions of {}, keeping the previous ones: {}", path, e.getMessage());
+            return false;
+        }
+        snapshot = reloaded;
+        logger.info("Reloaded {} Permissions from {}", reloaded.permissions.size(), path);
+        for (Runnable listener : reloadListeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                logger.error("Reload listener of {} failed", path, e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts reloading the files when they change, from a daemon thread. Changes are grouped: a reload happens once
+     * no file changed for {@value #DEBOUNCE_MILLIS} ms.
+     *
+     * @return this service
+     * @throws UncheckedIOException if the path cannot be watched
+     */
+    public synchronized FilePermissionService startWatching() {
+        if (watcher != null) return this;
+
+        Path directory = Files.isDirectory(path) ? path : path.getParent();
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot watch " + directory, e);
+        }
+        watcher = new Thread(() -> watch(watchService, directory), "permission-files-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        return this;
+    }
+
+    /**
+     * Stops watching the files.
+     */
+    @Override
+    public synchronized void close() {
+        if (watcher == null) return;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close the watch service of {}: {}", path, e.getMessage());
+        }
+        watcher.interrupt();
+        watcher = null;
+    }
+
+    private void watch(WatchService service, Path directory) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                boolean changed = relevant(service.take(), directory);
+                WatchKey key;
+                while ((key = service.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= relevant(key, directory);
+                }
+                if (changed) {
+                    try {
+                        reload();
+                    } catch (RuntimeException e) {
+                        // Keep watching: the next change may reload successfully
+                        logger.error("Failed to reload the Permissions of {}", path, e);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    private boolean relevant(WatchKey key, Path directory) {
+        boolean relevant = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                relevant = true;
+            } else {
+                Path changed = directory.resolve((Path) event.context());
+                relevant |= Files.isDirectory(path) ? isPermissionFile(changed) : changed.equals(path);
+            }
+        }
+        key.reset();
+        return relevant;
+    }
+
+    private Snapshot load() {
+        List<Path> files;
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> listed = Files.list(path)) {
+                files = listed.filter(FilePermissionService::isPermissionFile).sorted().toList();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot list " + path, e);
+            }
+        } else {
+            files = List.of(path);
+        }
+
+        List<Permission> permissions = new ArrayList<>();
+        Map<Path, ParsedFile> parsed = new HashMap<>();
+        MessageDigest version = sha256();
+        for (Path file : files) {
+            ParsedFile parsedFile = parse(file, parsedFiles.get(file));
+            parsed.put(file, parsedFile);
+            permissions.addAll(parsedFile.permissions);
+            version.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+            version.update(parsedFile.digest);
+        }
+        parsedFiles.clear();
+        parsedFiles.putAll(parsed);
+        return new Snapshot(permissions, HexFormat.of().formatHex(version.digest()));
+    }
+
+    /**
+     * @param previous the file as parsed before, reused if its content did not change since
+     */
+    private static ParsedFile parse(Path file, ParsedFile previous) {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read " + file, e);
+        }
+        if (previous != null && Arrays.equals(previous.digest, digest(content))) {
+            return previous;
+        }
+
+        List<Permission> permissions = new ArrayList<>();
+        IParser parser = CONTEXT.newJsonParser();
+        String text = new String(content, StandardCharsets.UTF_8);
+        if (file.getFileName().toString().endsWith(".ndjson")) {
+            String[] lines = text.split("\r?\n");
+            for (int i = 0; i < lines.length; i++) {
+                if (lines[i].isBlank()) continue;
+                try {
+                    collect(parser.parseResource(lines[i]), permissions);
+                } catch (DataFormatException e) {
+                    throw new IllegalArgumentException("Invalid resource at " + file + ":" + (i + 1) + ": " + e.getMessage(), e);
+                }
+            }
+        } else {
+            try {
+                collect(parser.parseResource(text), permissions);
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("Invalid resource in " + file + ": " + e.getMessage(), e);
+            }
+        }
+        // Snapshots never modify their Permissions: compiling them again for another user need not encode them again
+        permissions.forEach(PermissionFragmentCache::registerImmutable);
+        return new ParsedFile(digest(content), List.copyOf(permissions));
+    }
+
+    private static byte[] digest(byte[] content) {
+        return sha256().digest(content);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void collect(IBaseResource resource, List<Permission> permissions) {
+        if (resource instanceof Permission) {
+            permissions.add((Permission) resource);
+        } else if (resource instanceof Bundle) {
+            for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+                if (entry.getResource() instanceof Permission) {
+                    permissions.add((Permission) entry.getResource());
+                }
+            }
+        }
+    }
+
+    private static boolean isPermissionFile(Path file) {
+        String name = file.getFileName().toString();
+        return (name.endsWith(".json") || name.endsWith(".ndjson")) && !Files.isDirectory(file);
+    }
+
+    private record ParsedFile(byte[] digest, List<Permission> permissions) {}
+
+    /**
+     * Permissions of one load, indexed by actor. Never modified once built.
+     */
+    static final class Snapshot {
+
+        private final List<Permission> permissions;
+        private final String version;
+        private final List<IBaseResource> everyone;
+        private final BitSet everyonePositions = new BitSet();
+        private final Map<String, List<Integer>> byUser = new HashMap<>();
+        private final Map<String, List<Integer>> byRole = new HashMap<>();
+        private final Map<String, List<Integer>> byOrganization = new HashMap<>();
+
+        Snapshot(List<Permission> permissions, String version) {
+            this.permissions = permissions;
+            this.version = version;
+            List<IBaseResource> unrestricted = new ArrayList<>();
+            for (int i = 0; i < permissions.size(); i++) {
+                Permission permission = permissions.get(i);
+                boolean hasActor = false;
+                for (Permission.RuleComponent rule : permission.getRule()) {
+                    for (Permission.RuleActivityComponent activity : rule.getActivity()) {
+                        for (Reference actor : activity.getActor()) {
+                            hasActor = true;
+                            index(actor, permission, i);
+                        }
+                    }
+                }
+                if (!hasActor) {
+                    unrestricted.add(permission);
+                    everyonePositions.set(i);
+                }
+            }
+            this.everyone = Collections.unmodifiableList(unrestricted);
+        }
+
+        /**
+         * Indexes a Permission under one of its actors. An actor that cannot be interpreted designates nobody: it must
+         * not make the Permission apply to every user.
+         */
+        private void index(Reference actor, Permission resource, int permission) {
+            Identifier identifier = actor.getIdentifier();
+            if (ROLE_SYSTEM.equals(identifier.getSystem()) && identifier.hasValue()) {
+                add(byRole, identifier.getValue(), permission);
+                return;
+            }
+            if (!actor.hasReference()) {
+                logger.warn("Ignoring actor of Permission {} that is neither a reference nor a role identifier",
+                        resource.getIdElement().getIdPart());
+                return;
+            }
+            String reference = actor.getReference();
+            String idPart = actor.getReferenceElement().getIdPart();
+            if ("Organization".equals(actor.getReferenceElement().getResourceType())) {
+                add(byOrganization, idPart, permission);
+            } else {
+                add(byUser, reference, permission);
+                if (idPart != null && !idPart.equals(reference)) {
+                    add(byUser, idPart, permission);
+                }
+            }
+        }
+
+        private static void add(Map<String, List<Integer>> index, String key, int permission) {
+            List<Integer> permissions = index.computeIfAbsent(key, k -> new ArrayList<>());
+            if (permissions.isEmpty() || permissions.get(permissions.size() - 1) != permission) {
+                permissions.add(permission);
+            }
+        }
+
+        List<IBaseResource> select(PermissionContext context) {
+            List<Integer> user = byUser.get(context.getUserId());
+            List<Integer> organization = byOrganization.get(context.getOrganizationId());
+            boolean anyRole = false;
+            if (context.getRoles() != null) {
+                for (String role : context.getRoles()) {
+                    anyRole |= byRole.containsKey(role);
+                }
+            }
+            if (user == null && organization == null && !anyRole) {
+                return everyone;
+            }
+
+            // Positions of the selected Permissions, to return them once and in file order
+            BitSet selected = (BitSet) everyonePositions.clone();
+            set(selected, user);
+            set(selected, organization);
+            if (anyRole) {
+                for (String role : context.getRoles()) {
+                    set(selected, byRole.get(role));
+                }
+            }
+            List<IBaseResource> result = new ArrayList<>(selected.cardinality());
+            for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+                result.add(permissions.get(i));
+            }
+            return result;
+        }
+
+        private static void set(BitSet selected, List<Integer> positions) {
+            if (positions == null) return;
+            for (int position : positions) {
+                selected.set(position);
+            }
+        }
+    }
+}
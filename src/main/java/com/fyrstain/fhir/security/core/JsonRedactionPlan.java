@@ -0,0 +1,197 @@
+package com.fyrstain.fhir.security.core;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.parser.DataFormatException;
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.PermissionRule;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Blacklist expressions compiled for {@link StreamingJsonRedactor}: for each resource type, a tree of the JSON
+ * property names to remove.
+ * <p>
+ * Only simple paths are supported, i.e. a resource type followed by element names ({@code Patient.telecom},
+ * {@code Patient.contact.telecom}, {@code Observation.value}). Element names are resolved with the HAPI runtime
+ * definitions, so a choice element matches all its JSON names ({@code valueQuantity}, {@code valueString}, ...) and a
+ * primitive element also matches its {@code _name} extension property.
+ */
+public final class JsonRedactionPlan {
+
+    private static final Pattern SIMPLE_PATH = Pattern.compile("[A-Z][A-Za-z0-9]*(\\.[a-z][A-Za-z0-9]*)+");
+
+    private final Map<String, Node> byResourceType = new HashMap<>();
+    private final Set<String> redactedTypes = new HashSet<>();
+    private boolean redactsAllTypes;
+
+    private JsonRedactionPlan() {
+    }
+
+    /**
+     * Compiles expressions that apply to resources of any type.
+     *
+     * @param context     the FHIR context of the resource version
+     * @param expressions the blacklist FHIRPath expressions
+     * @return the plan, or null if at least one expression is not a simple path
+     */
+    static JsonRedactionPlan compile(FhirContext context, Collection<String> expressions) {
+        JsonRedactionPlan plan = new JsonRedactionPlan();
+        plan.redactsAllTypes = !expressions.isEmpty();
+        for (String expression : expressions) {
+            if (!plan.add(context, expression, null)) {
+                return null;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Compiles the blacklist expressions of a policy, routed like the model based redaction: a resource is only
+     * redacted with the expressions of the rules of its type and of the wildcard rules.
+     *
+     * @param context the FHIR context of the resource version
+     * @param policy  the compiled policy
+     * @return the plan, or null if at least one expression is not a simple path
+     */
+    static JsonRedactionPlan compile(FhirContext context, CompiledPolicy policy) {
+        JsonRedactionPlan plan = new JsonRedactionPlan();
+        for (PermissionRule rule : policy.getRules()) {
+            if (rule.getBlacklistExpressions().isEmpty()) continue;
+
+            String resourceType = CompiledPolicy.WILDCARD.equals(rule.getResourceType()) ? null : rule.getResourceType();
+            if (resourceType == null) {
+                plan.redactsAllTypes = true;
+            } else {
+                plan.redactedTypes.add(resourceType);
+            }
+            for (String expression : rule.getBlacklistExpressions()) {
+                if (!plan.add(context, expression, resourceType)) {
+                    return null;
+                }
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @param resourceType a resource type
+     * @return true if resources of that type are redacted, their narrative being removed
+     */
+    boolean redacts(String resourceType) {
+        return redactsAllTypes || redactedTypes.contains(resourceType);
+    }
+
+    /**
+     * @param resourceType a resource type
+     * @return the root of the properties to remove from resources of that type, null if none
+     */
+    Node forResourceType(String resourceType) {
+        return byResourceType.get(resourceType);
+    }
+
+    /**
+     * @param ruleType the type of the resources the expression is evaluated on, null for any type
+     * @return false if the expression is not a simple path
+     */
+    private boolean add(FhirContext context, String expression, String ruleType) {
+        if (expression == null) return false;
+        expression = expression.trim();
+        if (!SIMPLE_PATH.matcher(expression).matches()) return false;
+
+        String[] segments = expression.split("\\.");
+        List<Set<String>> path = resolve(context, segments);
+        if (path == null) return false;
+        // Evaluated on resources of another type, the expression selects nothing
+        if (ruleType != null && !ruleType.equals(segments[0])) return true;
+
+        Node node = byResourceType.computeIfAbsent(segments[0], type -> new Node());
+        for (Set<String> names : path) {
+            Node next = node.children.get(names.iterator().next());
+            if (next == null) {
+                next = new Node();
+            }
+            for (String name : names) {
+                node.children.putIfAbsent(name, next);
+                node.children.putIfAbsent("_" + name, next);
+            }
+            node = next;
+        }
+        node.removed = true;
+        return true;
+    }
+
+    /**
+     * @return the JSON property names of each element of the path, or null if the path is not supported
+     */
+    private static List<Set<String>> resolve(FhirContext context, String[] segments) {
+        RuntimeResourceDefinition resourceDefinition;
+        try {
+            resourceDefinition = context.getResourceDefinition(segments[0]);
+        } catch (DataFormatException e) {
+            return null;
+        }
+
+        List<Set<String>> path = new ArrayList<>(segments.length - 1);
+        BaseRuntimeElementCompositeDefinition<?> definition = resourceDefinition;
+        for (int i = 1; i < segments.length; i++) {
+            BaseRuntimeChildDefinition child = childOf(definition, segments[i]);
+            if (child == null) return null;
+
+            Set<String> names = child.getValidChildNames();
+            if (i < segments.length - 1) {
+                // Only descend into plain complex elements: not into choices, primitives or resources
+                BaseRuntimeElementDefinition<?> childDefinition = names.size() == 1
+                        ? child.getChildByName(names.iterator().next())
+                        : null;
+                if (!(childDefinition instanceof BaseRuntimeElementCompositeDefinition)
+                        || childDefinition instanceof RuntimeResourceDefinition) {
+                    return null;
+                }
+                definition = (BaseRuntimeElementCompositeDefinition<?>) childDefinition;
+            }
+            path.add(names);
+        }
+        return path;
+    }
+
+    private static BaseRuntimeChildDefinition childOf(BaseRuntimeElementCompositeDefinition<?> definition, String elementName) {
+        for (BaseRuntimeChildDefinition child : definition.getChildrenAndExtension()) {
+            if (elementName.equals(child.getElementName())) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * JSON properties of an element: either removed entirely, or filtered through the nodes of their children.
+     */
+    static final class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+        private boolean removed;
+
+        /**
+         * @param propertyName a JSON property name of this element
+         * @return the node of the property, null if nothing is removed below it
+         */
+        Node child(String propertyName) {
+            return children.get(propertyName);
+        }
+
+        boolean isRemoved() {
+            return removed;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.fyrstain.fhir.security.core;
 
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
 import com.fyrstain.fhir.security.core.model.FhirResponse;
 import com.fyrstain.fhir.security.core.model.PermissionOperation;
 import com.fyrstain.fhir.security.core.model.PermissionRule;
@@ -11,6 +12,51 @@ import java.util.Map;
 public interface PermissionEvaluator {
     List<PermissionRule> compileRules(List<IBaseResource> permissionResources);
     boolean canPerform(String resourceType, PermissionOperation operation, List<PermissionRule> rules);
+
+    /**
+     * Adds the search expressions of the rules allowing the resource type to the parameters of a search.
+     * <p>
+     * When no rule adds parameters, the given map itself is returned rather than a copy: changing the result then
+     * changes the parameters of the request. The result is otherwise a new mutable map, including when the given
+     * parameters are null.
+     *
+     * @param resourceType     the searched resource type
+     * @param searchParameters the parameters of the request, may be null. Never modified by this method.
+     * @param rules            the compiled rules of the user
+     * @return the parameters to search with
+     */
     Map<String, List<String>> updateSearchParameters(String resourceType, Map<String, List<String>>searchParameters, List<PermissionRule> rules);
+
     FhirResponse filterResponse(FhirResponse response, List<PermissionRule> rules);
+
+    /**
+     * Compiles Permission resources into an indexed {@link CompiledPolicy}.
+     */
+    default CompiledPolicy compilePolicy(List<IBaseResource> permissionResources) {
+        return new CompiledPolicy(compileRules(permissionResources));
+    }
+
+    default boolean canPerform(String resourceType, PermissionOperation operation, CompiledPolicy policy) {
+        return policy.canPerform(resourceType, operation);
+    }
+
+    /**
+     * Same as {@link #canPerform(String, PermissionOperation, CompiledPolicy)} with a resource type id from
+     * {@link com.fyrstain.fhir.security.core.model.ResourceTypes}.
+     */
+    default boolean canPerform(int resourceTypeId, PermissionOperation operation, CompiledPolicy policy) {
+        return policy.canPerform(resourceTypeId, operation);
+    }
+
+    /**
+     * Same as {@link #updateSearchParameters(String, Map, List)} with a compiled policy, including when the given map is
+     * returned as is.
+     */
+    default Map<String, List<String>> updateSearchParameters(String resourceType, Map<String, List<String>> searchParameters, CompiledPolicy policy) {
+        return updateSearchParameters(resourceType, searchParameters, policy.getRules());
+    }
+
+    default FhirResponse filterResponse(FhirResponse response, CompiledPolicy policy) {
+        return filterResponse(response, policy.getRules());
+    }
 }
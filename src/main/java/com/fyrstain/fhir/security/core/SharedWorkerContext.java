@@ -0,0 +1,88 @@
+package com.fyrstain.fhir.security.core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Worker context of one FHIR version (e.g. HAPI {@code SimpleWorkerContext}), built once on first use and shared by all
+ * the engines of that version.
+ * <p>
+ * Building a worker context loads structure definitions and takes from one to several seconds. Nothing is built when
+ * the class holding this context is loaded: the first call to {@link #get()} builds it, and concurrent callers wait for
+ * that build instead of starting their own. {@link #warmUp()} starts the build on a daemon thread, e.g. on startup, so
+ * that the first request does not pay for it. A failed build is not retried, every call to {@link #get()} rethrowing
+ * its failure.
+ *
+ * @param <C> the worker context type
+ */
+public final class SharedWorkerContext<C> {
+
+    private final String name;
+    private final Callable<C> factory;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final CompletableFuture<C> context = new CompletableFuture<>();
+    private volatile C value;
+
+    /**
+     * @param name    names the context in thread names and errors, e.g. the FHIR version
+     * @param factory builds the context
+     */
+    public SharedWorkerContext(String name, Callable<C> factory) {
+        this.name = name;
+        this.factory = factory;
+    }
+
+    /**
+     * Returns the context, building it in the calling thread if nobody started to, or waiting for the build in progress.
+     *
+     * @throws IllegalStateException if the context could not be built
+     */
+    public C get() {
+        C built = value;
+        if (built != null) {
+            return built;
+        }
+        build();
+        try {
+            return context.join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("Cannot build the " + name + " worker context", e.getCause());
+        }
+    }
+
+    /**
+     * Starts building the context on a daemon thread, unless it is already built or being built.
+     *
+     * @return completed with the context once built
+     */
+    public CompletableFuture<C> warmUp() {
+        if (!started.get()) {
+            Thread thread = new Thread(this::build, name + "-worker-context");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return context.copy();
+    }
+
+    /**
+     * @return true once the context is built
+     */
+    public boolean isInitialized() {
+        return value != null;
+    }
+
+    private void build() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            value = factory.call();
+            context.complete(value);
+        } catch (Throwable e) {
+            // Callers waiting for the build must not hang, whatever the failure
+            context.completeExceptionally(e);
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package com.fyrstain.fhir.security.core;
 
+import com.fyrstain.fhir.security.core.cache.PermissionFragmentCache;
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
 import com.fyrstain.fhir.security.core.model.PermissionOperation;
 import com.fyrstain.fhir.security.core.model.PermissionRule;
+import com.fyrstain.fhir.security.core.model.ResourceTypes;
+import com.fyrstain.fhir.security.core.model.SearchFragment;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r5.model.CodeType;
 import org.hl7.fhir.r5.model.Permission;
@@ -18,6 +22,22 @@ public abstract class SimplePermissionEvaluator implements PermissionEvaluator {
 
     private static final Logger logger = LoggerFactory.getLogger(SimplePermissionEvaluator.class);
 
+    private final PermissionFragmentCache fragmentCache;
+
+    /**
+     * Creates an evaluator with a default {@link PermissionFragmentCache}.
+     */
+    protected SimplePermissionEvaluator() {
+        this(new PermissionFragmentCache());
+    }
+
+    /**
+     * @param fragmentCache cache of compiled rules per Permission resource, shared by all users of this evaluator.
+     */
+    protected SimplePermissionEvaluator(PermissionFragmentCache fragmentCache) {
+        this.fragmentCache = fragmentCache;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -33,129 +53,199 @@ public abstract class SimplePermissionEvaluator implements PermissionEvaluator {
                 logger.warn("Ignoring inactive Permission {}", ((Permission) resource).getIdPart());
                 continue;
             }
+            rules.addAll(fragmentCache.get((Permission) resource, this::compilePermission));
+        }
+        return rules;
+    }
+
+    /**
+     * Compiles the rules of a single active Permission resource.
+     *
+     * @param permission the Permission to compile
+     * @return the compiled rules, one per resource type and rule
+     */
+    protected List<PermissionRule> compilePermission(Permission permission) {
+        List<PermissionRule> rules = new ArrayList<>();
+        String permitOverridesGroup = permitOverridesGroupOf(permission);
 
-            //TODO See for combining element (deny-overrides, permit-overrides, etc)
+        // For active subscription, loop on rules and add a new rule for each resource mentioned
+        for (Permission.RuleComponent rule : permission.getRule()) {
+            boolean allow = rule.getType().equals(PERMIT);
 
-            // For active subscription, loop on rules and add a new rule for each resource mentioned
-            for (Permission.RuleComponent rule : ((Permission) resource).getRule()) {
-                boolean allow = rule.getType().equals(PERMIT);
+            Map<String, List<String>> filters = new HashMap<>();
+            Map<String, List<String>> searches = new HashMap<>();
 
-                Map<String, List<String>> filters = new HashMap<>();
-                Map<String, List<String>> searches = new HashMap<>();
+            rule.getData().forEach(data -> {
+                data.getResource().forEach(dataResource -> {
+                    //Only instance is supported here
+                    if (!dataResource.getMeaning().equals(INSTANCE)) {
+                        logger.warn("Ignoring rule in Permission {} that is not for a resource INSTANCE (not supported {})",
+                                permission.getIdPart(), dataResource.getMeaning());
+                        return;
+                    }
 
-                rule.getData().forEach(data -> {
-                    data.getResource().forEach(dataResource -> {
-                        //Only instance is supported here
-                        if (!dataResource.getMeaning().equals(INSTANCE)) {
-                            logger.warn("Ignoring rule in Permission {} that is not for a resource INSTANCE (not supported {})",
-                                    ((Permission) resource).getIdPart(), dataResource.getMeaning());
-                            return;
-                        }
+                    //Add resource types as displayed in the resource reference
+                    Optional.ofNullable(dataResource.getReference().getDisplay())
+                            .ifPresent(type -> {
+                                filters.putIfAbsent(type, new ArrayList<>());
+                                searches.putIfAbsent(type, new ArrayList<>());
+                            });
 
-                        //Add resource types as displayed in the resource reference
-                        Optional.ofNullable(dataResource.getReference().getDisplay())
-                                .ifPresent(type -> {
-                                    filters.putIfAbsent(type, new ArrayList<>());
-                                    searches.putIfAbsent(type, new ArrayList<>());
-                                });
-
-                        //Only support whitelisting instances for now.
-                        //Only support x-fhir-queries for now.
-                        if (allow
-                                && dataResource.getReference().getDisplay() != null
-                                && data.hasExpression()
-                                && data.getExpression().hasLanguage()
-                                && "application/x-fhir-query".equals(data.getExpression().getLanguage())) {
-                            List<String> expressions = searches.get(dataResource.getReference().getDisplay());
-                            if (expressions != null && data.getExpression().hasExpression()) {
-                                expressions.add(data.getExpression().getExpression());
-                            }
+                    //Only support whitelisting instances for now.
+                    //Only support x-fhir-queries for now.
+                    if (allow
+                            && dataResource.getReference().getDisplay() != null
+                            && data.hasExpression()
+                            && data.getExpression().hasLanguage()
+                            && "application/x-fhir-query".equals(data.getExpression().getLanguage())) {
+                        List<String> expressions = searches.get(dataResource.getReference().getDisplay());
+                        if (expressions != null && data.getExpression().hasExpression()) {
+                            expressions.add(data.getExpression().getExpression());
                         }
+                    }
 
-                        //Only support blacklisting elements for now.
-                        //Only support FHIRPath for now.
-                        if (!allow
-                                && dataResource.getReference().getDisplay() != null
-                                && data.hasExpression()
-                                && data.getExpression().hasLanguage()
-                                && "text/fhirpath".equals(data.getExpression().getLanguage())) {
-                            List<String> expressions = filters.get(dataResource.getReference().getDisplay());
-                            if (expressions != null && data.getExpression().hasExpression()) {
-                                expressions.add(data.getExpression().getExpression());
-                            }
+                    //Only support blacklisting elements for now.
+                    //Only support FHIRPath for now.
+                    if (!allow
+                            && dataResource.getReference().getDisplay() != null
+                            && data.hasExpression()
+                            && data.getExpression().hasLanguage()
+                            && "text/fhirpath".equals(data.getExpression().getLanguage())) {
+                        List<String> expressions = filters.get(dataResource.getReference().getDisplay());
+                        if (expressions != null && data.getExpression().hasExpression()) {
+                            expressions.add(data.getExpression().getExpression());
                         }
-                    });
+                    }
                 });
+            });
 
-                EnumSet<PermissionOperation> operations = EnumSet.noneOf(PermissionOperation.class);
-
-                // Get all codes from rule.activity.action to define restricted operations
-                for (CodeType code : rule.getActivity().stream()
-                        .flatMap(a -> a.getAction().stream())
-                        .flatMap(a -> a.getCoding().stream())
-                        .map(c -> new CodeType(c.getCode()))
-                        .collect(Collectors.toList())) {
-                    switch (code.getValue().toLowerCase()) {
-                        case "metadata":
-                            operations.add(PermissionOperation.METADATA);
-                            break;
-                        case "read":
-                            operations.add(PermissionOperation.READ);
-                            break;
-                        case "search":
-                            operations.add(PermissionOperation.SEARCH);
-                            break;
-                        case "create":
-                            operations.add(PermissionOperation.CREATE);
-                            break;
-                        case "update":
-                            operations.add(PermissionOperation.UPDATE);
-                            break;
-                        case "delete":
-                            operations.add(PermissionOperation.DELETE);
-                            break;
-                        case "patch":
-                            operations.add(PermissionOperation.PATCH);
-                            break;
-                        default:
-                            operations.add(PermissionOperation.CUSTOM);
-                    }
-                }
+            EnumSet<PermissionOperation> operations = EnumSet.noneOf(PermissionOperation.class);
 
-                //Create a permission rule for operations for each resource type found in rule.data
-                filters.forEach((resourceType, expressions) ->
-                        rules.add(new PermissionRule(resourceType, operations, allow,
-                                expressions, searches.get(resourceType) != null ? searches.get(resourceType) : List.of())));
+            // Get all codes from rule.activity.action to define restricted operations
+            for (CodeType code : rule.getActivity().stream()
+                    .flatMap(a -> a.getAction().stream())
+                    .flatMap(a -> a.getCoding().stream())
+                    .map(c -> new CodeType(c.getCode()))
+                    .collect(Collectors.toList())) {
+                switch (code.getValue().toLowerCase()) {
+                    case "metadata":
+                        operations.add(PermissionOperation.METADATA);
+                        break;
+                    case "read":
+                        operations.add(PermissionOperation.READ);
+                        break;
+                    case "search":
+                        operations.add(PermissionOperation.SEARCH);
+                        break;
+                    case "create":
+                        operations.add(PermissionOperation.CREATE);
+                        break;
+                    case "update":
+                        operations.add(PermissionOperation.UPDATE);
+                        break;
+                    case "delete":
+                        operations.add(PermissionOperation.DELETE);
+                        break;
+                    case "patch":
+                        operations.add(PermissionOperation.PATCH);
+                        break;
+                    default:
+                        operations.add(PermissionOperation.CUSTOM);
+                }
             }
+
+            //Create a permission rule for operations for each resource type found in rule.data
+            filters.forEach((resourceType, expressions) ->
+                    rules.add(new PermissionRule(resourceType, operations, allow,
+                            expressions, searches.get(resourceType) != null ? searches.get(resourceType) : List.of(),
+                            permitOverridesGroup)));
         }
+
+        //Parse blacklist expressions once, instead of once per filtered resource
+        rules.replaceAll(this::parseExpressions);
         return rules;
     }
 
+    /**
+     * Maps {@code Permission.combining} to the rule group of the Permission. Rules only decide the resource types and
+     * operations they mention, so over those:
+     * <ul>
+     *     <li>deny-overrides, ordered-deny-overrides and permit-unless-deny (the default) all mean that a deny wins:
+     *     rules need no group, as every rule of the policy is combined that way;</li>
+     *     <li>permit-overrides, ordered-permit-overrides and deny-unless-permit mean that a permit wins: rules are grouped
+     *     by Permission (versions of a Permission share their group).</li>
+     * </ul>
+     * The defaults of the "unless" algorithms are not applied: what a Permission does not mention stays undecided by
+     * it, and is denied unless another Permission allows it. Deny-unless-permit therefore behaves as permit-overrides,
+     * which denies by default anyway, but permit-unless-deny permits nothing by default, so it is logged.
+     *
+     * @param permission the Permission
+     * @return the group of its rules, or null if its denials override its permits
+     */
+    protected String permitOverridesGroupOf(Permission permission) {
+        if (!permission.hasCombining()) return null;
+        switch (permission.getCombining()) {
+            case PERMITOVERRIDES:
+            case ORDEREDPERMITOVERRIDES:
+            case DENYUNLESSPERMIT:
+                return permission.hasIdElement() && permission.getIdElement().hasIdPart()
+                        ? "Permission/" + permission.getIdElement().getIdPart()
+                        : PermissionFragmentCache.keyOf(permission);
+            case PERMITUNLESSDENY:
+                logger.warn("Permission {} is permit-unless-deny: only what its rules mention is decided, nothing is permitted by default",
+                        permission.hasIdElement() ? permission.getIdElement().getIdPart() : null);
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Attaches to a rule its blacklist expressions parsed by {@link #parseBlacklistExpressions(List)}, e.g. for rules
+     * read from a {@link com.fyrstain.fhir.security.core.cache.PolicySnapshot} rather than compiled.
+     *
+     * @param rule the rule
+     * @return the rule with parsed expressions, or the given rule if it has none or the evaluator does not parse them
+     */
+    public PermissionRule parseExpressions(PermissionRule rule) {
+        if (rule.getBlacklistExpressions().isEmpty()) return rule;
+        List<?> parsed = parseBlacklistExpressions(rule.getBlacklistExpressions());
+        return parsed != null ? rule.withParsedBlacklistExpressions(parsed) : rule;
+    }
+
+    /**
+     * Parses blacklist expressions at compile time, for the FHIR version the evaluator filters responses with.
+     *
+     * @param expressions the FHIRPath expressions
+     * @return the parsed expressions (invalid ones left out), or null if the evaluator does not pre-parse expressions.
+     */
+    protected List<?> parseBlacklistExpressions(List<String> expressions) {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
     @Override
     public Map<String, List<String>> updateSearchParameters(String resourceType, Map<String, List<String>> searchParameters, List<PermissionRule> rules) {
-        HashMap<String, List<String>> updatedSearchParameters = searchParameters != null ? new HashMap<>(searchParameters) : new HashMap<>();
+        List<SearchFragment> fragments = null;
 
         // Only support whitelist for now
-        rules.stream().filter(PermissionRule::isAllow)
-                .filter(PermissionRule::hasSearchExpressions)
-                .filter(p -> p.getResourceType().equals(resourceType))
-                .flatMap(r -> r.getSearchExpressions().stream())
-                .forEach(expression -> {
-                    if (expression != null && !expression.isEmpty()) {
-                        String[] pairs = expression.split("&");
-
-                        for (String pair : pairs) {
-                            String[] parts = pair.split("=", 2); // only split on first '='
-                            String key = parts[0].trim();
-                            String value = parts.length > 1 ? parts[1].trim() : "";
-                            if (!value.isEmpty()) {
-                                String[] spValues = value.split(",");
-                                updatedSearchParameters.computeIfAbsent(key, k -> new ArrayList<>()).addAll(List.of(spValues));
-                            }
-                        }
-                    }
-                });
-        return updatedSearchParameters;
+        for (PermissionRule rule : rules) {
+            if (rule.isAllow() && rule.hasSearchExpressions() && rule.getResourceType().equals(resourceType)) {
+                if (fragments == null) fragments = new ArrayList<>();
+                fragments.add(rule.getSearchFragment());
+            }
+        }
+        return fragments == null ? SearchFragment.EMPTY.applyTo(searchParameters) : SearchFragment.merge(fragments).applyTo(searchParameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, List<String>> updateSearchParameters(String resourceType, Map<String, List<String>> searchParameters, CompiledPolicy policy) {
+        return policy.getSearchFragment(ResourceTypes.idOf(resourceType)).applyTo(searchParameters);
     }
 
     /**
@@ -167,6 +257,24 @@ public abstract class SimplePermissionEvaluator implements PermissionEvaluator {
         if (rules.isEmpty()) {
             return false;
         }
-        return rules.stream().noneMatch(r -> r.denies(resourceType, op)) && rules.stream().anyMatch(r -> r.allows(resourceType, op));
+        boolean allowed = false;
+        Map<String, Boolean> permittedByGroup = null;
+        for (PermissionRule rule : rules) {
+            String group = rule.getPermitOverridesGroup();
+            if (rule.allows(resourceType, op)) {
+                allowed = true;
+                if (group != null) {
+                    if (permittedByGroup == null) permittedByGroup = new HashMap<>();
+                    permittedByGroup.put(group, Boolean.TRUE);
+                }
+            } else if (rule.denies(resourceType, op)) {
+                //Deny-overrides: no need to look further
+                if (group == null) return false;
+                if (permittedByGroup == null) permittedByGroup = new HashMap<>();
+                permittedByGroup.putIfAbsent(group, Boolean.FALSE);
+            }
+        }
+        //Permit-overrides: a group denies only what none of its rules allows
+        return allowed && (permittedByGroup == null || !permittedByGroup.containsValue(Boolean.FALSE));
     }
 }
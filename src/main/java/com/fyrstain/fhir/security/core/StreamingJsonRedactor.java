@@ -0,0 +1,372 @@
+package com.fyrstain.fhir.security.core;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.parser.DataFormatException;
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.PolicyFingerprint;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import org.hl7.fhir.instance.model.api.IDomainResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Applies blacklist expressions to FHIR JSON as a token stream, without building the HAPI resource model.
+ * <p>
+ * The result is the same as the model based redaction ({@code FilterUtils}): the narrative of redacted resources is
+ * removed, Bundle entries are redacted one by one, and contained resources are left as they are. Only the simple
+ * paths of {@link JsonRedactionPlan} are supported; callers fall back to the model when {@link #redact(String,
+ * Collection)} returns null. Memory use only depends on the nesting depth of the JSON, not on its size. Elements left
+ * empty by the redaction are not written, as FHIR JSON does not allow empty objects.
+ */
+public class StreamingJsonRedactor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamingJsonRedactor.class);
+
+    private static final JsonFactory JSON_FACTORY = JsonFactory.builder()
+            .disable(StreamReadFeature.AUTO_CLOSE_SOURCE)
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
+
+    private static final String RESOURCE_TYPE_KEY = "\"resourceType\"";
+
+    /**
+     * Maximum number of policies whose redaction plan is kept.
+     */
+    public static final int PLAN_CACHE_SIZE = 1_000;
+
+    private static final Object NO_PLAN = new Object();
+
+    private final FhirContext context;
+    // Plans by policy fingerprint, NO_PLAN for policies that cannot be redacted here
+    private final Map<PolicyFingerprint, Object> plans = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PolicyFingerprint, Object> eldest) {
+            return size() > PLAN_CACHE_SIZE;
+        }
+    };
+
+    public StreamingJsonRedactor(FhirContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Checks whether JSON contains a resource of a type accepted by the filter, by looking for its
+     * {@code "resourceType"} properties without parsing it. An unescaped {@code "resourceType"} followed by a colon can
+     * only be a property name, so string values never match. The Bundle itself and contained resources are included,
+     * and anything unexpected counts as a match: the answer errs on the side of redaction.
+     *
+     * @param json   the resource (or Bundle) as JSON
+     * @param filter tests resource types
+     * @return true if a resource type is accepted, or if the JSON cannot be scanned
+     */
+    public static boolean anyResourceType(String json, Predicate<String> filter) {
+        int from = 0;
+        while ((from = json.indexOf(RESOURCE_TYPE_KEY, from)) >= 0) {
+            from += RESOURCE_TYPE_KEY.length();
+            int colon = skipWhitespace(json, from);
+            if (colon >= json.length() || json.charAt(colon) != ':') continue;
+
+            int start = skipWhitespace(json, colon + 1);
+            int end = start < json.length() && json.charAt(start) == '"' ? json.indexOf('"', start + 1) : -1;
+            if (end < 0) return true;
+            String resourceType = json.substring(start + 1, end);
+            if (resourceType.indexOf('\\') >= 0 || filter.test(resourceType)) return true;
+        }
+        return false;
+    }
+
+    private static int skipWhitespace(String json, int index) {
+        while (index < json.length() && Character.isWhitespace(json.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Compiles blacklist expressions for this redactor's FHIR version.
+     *
+     * @param expressions the blacklist FHIRPath expressions
+     * @return the plan, or null if at least one expression is not a simple path
+     */
+    public JsonRedactionPlan compile(Collection<String> expressions) {
+        return JsonRedactionPlan.compile(context, expressions);
+    }
+
+    /**
+     * Compiles the blacklist expressions of a policy for this redactor's FHIR version, see
+     * {@link JsonRedactionPlan#compile(FhirContext, CompiledPolicy)}. Plans are cached by policy fingerprint, so
+     * equivalent policies share one plan.
+     *
+     * @param policy the compiled policy
+     * @return the plan, or null if at least one expression is not a simple path
+     */
+    public JsonRedactionPlan compile(CompiledPolicy policy) {
+        PolicyFingerprint fingerprint = policy.getFingerprint();
+        Object plan;
+        synchronized (plans) {
+            plan = plans.get(fingerprint);
+        }
+        if (plan == null) {
+            plan = JsonRedactionPlan.compile(context, policy);
+            if (plan == null) {
+                plan = NO_PLAN;
+            }
+            synchronized (plans) {
+                plans.put(fingerprint, plan);
+            }
+        }
+        return plan == NO_PLAN ? null : (JsonRedactionPlan) plan;
+    }
+
+    /**
+     * Removes the elements matched by the blacklist expressions of the policy from a JSON resource, each resource
+     * being only redacted with the expressions of its type (and of the wildcard rules).
+     *
+     * @param json   the resource (or Bundle) as JSON
+     * @param policy the compiled policy
+     * @return the redacted JSON, or null if the expressions or the JSON cannot be handled here and the model based
+     * redaction must be used instead
+     */
+    public String redact(String json, CompiledPolicy policy) {
+        if (json == null) return null;
+
+        return redact(json, compile(policy));
+    }
+
+    /**
+     * Removes the elements matched by the expressions from a JSON resource, whatever its type.
+     *
+     * @param json        the resource (or Bundle) as JSON
+     * @param expressions the blacklist FHIRPath expressions
+     * @return the redacted JSON, the input itself if there is no expression, or null if the expressions or the JSON
+     * cannot be handled here and the model based redaction must be used instead
+     */
+    public String redact(String json, Collection<String> expressions) {
+        if (json == null) return null;
+        if (expressions == null || expressions.isEmpty()) return json;
+
+        return redact(json, compile(expressions));
+    }
+
+    private String redact(String json, JsonRedactionPlan plan) {
+        if (plan == null) return null;
+
+        StringWriter out = new StringWriter(json.length());
+        try {
+            redact(plan, new StringReader(json), out);
+        } catch (IOException e) {
+            LOGGER.debug("Falling back to model based redaction: {}", e.getMessage());
+            return null;
+        }
+        return out.toString();
+    }
+
+    /**
+     * Streams a JSON resource from {@code in} to {@code out}, removing the elements of the plan. Neither stream is
+     * closed.
+     *
+     * @param plan the compiled expressions, see {@link #compile(Collection)}
+     * @param in   the resource (or Bundle) as JSON
+     * @param out  where the redacted JSON is written
+     * @throws IOException if the JSON is invalid, or is not a resource starting with its {@code resourceType} (in
+     *                     which case part of the output may already have been written)
+     */
+    public void redact(JsonRedactionPlan plan, Reader in, Writer out) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(in);
+             JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected a JSON resource");
+            }
+            copyResource(plan, parser, new Output(generator), null);
+            if (parser.nextToken() != null) {
+                throw new JsonParseException(parser, "Unexpected content after the resource");
+            }
+        }
+    }
+
+    private void copyResource(JsonRedactionPlan plan, JsonParser parser, Output output, String fieldName) throws IOException {
+        if (parser.nextToken() != JsonToken.FIELD_NAME || !"resourceType".equals(parser.currentName())
+                || parser.nextToken() != JsonToken.VALUE_STRING) {
+            throw new JsonParseException(parser, "resourceType must be the first property of a resource");
+        }
+        String resourceType = parser.getText();
+        RuntimeResourceDefinition definition;
+        try {
+            definition = context.getResourceDefinition(resourceType);
+        } catch (DataFormatException e) {
+            throw new JsonParseException(parser, "Unknown resource type " + resourceType);
+        }
+        boolean dropNarrative = IDomainResource.class.isAssignableFrom(definition.getImplementingClass())
+                && plan.redacts(resourceType);
+        boolean bundle = "Bundle".equals(resourceType);
+        // Like the model based redaction, expressions apply to the entries of a Bundle but not to the Bundle itself
+        JsonRedactionPlan.Node node = bundle ? null : plan.forResourceType(resourceType);
+
+        output.startObject(fieldName);
+        output.writeString("resourceType", resourceType);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            parser.nextToken();
+            if (dropNarrative && "text".equals(name)) {
+                parser.skipChildren();
+            } else if (bundle && "entry".equals(name) && parser.currentToken() == JsonToken.START_ARRAY) {
+                copyEntries(plan, parser, output);
+            } else {
+                copyValue(parser, output, name, node != null ? node.child(name) : null);
+            }
+        }
+        output.end();
+    }
+
+    private void copyEntries(JsonRedactionPlan plan, JsonParser parser, Output output) throws IOException {
+        output.startArray("entry");
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                copyValue(parser, output, null, null);
+                continue;
+            }
+            output.startObject(null);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                if (parser.nextToken() == JsonToken.START_OBJECT && "resource".equals(name)) {
+                    copyResource(plan, parser, output, name);
+                } else {
+                    copyValue(parser, output, name, null);
+                }
+            }
+            output.end();
+        }
+        output.end();
+    }
+
+    private static void copyValue(JsonParser parser, Output output, String name, JsonRedactionPlan.Node node) throws IOException {
+        if (node != null && node.isRemoved()) {
+            parser.skipChildren();
+            return;
+        }
+        switch (parser.currentToken()) {
+            case START_OBJECT:
+                output.startObject(name);
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String childName = parser.currentName();
+                    parser.nextToken();
+                    copyValue(parser, output, childName, node != null ? node.child(childName) : null);
+                }
+                output.end();
+                break;
+            case START_ARRAY:
+                // The node of an array applies to each of its items
+                output.startArray(name);
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    copyValue(parser, output, null, node);
+                }
+                output.end();
+                break;
+            default:
+                output.writeScalar(name, parser);
+        }
+    }
+
+    /**
+     * Writes objects and arrays lazily, once they have a value, so that the ones left empty are dropped.
+     */
+    private static final class Output {
+
+        private final JsonGenerator generator;
+        private final List<String> names = new ArrayList<>();
+        private final List<Boolean> arrays = new ArrayList<>();
+        private int written; // the first "written" open objects/arrays have been written
+
+        Output(JsonGenerator generator) {
+            this.generator = generator;
+        }
+
+        void startObject(String name) {
+            names.add(name);
+            arrays.add(Boolean.FALSE);
+        }
+
+        void startArray(String name) {
+            names.add(name);
+            arrays.add(Boolean.TRUE);
+        }
+
+        void end() throws IOException {
+            int last = names.size() - 1;
+            boolean array = arrays.remove(last);
+            names.remove(last);
+            if (last < written) {
+                written = last;
+                if (array) {
+                    generator.writeEndArray();
+                } else {
+                    generator.writeEndObject();
+                }
+            }
+        }
+
+        void writeString(String name, String value) throws IOException {
+            open();
+            generator.writeStringField(name, value);
+        }
+
+        void writeScalar(String name, JsonParser parser) throws IOException {
+            open();
+            if (name != null) {
+                generator.writeFieldName(name);
+            }
+            switch (parser.currentToken()) {
+                case VALUE_STRING:
+                    generator.writeString(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                    break;
+                case VALUE_NUMBER_INT:
+                case VALUE_NUMBER_FLOAT:
+                    // As written, to keep the precision of decimals
+                    generator.writeNumber(parser.getText());
+                    break;
+                case VALUE_TRUE:
+                case VALUE_FALSE:
+                    generator.writeBoolean(parser.getBooleanValue());
+                    break;
+                case VALUE_NULL:
+                    generator.writeNull();
+                    break;
+                default:
+                    throw new JsonParseException(parser, "Unexpected token " + parser.currentToken());
+            }
+        }
+
+        private void open() throws IOException {
+            for (; written < names.size(); written++) {
+                String name = names.get(written);
+                if (name != null) {
+                    generator.writeFieldName(name);
+                }
+                if (arrays.get(written)) {
+                    generator.writeStartArray();
+                } else {
+                    generator.writeStartObject();
+                }
+            }
+        }
+    }
+}
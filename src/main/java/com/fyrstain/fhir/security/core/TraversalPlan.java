@@ -0,0 +1,105 @@
+package com.fyrstain.fhir.security.core;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precomputed way of walking the children of a composite element (resource, datatype or backbone element).
+ * <p>
+ * A plan is built once per HAPI element definition and holds, for each child, its accessor, mutator and cardinality.
+ * The plan of a child value is resolved from its class the first time that class is met, then kept, so walking a
+ * resource does not query the {@link FhirContext} definitions again.
+ */
+final class TraversalPlan {
+
+    /**
+     * Plan of elements without children to walk (primitives).
+     */
+    static final TraversalPlan LEAF = new TraversalPlan(new ChildPlan[0]);
+
+    private static final Map<BaseRuntimeElementCompositeDefinition<?>, TraversalPlan> PLANS = new ConcurrentHashMap<>();
+
+    final ChildPlan[] children;
+
+    private TraversalPlan(ChildPlan[] children) {
+        this.children = children;
+    }
+
+    /**
+     * @return the plan of the given resource type
+     */
+    static TraversalPlan forResource(FhirContext context, IBaseResource resource) {
+        return of(context, context.getResourceDefinition(resource));
+    }
+
+    static TraversalPlan of(FhirContext context, BaseRuntimeElementDefinition<?> definition) {
+        if (!(definition instanceof BaseRuntimeElementCompositeDefinition)) {
+            return LEAF;
+        }
+        return PLANS.computeIfAbsent((BaseRuntimeElementCompositeDefinition<?>) definition, def -> {
+            List<BaseRuntimeChildDefinition> childDefs = def.getChildren();
+            ChildPlan[] children = new ChildPlan[childDefs.size()];
+            for (int i = 0; i < children.length; i++) {
+                children[i] = new ChildPlan(context, childDefs.get(i));
+            }
+            return new TraversalPlan(children);
+        });
+    }
+
+    /**
+     * Plan of one child of a composite element.
+     */
+    static final class ChildPlan {
+
+        final BaseRuntimeChildDefinition.IAccessor accessor;
+        final BaseRuntimeChildDefinition.IMutator mutator;
+        final boolean multiple;
+
+        private final FhirContext context;
+        private final BaseRuntimeChildDefinition definition;
+        private final Map<Class<?>, TraversalPlan> plansByType = new ConcurrentHashMap<>();
+
+        // Most children only ever hold one datatype: remember the last one to skip the map lookup
+        private volatile Resolved last;
+
+        private ChildPlan(FhirContext context, BaseRuntimeChildDefinition definition) {
+            this.context = context;
+            this.definition = definition;
+            this.accessor = definition.getAccessor();
+            this.mutator = definition.getMutator();
+            this.multiple = definition.isMultipleCardinality();
+        }
+
+        /**
+         * @param valueType the class of a value of this child
+         * @return the plan to walk the value, {@link #LEAF} if it has no children
+         */
+        TraversalPlan planFor(Class<?> valueType) {
+            Resolved resolved = last;
+            if (resolved != null && resolved.type == valueType) {
+                return resolved.plan;
+            }
+            TraversalPlan plan = plansByType.computeIfAbsent(valueType, this::resolve);
+            last = new Resolved(valueType, plan);
+            return plan;
+        }
+
+        @SuppressWarnings("unchecked")
+        private TraversalPlan resolve(Class<?> valueType) {
+            BaseRuntimeElementDefinition<?> valueDef = IBaseResource.class.isAssignableFrom(valueType)
+                    ? context.getResourceDefinition((Class<? extends IBaseResource>) valueType)
+                    : definition.getChildElementDefinitionByDatatype((Class<? extends IBase>) valueType);
+            return valueDef != null ? of(context, valueDef) : LEAF;
+        }
+
+        private record Resolved(Class<?> type, TraversalPlan plan) {}
+    }
+}
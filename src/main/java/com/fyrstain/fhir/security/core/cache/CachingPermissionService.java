@@ -0,0 +1,210 @@
+package com.fyrstain.fhir.security.core.cache;
+
+import com.fyrstain.fhir.security.core.AsyncPermissionService;
+import com.fyrstain.fhir.security.core.PermissionService;
+import com.fyrstain.fhir.security.core.model.PermissionContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches the Permission resources of another service, keyed by {@link PermissionContextKey}.
+ * <p>
+ * Loading is single-flight: concurrent misses for the same key share one call to the underlying service, and its
+ * failure is not cached. An entry older than the refresh delay is still served while it is reloaded in the background
+ * (refresh-ahead), until it reaches its time-to-live: from then on callers wait for a new load. Beyond the maximum
+ * number of entries, the entries loaded the longest ago are evicted first. Loads in flight are never evicted, so that
+ * callers keep sharing them: the cache may exceed its maximum while more loads than that are in flight.
+ * <p>
+ * Unlike {@link PolicyCache}, which keeps compiled policies in the engine, this cache sits in front of the permission
+ * store, so it also serves engines or evaluators that do not share a policy cache.
+ */
+public class CachingPermissionService implements PermissionService, AsyncPermissionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachingPermissionService.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+    public static final Duration DEFAULT_TTL = Duration.ofMinutes(5);
+    public static final Duration DEFAULT_REFRESH_AFTER = Duration.ofMinutes(4);
+
+    private final AsyncPermissionService delegate;
+    private final long ttlNanos;
+    private final long refreshAfterNanos;
+    private final int maxEntries;
+    private final LongSupplier clock;
+
+    private final ConcurrentHashMap<PermissionContextKey, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Caches a synchronous service with {@link #DEFAULT_TTL}, {@link #DEFAULT_REFRESH_AFTER} and
+     * {@link #DEFAULT_MAX_ENTRIES}. Its calls run on the executor of {@link AsyncPermissionService#of(PermissionService)}.
+     */
+    public CachingPermissionService(PermissionService delegate) {
+        this(AsyncPermissionService.of(delegate), DEFAULT_TTL, DEFAULT_REFRESH_AFTER, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param delegate     the service to cache
+     * @param ttl          age after which an entry is no longer served
+     * @param refreshAfter age after which an entry is reloaded in the background, while still being served. Equal to
+     *                     (or above) the ttl to disable refresh-ahead.
+     * @param maxEntries   maximum number of cached contexts
+     */
+    public CachingPermissionService(AsyncPermissionService delegate, Duration ttl, Duration refreshAfter, int maxEntries) {
+        this(delegate, ttl, refreshAfter, maxEntries, System::nanoTime);
+    }
+
+    CachingPermissionService(AsyncPermissionService delegate, Duration ttl, Duration refreshAfter, int maxEntries,
+                             LongSupplier clock) {
+        this.delegate = delegate;
+        this.ttlNanos = ttl.toNanos();
+        this.refreshAfterNanos = Math.min(refreshAfter.toNanos(), ttlNanos);
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Blocks while the Permissions are loaded, rethrowing the runtime exceptions of the underlying service.
+     */
+    @Override
+    public List<IBaseResource> getPermissions(PermissionContext context) {
+        try {
+            return getPermissionsAsync(context).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<List<IBaseResource>> getPermissionsAsync(PermissionContext context) {
+        PermissionContextKey key = PermissionContextKey.of(context);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            if (!entry.permissions.isDone()) {
+                // Join the load in flight
+                return entry.permissions.copy();
+            }
+            long age = clock.getAsLong() - entry.loadedAt;
+            if (age < refreshAfterNanos) {
+                return entry.permissions.copy();
+            }
+            if (age < ttlNanos) {
+                refresh(key, context, entry);
+                return entry.permissions.copy();
+            }
+        }
+
+        // Missing or expired: the first caller to replace the entry loads it, the others wait for that load
+        Entry loading = new Entry();
+        Entry winner = entries.compute(key, (k, current) -> current == null || current == entry ? loading : current);
+        if (winner == loading) {
+            load(key, context, loading);
+            evictIfNeeded();
+        }
+        // Callers get copies, so that none of them can cancel or complete the cached future
+        return winner.permissions.copy();
+    }
+
+    /**
+     * Drops the cached Permissions of the given context, e.g. after they were updated.
+     */
+    public void invalidate(PermissionContext context) {
+        entries.remove(PermissionContextKey.of(context));
+    }
+
+    /**
+     * Drops all cached Permissions.
+     */
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void load(PermissionContextKey key, PermissionContext context, Entry entry) {
+        fetch(context).whenComplete((permissions, error) -> {
+            if (error != null) {
+                // Failures are not cached: the next caller loads again
+                entries.remove(key, entry);
+                entry.permissions.completeExceptionally(error);
+            } else {
+                entry.loadedAt = clock.getAsLong();
+                entry.permissions.complete(permissions);
+            }
+        });
+    }
+
+    private void refresh(PermissionContextKey key, PermissionContext context, Entry entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        fetch(context).whenComplete((permissions, error) -> {
+            if (error != null) {
+                // Keep serving the current Permissions until they expire, a later call retries
+                logger.warn("Failed to refresh the Permissions of {}: {}", key, error.getMessage());
+                entry.refreshing.set(false);
+            } else {
+                Entry refreshed = new Entry();
+                refreshed.loadedAt = clock.getAsLong();
+                refreshed.permissions.complete(permissions);
+                entries.replace(key, entry, refreshed);
+            }
+        });
+    }
+
+    private CompletableFuture<List<IBaseResource>> fetch(PermissionContext context) {
+        try {
+            return delegate.getPermissionsAsync(context);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private void evictIfNeeded() {
+        if (entries.size() <= maxEntries) {
+            return;
+        }
+        long now = clock.getAsLong();
+        entries.values().removeIf(e -> e.permissions.isDone() && now - e.loadedAt >= ttlNanos);
+        if (entries.size() <= maxEntries) {
+            return;
+        }
+
+        // Oldest loaded entries first, skipping loads in flight: callers joining them must not start another load
+        List<Map.Entry<PermissionContextKey, Entry>> loaded = new ArrayList<>(entries.size());
+        entries.forEach((key, entry) -> {
+            if (entry.permissions.isDone()) loaded.add(Map.entry(key, entry));
+        });
+        loaded.sort(Comparator.comparingLong(e -> e.getValue().loadedAt));
+        for (int i = 0; i < loaded.size() && entries.size() > maxEntries; i++) {
+            entries.remove(loaded.get(i).getKey(), loaded.get(i).getValue());
+        }
+    }
+
+    private static final class Entry {
+        private final CompletableFuture<List<IBaseResource>> permissions = new CompletableFuture<>();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile long loadedAt;
+    }
+}
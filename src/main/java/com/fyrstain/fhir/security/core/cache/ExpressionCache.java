@@ -0,0 +1,80 @@
+package com.fyrstain.fhir.security.core.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Bounded, thread-safe cache of parsed expressions (e.g. FHIRPath {@code ExpressionNode}s), keyed by their source.
+ * Expressions that fail to parse are remembered as well, so invalid expressions are reported once and not parsed
+ * again on every resource.
+ *
+ * @param <T> the parsed expression type
+ */
+public class ExpressionCache<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExpressionCache.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 1_000;
+
+    private static final Object INVALID = new Object();
+
+    private final Map<String, Object> entries;
+
+    public ExpressionCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public ExpressionCache(int maxEntries) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the parsed expression, parsing it on a miss.
+     *
+     * @param expression the expression source
+     * @param parser     parses the expression, may throw for invalid expressions
+     * @return the parsed expression, or null if it is invalid
+     */
+    @SuppressWarnings("unchecked")
+    public T get(String expression, Function<String, T> parser) {
+        Object parsed;
+        synchronized (entries) {
+            parsed = entries.get(expression);
+        }
+        if (parsed == null) {
+            try {
+                parsed = parser.apply(expression);
+            } catch (Exception e) {
+                LOGGER.error("Failed to parse expression '{}': {}", expression, e.getMessage());
+            }
+            if (parsed == null) {
+                parsed = INVALID;
+            }
+            synchronized (entries) {
+                entries.put(expression, parsed);
+            }
+        }
+        return parsed == INVALID ? null : (T) parsed;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.fyrstain.fhir.security.core.cache;
+
+import com.fyrstain.fhir.security.core.model.PermissionContext;
+
+import java.util.Set;
+
+/**
+ * Cache key built from the parts of a {@link PermissionContext} that select Permission resources.
+ * The token and display name are deliberately left out: two requests from the same user with different
+ * tokens resolve to the same Permissions.
+ *
+ * @param userId         the user identifier
+ * @param roles          the user roles (never null)
+ * @param organizationId the organization identifier
+ */
+public record PermissionContextKey(String userId, Set<String> roles, String organizationId) {
+
+    public PermissionContextKey {
+        roles = roles != null ? Set.copyOf(roles) : Set.of();
+    }
+
+    public static PermissionContextKey of(PermissionContext context) {
+        return new PermissionContextKey(context.getUserId(), context.getRoles(), context.getOrganizationId());
+    }
+}
@@ -0,0 +1,155 @@
+package com.fyrstain.fhir.security.core.cache;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fyrstain.fhir.security.core.model.PermissionRule;
+import org.hl7.fhir.r5.model.Permission;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Content-addressed cache of compiled rules per Permission resource, shared across users.
+ * <p>
+ * A Permission is identified by its id and {@code meta.versionId} when both are present, or by a SHA-256 hash of its
+ * JSON representation otherwise. Versioned Permissions are expected to get a new version whenever they change: a
+ * Permission modified in place without a version bump keeps its previous compilation until evicted. Encoding an
+ * unversioned Permission costs about as much as compiling it: services handing out instances they never modify, like
+ * {@link com.fyrstain.fhir.security.core.FilePermissionService}, register them with {@link #registerImmutable(Permission)}
+ * so that they are hashed once.
+ * <p>
+ * Compiled rules are interned, so identical rules coming from different Permissions share the same instance.
+ */
+public class PermissionFragmentCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private static final FhirContext CONTEXT = FhirContext.forR5Cached();
+    // Content hashes of registered Permissions, by instance: resources do not override equals and hashCode
+    private static final Map<Permission, String> CONTENT_KEYS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final int maxEntries;
+    private final Map<String, List<PermissionRule>> fragments;
+    private final Map<PermissionRule, PermissionRule> interned = new ConcurrentHashMap<>();
+
+    public PermissionFragmentCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries maximum number of compiled Permissions kept. 0 disables caching.
+     */
+    public PermissionFragmentCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.fragments = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<PermissionRule>> eldest) {
+                return size() > PermissionFragmentCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the compiled rules of the Permission, compiling them if needed.
+     *
+     * @param permission the Permission resource
+     * @param compiler   compiles the Permission on a miss
+     * @return an immutable list of compiled rules
+     */
+    public List<PermissionRule> get(Permission permission, Function<Permission, List<PermissionRule>> compiler) {
+        if (maxEntries <= 0) {
+            return intern(compiler.apply(permission));
+        }
+
+        String key = keyOf(permission);
+        synchronized (fragments) {
+            List<PermissionRule> fragment = fragments.get(key);
+            if (fragment != null) {
+                return fragment;
+            }
+        }
+
+        List<PermissionRule> fragment = intern(compiler.apply(permission));
+        synchronized (fragments) {
+            fragments.put(key, fragment);
+        }
+        return fragment;
+    }
+
+    public void invalidateAll() {
+        synchronized (fragments) {
+            fragments.clear();
+        }
+        interned.clear();
+    }
+
+    public int size() {
+        synchronized (fragments) {
+            return fragments.size();
+        }
+    }
+
+    /**
+     * Hashes the content of a Permission once and for all, for the Permissions that will not be modified anymore. Later
+     * calls to {@link #keyOf(Permission)} for this instance reuse the hash, instead of encoding the Permission again.
+     *
+     * @param permission a Permission never modified after this call
+     */
+    public static void registerImmutable(Permission permission) {
+        if (!isVersioned(permission)) {
+            CONTENT_KEYS.put(permission, contentKeyOf(permission));
+        }
+    }
+
+    /**
+     * Computes the identity of a Permission: {@code Permission/id|versionId} when versioned, a content hash otherwise
+     * (computed once for the instances given to {@link #registerImmutable(Permission)}). The Permission is not modified.
+     *
+     * @param permission the Permission
+     * @return its identity
+     */
+    public static String keyOf(Permission permission) {
+        if (isVersioned(permission)) {
+            return "Permission/" + permission.getIdElement().getIdPart() + "|" + permission.getMeta().getVersionId();
+        }
+        String key = CONTENT_KEYS.get(permission);
+        return key != null ? key : contentKeyOf(permission);
+    }
+
+    private static boolean isVersioned(Permission permission) {
+        // hasMeta() first: getMeta() would add an empty Meta to the Permission
+        return permission.hasIdElement() && permission.getIdElement().hasIdPart()
+                && permission.hasMeta() && permission.getMeta().hasVersionId();
+    }
+
+    private static String contentKeyOf(Permission permission) {
+        String json = CONTEXT.newJsonParser().encodeResourceToString(permission);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(json.getBytes(StandardCharsets.UTF_8));
+            return "#" + HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private List<PermissionRule> intern(List<PermissionRule> rules) {
+        //Keep the interning table bounded: dropping it only loses sharing, not correctness
+        if (interned.size() > maxEntries * 4 + 1024) {
+            interned.clear();
+        }
+        List<PermissionRule> result = new ArrayList<>(rules.size());
+        for (PermissionRule rule : rules) {
+            result.add(interned.computeIfAbsent(rule, r -> r));
+        }
+        return List.copyOf(result);
+    }
+}
@@ -0,0 +1,243 @@
+package com.fyrstain.fhir.security.core.cache;
+
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.PermissionContext;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded cache of compiled policies, keyed by {@link PermissionContextKey}.
+ * <p>
+ * Entries expire after a fixed time-to-live. Each entry weighs the number of rules its policy holds (at least 1) and the
+ * least recently used entries are evicted once the total weight exceeds the configured maximum. Loading happens
+ * outside the lock, so two concurrent misses for the same key may both load; the last one wins. A load that started
+ * before an invalidation is not stored, since it may have read the Permissions as they were before the change.
+ * <p>
+ * Stored policies are interned (see {@link PolicyInterner}): users whose policies are equivalent, typically because
+ * they have the same roles, share a single policy instance.
+ */
+public class PolicyCache {
+
+    public static final long DEFAULT_MAX_WEIGHT = 100_000;
+    public static final Duration DEFAULT_TTL = Duration.ofMinutes(5);
+
+    private final long maxWeight;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+    private final PolicyInterner interner = new PolicyInterner();
+
+    private final LinkedHashMap<PermissionContextKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    // Incremented by every invalidation, so that loads started before one are not stored
+    private long generation;
+
+    /**
+     * Creates a cache with {@link #DEFAULT_MAX_WEIGHT} and {@link #DEFAULT_TTL}.
+     */
+    public PolicyCache() {
+        this(DEFAULT_MAX_WEIGHT, DEFAULT_TTL);
+    }
+
+    /**
+     * @param maxWeight maximum total weight (number of rules) kept in the cache. 0 disables caching.
+     * @param ttl       time after which an entry is reloaded.
+     */
+    public PolicyCache(long maxWeight, Duration ttl) {
+        this(maxWeight, ttl, System::nanoTime);
+    }
+
+    PolicyCache(long maxWeight, Duration ttl, LongSupplier clock) {
+        this.maxWeight = maxWeight;
+        this.ttlNanos = ttl.toNanos();
+        this.clock = clock;
+    }
+
+    /**
+     * @return a cache that never stores anything, every lookup calls the loader.
+     */
+    public static PolicyCache disabled() {
+        return new PolicyCache(0, Duration.ZERO);
+    }
+
+    /**
+     * Returns the cached policy for the context, loading and storing it if absent or expired.
+     *
+     * @param context the permission context
+     * @param loader  used to fetch and compile the policy on a miss
+     * @return the compiled policy
+     */
+    public CompiledPolicy get(PermissionContext context, Function<PermissionContext, CompiledPolicy> loader) {
+        if (maxWeight <= 0 || ttlNanos <= 0) {
+            return loader.apply(context);
+        }
+
+        PermissionContextKey key = PermissionContextKey.of(context);
+        long loadGeneration = generation();
+        CompiledPolicy cached = getIfFresh(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        CompiledPolicy policy = interner.intern(loader.apply(context));
+        put(key, policy, loadGeneration);
+        return policy;
+    }
+
+    /**
+     * Same as {@link #get(PermissionContext, Function)} with an asynchronous loader. A cached policy is returned as an
+     * already completed future, and a loaded one is stored once its future completes successfully.
+     *
+     * @param context the permission context
+     * @param loader  used to fetch and compile the policy on a miss
+     * @return the compiled policy
+     */
+    public CompletableFuture<CompiledPolicy> getAsync(PermissionContext context,
+                                                      Function<PermissionContext, CompletableFuture<CompiledPolicy>> loader) {
+        if (maxWeight <= 0 || ttlNanos <= 0) {
+            return loader.apply(context);
+        }
+
+        PermissionContextKey key = PermissionContextKey.of(context);
+        long loadGeneration = generation();
+        CompiledPolicy cached = getIfFresh(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return loader.apply(context).thenApply(loaded -> {
+            CompiledPolicy policy = interner.intern(loaded);
+            put(key, policy, loadGeneration);
+            return policy;
+        });
+    }
+
+    /**
+     * Stores policies loaded elsewhere, e.g. from a {@link PolicySnapshot} on startup. They expire after the ttl like
+     * loaded ones, and are evicted if they do not fit.
+     *
+     * @param policies the policies by key
+     */
+    public void preload(Map<PermissionContextKey, CompiledPolicy> policies) {
+        if (maxWeight <= 0 || ttlNanos <= 0) {
+            return;
+        }
+        long loadGeneration = generation();
+        policies.forEach((key, policy) -> put(key, interner.intern(policy), loadGeneration));
+    }
+
+    /**
+     * @return a copy of the entries that have not expired, from least to most recently used, e.g. to write a
+     * {@link PolicySnapshot}.
+     */
+    public synchronized Map<PermissionContextKey, CompiledPolicy> entries() {
+        long now = clock.getAsLong();
+        Map<PermissionContextKey, CompiledPolicy> fresh = new LinkedHashMap<>();
+        entries.forEach((key, entry) -> {
+            if (now - entry.loadedAt < ttlNanos) {
+                fresh.put(key, entry.policy);
+            }
+        });
+        return fresh;
+    }
+
+    /**
+     * Removes the entry for the given context.
+     */
+    public synchronized void invalidate(PermissionContext context) {
+        generation++;
+        remove(PermissionContextKey.of(context));
+    }
+
+    /**
+     * Removes every entry belonging to the given user, whatever the roles or organization.
+     */
+    public synchronized void invalidateUser(String userId) {
+        generation++;
+        Iterator<Map.Entry<PermissionContextKey, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<PermissionContextKey, Entry> e = it.next();
+            if (userId == null ? e.getKey().userId() == null : userId.equals(e.getKey().userId())) {
+                weight -= e.getValue().weight;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all entries, e.g. after Permission resources were updated.
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    /**
+     * @return the interner of the stored policies
+     */
+    public PolicyInterner getInterner() {
+        return interner;
+    }
+
+    private synchronized CompiledPolicy getIfFresh(PermissionContextKey key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            if (clock.getAsLong() - entry.loadedAt < ttlNanos) {
+                return entry.policy;
+            }
+            remove(key);
+        }
+        return null;
+    }
+
+    private synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * @param loadGeneration the generation read before loading the policy: if an invalidation happened since, the
+     *                       policy may be stale and is not stored
+     */
+    private synchronized void put(PermissionContextKey key, CompiledPolicy policy, long loadGeneration) {
+        if (loadGeneration != generation) {
+            return;
+        }
+        int entryWeight = Math.max(1, policy.getRules().size());
+        if (entryWeight > maxWeight) {
+            return;
+        }
+        remove(key);
+        entries.put(key, new Entry(policy, clock.getAsLong(), entryWeight));
+        weight += entryWeight;
+
+        // Evict least recently used entries until we are back under the limit
+        Iterator<Entry> it = entries.values().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            weight -= it.next().weight;
+            it.remove();
+        }
+    }
+
+    private void remove(PermissionContextKey key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            weight -= removed.weight;
+        }
+    }
+
+    private record Entry(CompiledPolicy policy, long loadedAt, int weight) {}
+}
@@ -0,0 +1,74 @@
+package com.fyrstain.fhir.security.core.cache;
+
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.PolicyFingerprint;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical instances of compiled policies, by {@link PolicyFingerprint}.
+ * <p>
+ * Users with the same roles usually get equivalent policies: interning them makes all these users share one immutable
+ * policy, with its decision table, search fragments and redaction rules, instead of one copy each. Policies are held
+ * weakly, so an interned policy no longer used by any cache is reclaimed like any other object.
+ * <p>
+ * Thread-safe. Two policies are only merged if they have the same rules, so a fingerprint collision can only cost the
+ * sharing, not a wrong decision.
+ */
+public class PolicyInterner {
+
+    private final ConcurrentHashMap<PolicyFingerprint, PolicyReference> policies = new ConcurrentHashMap<>();
+    private final ReferenceQueue<CompiledPolicy> reclaimed = new ReferenceQueue<>();
+
+    /**
+     * Returns the canonical instance of an equivalent policy, which becomes the given one if none is known.
+     *
+     * @param policy a compiled policy
+     * @return the canonical policy, equivalent to the given one
+     */
+    public CompiledPolicy intern(CompiledPolicy policy) {
+        purgeReclaimed();
+        PolicyFingerprint fingerprint = policy.getFingerprint();
+        while (true) {
+            PolicyReference current = policies.get(fingerprint);
+            CompiledPolicy canonical = current != null ? current.get() : null;
+            if (canonical != null) {
+                return canonical.hasSameRules(policy) ? canonical : policy;
+            }
+            PolicyReference reference = new PolicyReference(fingerprint, policy, reclaimed);
+            boolean stored = current == null
+                    ? policies.putIfAbsent(fingerprint, reference) == null
+                    : policies.replace(fingerprint, current, reference);
+            if (stored) {
+                return policy;
+            }
+        }
+    }
+
+    /**
+     * @return the number of canonical policies, some of which may have been reclaimed already
+     */
+    public int size() {
+        purgeReclaimed();
+        return policies.size();
+    }
+
+    private void purgeReclaimed() {
+        PolicyReference reference;
+        while ((reference = (PolicyReference) reclaimed.poll()) != null) {
+            policies.remove(reference.fingerprint, reference);
+        }
+    }
+
+    private static final class PolicyReference extends WeakReference<CompiledPolicy> {
+
+        private final PolicyFingerprint fingerprint;
+
+        private PolicyReference(PolicyFingerprint fingerprint, CompiledPolicy policy, ReferenceQueue<CompiledPolicy> queue) {
+            super(policy, queue);
+            this.fingerprint = fingerprint;
+        }
+    }
+}
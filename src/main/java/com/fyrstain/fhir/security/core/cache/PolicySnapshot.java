@@ -0,0 +1,279 @@
+package com.fyrstain.fhir.security.core.cache;
+
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.PermissionOperation;
+import com.fyrstain.fhir.security.core.model.PermissionRule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * Binary snapshot of compiled policies, written on shutdown and memory-mapped on startup to fill a {@link PolicyCache}
+ * without fetching nor compiling Permissions.
+ * <p>
+ * The file holds a header (magic number, {@link #FORMAT_VERSION}, the version stamp of the Permissions the policies were
+ * compiled from), then tables where each string, rule and policy is stored once, however many users share it:
+ * <ol>
+ *     <li>strings: resource types, expressions, user ids, roles and organizations, in UTF-8;</li>
+ *     <li>rules: resource type, operation bitmask, allow flag, blacklist and search expressions, permit-overrides
+ *     group;</li>
+ *     <li>policies: their rules;</li>
+ *     <li>users: their {@link PermissionContextKey} and policy.</li>
+ * </ol>
+ * A snapshot with another format or version stamp, or that cannot be read, is discarded: reading it returns null. The
+ * stamp is chosen by the caller and must change whenever the Permissions do, e.g. a hash of the Permission files.
+ * <p>
+ * Rules are rebuilt once per distinct rule, their search fragments being parsed again from their expressions (which is
+ * cheap), and blacklist expressions are parsed again through the given rule resolver.
+ */
+public final class PolicySnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(PolicySnapshot.class);
+
+    public static final int FORMAT_VERSION = 2;
+
+    private static final int MAGIC = 0x46485053; // "FHPS"
+    private static final int NULL = -1;
+
+    private PolicySnapshot() {
+    }
+
+    /**
+     * Writes the policies to the file, replacing it atomically.
+     *
+     * @param file     the snapshot file
+     * @param version  the version stamp of the Permissions the policies were compiled from
+     * @param policies the policies, e.g. {@link PolicyCache#entries()}
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Path file, String version, Map<PermissionContextKey, CompiledPolicy> policies) throws IOException {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        Map<PermissionRule, Integer> rules = new LinkedHashMap<>();
+        Map<List<Integer>, Integer> policyRules = new LinkedHashMap<>();
+        Map<CompiledPolicy, Integer> policyIds = new HashMap<>();
+        List<int[]> users = new ArrayList<>();
+
+        for (Map.Entry<PermissionContextKey, CompiledPolicy> entry : policies.entrySet()) {
+            Integer policyId = policyIds.get(entry.getValue());
+            if (policyId == null) {
+                List<Integer> ruleIds = new ArrayList<>(entry.getValue().getRules().size());
+                for (PermissionRule rule : entry.getValue().getRules()) {
+                    ruleIds.add(rules.computeIfAbsent(rule, r -> {
+                        intern(strings, r.getResourceType());
+                        r.getBlacklistExpressions().forEach(e -> intern(strings, e));
+                        r.getSearchExpressions().forEach(e -> intern(strings, e));
+                        intern(strings, r.getPermitOverridesGroup());
+                        return rules.size();
+                    }));
+                }
+                policyId = policyRules.computeIfAbsent(ruleIds, ids -> policyRules.size());
+                policyIds.put(entry.getValue(), policyId);
+            }
+
+            PermissionContextKey key = entry.getKey();
+            int[] user = new int[3 + key.roles().size()];
+            user[0] = policyId;
+            user[1] = intern(strings, key.userId());
+            user[2] = intern(strings, key.organizationId());
+            int i = 3;
+            for (String role : key.roles()) {
+                user[i++] = intern(strings, role);
+            }
+            users.add(user);
+        }
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, version);
+
+            out.writeInt(strings.size());
+            for (String string : strings.keySet()) {
+                writeString(out, string);
+            }
+
+            out.writeInt(rules.size());
+            for (PermissionRule rule : rules.keySet()) {
+                out.writeInt(strings.get(rule.getResourceType()));
+                out.writeInt(rule.getOperationMask());
+                out.writeBoolean(rule.isAllow());
+                writeStrings(out, strings, rule.getBlacklistExpressions());
+                writeStrings(out, strings, rule.getSearchExpressions());
+                out.writeInt(intern(strings, rule.getPermitOverridesGroup()));
+            }
+
+            out.writeInt(policyRules.size());
+            for (List<Integer> ruleIds : policyRules.keySet()) {
+                out.writeInt(ruleIds.size());
+                for (int ruleId : ruleIds) {
+                    out.writeInt(ruleId);
+                }
+            }
+
+            out.writeInt(users.size());
+            for (int[] user : users) {
+                out.writeInt(user[0]);
+                out.writeInt(user[1]);
+                out.writeInt(user[2]);
+                out.writeInt(user.length - 3);
+                for (int i = 3; i < user.length; i++) {
+                    out.writeInt(user[i]);
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the policies of a snapshot, mapping the file in memory.
+     *
+     * @param file         the snapshot file
+     * @param version      the version stamp of the current Permissions
+     * @param ruleResolver applied once to each distinct rule read, e.g. to parse its blacklist expressions for the
+     *                     evaluator ({@code SimplePermissionEvaluator::parseExpressions})
+     * @return the policies by key, or null if there is no snapshot, it is stale or it cannot be read
+     */
+    public static Map<PermissionContextKey, CompiledPolicy> read(Path file, String version, UnaryOperator<PermissionRule> ruleResolver) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+                logger.warn("Ignoring {}: not a policy snapshot", file);
+                return null;
+            }
+            int format = buffer.getInt();
+            if (format != FORMAT_VERSION) {
+                logger.info("Ignoring policy snapshot {} of format {} instead of {}", file, format, FORMAT_VERSION);
+                return null;
+            }
+            String snapshotVersion = readString(buffer);
+            if (!snapshotVersion.equals(version)) {
+                logger.info("Ignoring stale policy snapshot {} of version {} instead of {}", file, snapshotVersion, version);
+                return null;
+            }
+            return readPolicies(buffer, ruleResolver);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            logger.warn("Ignoring unreadable policy snapshot {}: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    private static Map<PermissionContextKey, CompiledPolicy> readPolicies(ByteBuffer buffer, UnaryOperator<PermissionRule> ruleResolver) {
+        String[] strings = new String[count(buffer)];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(buffer);
+        }
+
+        PermissionOperation[] operations = PermissionOperation.values();
+        PermissionRule[] rules = new PermissionRule[count(buffer)];
+        for (int i = 0; i < rules.length; i++) {
+            String resourceType = strings[buffer.getInt()];
+            int mask = buffer.getInt();
+            EnumSet<PermissionOperation> ops = EnumSet.noneOf(PermissionOperation.class);
+            for (PermissionOperation operation : operations) {
+                if ((mask & (1 << operation.ordinal())) != 0) ops.add(operation);
+            }
+            boolean allow = buffer.get() != 0;
+            List<String> blacklistExpressions = readStrings(buffer, strings);
+            List<String> searchExpressions = readStrings(buffer, strings);
+            String permitOverridesGroup = string(strings, buffer.getInt());
+            rules[i] = ruleResolver.apply(new PermissionRule(resourceType, ops, allow, blacklistExpressions,
+                    searchExpressions, permitOverridesGroup));
+        }
+
+        CompiledPolicy[] policies = new CompiledPolicy[count(buffer)];
+        for (int i = 0; i < policies.length; i++) {
+            List<PermissionRule> policyRules = new ArrayList<>();
+            for (int j = count(buffer); j > 0; j--) {
+                policyRules.add(rules[buffer.getInt()]);
+            }
+            policies[i] = new CompiledPolicy(policyRules);
+        }
+
+        int userCount = count(buffer);
+        Map<PermissionContextKey, CompiledPolicy> result = new LinkedHashMap<>(userCount * 4 / 3 + 1);
+        for (int i = 0; i < userCount; i++) {
+            CompiledPolicy policy = policies[buffer.getInt()];
+            String userId = string(strings, buffer.getInt());
+            String organizationId = string(strings, buffer.getInt());
+            Set<String> roles = new HashSet<>();
+            for (int j = count(buffer); j > 0; j--) {
+                roles.add(strings[buffer.getInt()]);
+            }
+            result.put(new PermissionContextKey(userId, roles, organizationId), policy);
+        }
+        return result;
+    }
+
+    private static int intern(Map<String, Integer> strings, String string) {
+        return string == null ? NULL : strings.computeIfAbsent(string, s -> strings.size());
+    }
+
+    private static void writeStrings(DataOutputStream out, Map<String, Integer> strings, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            out.writeInt(strings.get(value));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static List<String> readStrings(ByteBuffer buffer, String[] strings) {
+        int count = count(buffer);
+        if (count == 0) return List.of();
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = strings[buffer.getInt()];
+        }
+        return List.of(values);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[count(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String string(String[] strings, int index) {
+        return index == NULL ? null : strings[index];
+    }
+
+    /**
+     * Reads a count, checking it against the bytes left so that a corrupted file cannot trigger huge allocations.
+     */
+    private static int count(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid count " + count + " at " + (buffer.position() - 4));
+        }
+        return count;
+    }
+}
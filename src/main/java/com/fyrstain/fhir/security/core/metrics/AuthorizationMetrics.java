@@ -0,0 +1,73 @@
+package com.fyrstain.fhir.security.core.metrics;
+
+/**
+ * Receives measurements from {@link com.fyrstain.fhir.security.core.FhirAuthorizationEngine}: the latency of each
+ * phase of a call, and the sizes it worked on.
+ * <p>
+ * Implementations are called on request threads and must be thread-safe and cheap. When {@link #isEnabled()} is false
+ * the engine does not read the clock nor compute sizes, so the {@link #noop()} metrics cost a single branch per phase.
+ */
+public interface AuthorizationMetrics {
+
+    /**
+     * The phases of a call to the engine.
+     */
+    enum Phase {
+        /**
+         * Retrieving the Permission resources from the {@link com.fyrstain.fhir.security.core.PermissionService}, on
+         * a policy cache miss.
+         */
+        PERMISSION_FETCH,
+        /**
+         * Compiling the Permission resources into a policy, on a policy cache miss.
+         */
+        COMPILE,
+        /**
+         * Deciding whether a request is allowed.
+         */
+        DECISION,
+        /**
+         * Adding the search parameters of the policy to a request.
+         */
+        SEARCH_REWRITE,
+        /**
+         * Removing blacklisted elements from a response.
+         */
+        REDACTION
+    }
+
+    /**
+     * @return false if measurements are discarded, in which case the engine does not take them.
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * @param phase the phase measured
+     * @param nanos its duration, in nanoseconds
+     */
+    void recordLatency(Phase phase, long nanos);
+
+    /**
+     * @param rules the number of rules of a newly compiled policy
+     */
+    void recordRuleCount(int rules);
+
+    /**
+     * @param entries the number of entries of a redacted Bundle response
+     */
+    void recordBundleSize(int entries);
+
+    /**
+     * @param elements the number of elements removed from a response
+     */
+    void recordRedactionMatches(int elements);
+
+    /**
+     * @return metrics that discard everything.
+     */
+    static AuthorizationMetrics noop() {
+        return NoopAuthorizationMetrics.INSTANCE;
+    }
+}
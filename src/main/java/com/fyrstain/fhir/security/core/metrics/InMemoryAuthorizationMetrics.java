@@ -0,0 +1,101 @@
+package com.fyrstain.fhir.security.core.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link AuthorizationMetrics} kept in memory as {@link Histogram}s, e.g. to be exported periodically or dumped by an
+ * administration endpoint. Latencies are recorded in nanoseconds.
+ */
+public class InMemoryAuthorizationMetrics implements AuthorizationMetrics {
+
+    private final Histogram[] latencies = new Histogram[Phase.values().length];
+    private final Histogram ruleCounts = new Histogram();
+    private final Histogram bundleSizes = new Histogram();
+    private final Histogram redactionMatches = new Histogram();
+
+    public InMemoryAuthorizationMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram();
+        }
+    }
+
+    @Override
+    public void recordLatency(Phase phase, long nanos) {
+        latencies[phase.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void recordRuleCount(int rules) {
+        ruleCounts.record(rules);
+    }
+
+    @Override
+    public void recordBundleSize(int entries) {
+        bundleSizes.record(entries);
+    }
+
+    @Override
+    public void recordRedactionMatches(int elements) {
+        redactionMatches.record(elements);
+    }
+
+    /**
+     * @return the latencies of the phase, in nanoseconds
+     */
+    public Histogram getLatency(Phase phase) {
+        return latencies[phase.ordinal()];
+    }
+
+    /**
+     * @return the number of rules of the compiled policies
+     */
+    public Histogram getRuleCounts() {
+        return ruleCounts;
+    }
+
+    /**
+     * @return the number of entries of the redacted Bundles
+     */
+    public Histogram getBundleSizes() {
+        return bundleSizes;
+    }
+
+    /**
+     * @return the number of elements removed from each redacted response
+     */
+    public Histogram getRedactionMatches() {
+        return redactionMatches;
+    }
+
+    /**
+     * @return all histograms by name: the phases, {@code rules}, {@code bundleSize} and {@code redactionMatches}
+     */
+    public Map<String, Histogram> getHistograms() {
+        Map<String, Histogram> histograms = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            histograms.put(phase.name(), getLatency(phase));
+        }
+        histograms.put("rules", ruleCounts);
+        histograms.put("bundleSize", bundleSizes);
+        histograms.put("redactionMatches", redactionMatches);
+        return histograms;
+    }
+
+    public void reset() {
+        for (Histogram histogram : latencies) {
+            histogram.reset();
+        }
+        ruleCounts.reset();
+        bundleSizes.reset();
+        redactionMatches.reset();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        getHistograms().forEach((name, histogram) ->
+                builder.append(name).append(": ").append(histogram).append('\n'));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,33 @@
+package com.fyrstain.fhir.security.core.metrics;
+
+/**
+ * See {@link AuthorizationMetrics#noop()}.
+ */
+final class NoopAuthorizationMetrics implements AuthorizationMetrics {
+
+    static final NoopAuthorizationMetrics INSTANCE = new NoopAuthorizationMetrics();
+
+    private NoopAuthorizationMetrics() {
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return false;
+    }
+
+    @Override
+    public void recordLatency(Phase phase, long nanos) {
+    }
+
+    @Override
+    public void recordRuleCount(int rules) {
+    }
+
+    @Override
+    public void recordBundleSize(int entries) {
+    }
+
+    @Override
+    public void recordRedactionMatches(int elements) {
+    }
+}
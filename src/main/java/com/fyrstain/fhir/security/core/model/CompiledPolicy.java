@@ -0,0 +1,348 @@
+package com.fyrstain.fhir.security.core.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled rules of a user, indexed for decisions.
+ * <p>
+ * Rules are folded into a decision table indexed by resource type id (see {@link ResourceTypes}). Each cell is a
+ * {@code long} holding the allow operation bitmask in its low 32 bits and the deny bitmask in its high 32 bits, with
+ * the wildcard ({@code "*"}) rules already merged in. Deciding whether an operation is allowed only touches
+ * primitives: an array read and two bit tests.
+ * <p>
+ * Rules are combined with deny-overrides: an operation is allowed if a rule allows it and no rule denies it. Rules of
+ * a permit-overrides group (see {@link PermissionRule#getPermitOverridesGroup()}) are first combined within their group,
+ * where allowing an operation cancels its denial, and the result merged into the table. Combining algorithms therefore
+ * cost nothing per decision, whatever the number of rules.
+ * <p>
+ * The search parameters added by allow rules are merged per resource type into a {@link SearchFragment}, and the
+ * rules with blacklist expressions are grouped per resource type, so that each resource is only redacted with the
+ * expressions of its own type (and of the wildcard rules).
+ */
+public class CompiledPolicy {
+
+    public static final String WILDCARD = "*";
+
+    private static final long ALLOW_MASK = 0xFFFFFFFFL;
+
+    private final List<PermissionRule> rules;
+    private final long[] decisions;
+    private final long wildcardDecision;
+    private final SearchFragment[] searchFragments;
+    private final Redaction[] redactions;
+    private final Redaction wildcardRedaction;
+    // Computed on first use; racing threads compute the same value
+    private volatile PolicyFingerprint fingerprint;
+
+    public CompiledPolicy(List<PermissionRule> rules) {
+        this.rules = List.copyOf(rules);
+
+        long wildcard = 0;
+        int maxTypeId = ResourceTypes.UNKNOWN;
+        Map<String, Group> groups = null;
+        for (PermissionRule rule : this.rules) {
+            if (!WILDCARD.equals(rule.getResourceType())) {
+                maxTypeId = Math.max(maxTypeId, rule.getResourceTypeId());
+            }
+            if (rule.getPermitOverridesGroup() != null) {
+                if (groups == null) groups = new LinkedHashMap<>();
+                groups.computeIfAbsent(rule.getPermitOverridesGroup(), g -> new Group()).add(rule);
+            } else if (WILDCARD.equals(rule.getResourceType())) {
+                wildcard |= decisionOf(rule);
+            }
+        }
+
+        this.decisions = new long[maxTypeId + 1];
+        Arrays.fill(decisions, wildcard);
+        for (PermissionRule rule : this.rules) {
+            int typeId = rule.getResourceTypeId();
+            if (rule.getPermitOverridesGroup() == null && typeId != ResourceTypes.UNKNOWN
+                    && !WILDCARD.equals(rule.getResourceType())) {
+                decisions[typeId] |= decisionOf(rule);
+            }
+        }
+        if (groups != null) {
+            for (Group group : groups.values()) {
+                wildcard |= group.fold(decisions);
+            }
+        }
+        this.wildcardDecision = wildcard;
+
+        this.searchFragments = compileSearchFragments(this.rules);
+
+        this.wildcardRedaction = compileRedaction(this.rules, null);
+        this.redactions = new Redaction[decisions.length];
+        for (PermissionRule rule : this.rules) {
+            int typeId = rule.getResourceTypeId();
+            if (!rule.getBlacklistExpressions().isEmpty() && !WILDCARD.equals(rule.getResourceType())
+                    && typeId != ResourceTypes.UNKNOWN && redactions[typeId] == null) {
+                redactions[typeId] = compileRedaction(this.rules, rule.getResourceType());
+            }
+        }
+    }
+
+    /**
+     * Checks whether the operation is allowed on the resource type: at least one rule must allow it, and no rule
+     * must deny it.
+     *
+     * @param resourceType the resource type of the request
+     * @param op           the requested operation
+     * @return true if allowed
+     */
+    public boolean canPerform(String resourceType, PermissionOperation op) {
+        return canPerform(ResourceTypes.idOf(resourceType), op);
+    }
+
+    /**
+     * Same as {@link #canPerform(String, PermissionOperation)} with a resource type id from {@link ResourceTypes}.
+     */
+    public boolean canPerform(int resourceTypeId, PermissionOperation op) {
+        long decision = resourceTypeId >= 0 && resourceTypeId < decisions.length
+                ? decisions[resourceTypeId]
+                : wildcardDecision;
+        long bit = 1L << op.ordinal();
+        return (decision & (bit << 32)) == 0 && (decision & bit) != 0;
+    }
+
+    /**
+     * Returns the search parameters to add to requests on the resource type. Only allow rules of that exact type
+     * contribute.
+     *
+     * @param resourceTypeId a resource type id from {@link ResourceTypes}
+     * @return the merged fragment, {@link SearchFragment#EMPTY} if none
+     */
+    public SearchFragment getSearchFragment(int resourceTypeId) {
+        return resourceTypeId >= 0 && resourceTypeId < searchFragments.length && searchFragments[resourceTypeId] != null
+                ? searchFragments[resourceTypeId]
+                : SearchFragment.EMPTY;
+    }
+
+    /**
+     * Checks whether responses containing resources of the given type need redaction, i.e. whether a rule of that
+     * type (or a wildcard rule) has blacklist expressions. Responses made only of types without redaction can be
+     * returned as they are.
+     *
+     * @param resourceType a resource type
+     * @return true if resources of that type are redacted
+     */
+    public boolean hasRedaction(String resourceType) {
+        return !redactionOf(resourceType).rules.isEmpty();
+    }
+
+    /**
+     * Returns the rules with blacklist expressions that apply to resources of the given type: the rules of that type
+     * and the wildcard rules, in rule order.
+     *
+     * @param resourceType a resource type
+     * @return the rules, empty if the type is not redacted
+     */
+    public List<PermissionRule> getRedactionRules(String resourceType) {
+        return redactionOf(resourceType).rules;
+    }
+
+    /**
+     * Same as {@link #getRedactionRules(String)}, returning the parsed blacklist expressions of these rules.
+     *
+     * @param resourceType a resource type
+     * @return the parsed expressions, or null if some of the rules were not parsed at compile time
+     */
+    public List<?> getParsedBlacklistExpressions(String resourceType) {
+        return redactionOf(resourceType).parsedExpressions;
+    }
+
+    /**
+     * Same as {@link #getParsedBlacklistExpressions(String)}, the type of the expressions being checked once, when the
+     * policy was compiled, rather than on each call.
+     *
+     * @param resourceType a resource type
+     * @param type         the expected type of the parsed expressions, e.g. the {@code ExpressionNode} of a FHIR version
+     * @return the parsed expressions, or null if some of the rules were not parsed at compile time or if the
+     * expressions are not of that type
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> getParsedBlacklistExpressions(String resourceType, Class<T> type) {
+        Redaction redaction = redactionOf(resourceType);
+        return redaction.parsedExpressions != null && PermissionRule.isOf(redaction.parsedExpressionType, type)
+                ? (List<T>) redaction.parsedExpressions
+                : null;
+    }
+
+    private Redaction redactionOf(String resourceType) {
+        int typeId = ResourceTypes.idOf(resourceType);
+        return typeId >= 0 && typeId < redactions.length && redactions[typeId] != null
+                ? redactions[typeId]
+                : wildcardRedaction;
+    }
+
+    public List<PermissionRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * @return the fingerprint of the rules, equal for equivalent policies (see {@link PolicyFingerprint})
+     */
+    public PolicyFingerprint getFingerprint() {
+        PolicyFingerprint computed = fingerprint;
+        if (computed == null) {
+            computed = PolicyFingerprint.of(rules);
+            fingerprint = computed;
+        }
+        return computed;
+    }
+
+    /**
+     * Checks whether both policies hold the same rules, whatever their order or repetitions.
+     *
+     * @param other another policy
+     * @return true if equivalent
+     */
+    public boolean hasSameRules(CompiledPolicy other) {
+        return other == this || new HashSet<>(rules).equals(new HashSet<>(other.rules));
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    private static SearchFragment[] compileSearchFragments(List<PermissionRule> rules) {
+        List<List<SearchFragment>> byType = new ArrayList<>();
+        for (PermissionRule rule : rules) {
+            // Only support whitelist for now
+            if (!rule.isAllow() || rule.getSearchFragment().isEmpty() || rule.getResourceTypeId() == ResourceTypes.UNKNOWN) {
+                continue;
+            }
+            while (byType.size() <= rule.getResourceTypeId()) {
+                byType.add(null);
+            }
+            if (byType.get(rule.getResourceTypeId()) == null) {
+                byType.set(rule.getResourceTypeId(), new ArrayList<>());
+            }
+            byType.get(rule.getResourceTypeId()).add(rule.getSearchFragment());
+        }
+
+        SearchFragment[] fragments = new SearchFragment[byType.size()];
+        for (int i = 0; i < fragments.length; i++) {
+            if (byType.get(i) != null) {
+                fragments[i] = SearchFragment.merge(byType.get(i));
+            }
+        }
+        return fragments;
+    }
+
+    /**
+     * @param resourceType a resource type, null for the wildcard rules only
+     */
+    private static Redaction compileRedaction(List<PermissionRule> rules, String resourceType) {
+        List<PermissionRule> redactionRules = new ArrayList<>();
+        List<Object> parsedExpressions = new ArrayList<>();
+        Class<?> parsedExpressionType = null;
+        boolean parsed = true;
+        for (PermissionRule rule : rules) {
+            if (rule.getBlacklistExpressions().isEmpty()
+                    || !(WILDCARD.equals(rule.getResourceType()) || (resourceType != null && resourceType.equals(rule.getResourceType())))) {
+                continue;
+            }
+            redactionRules.add(rule);
+            if (rule.getParsedBlacklistExpressions() != null) {
+                parsedExpressions.addAll(rule.getParsedBlacklistExpressions());
+                parsedExpressionType = PermissionRule.commonType(parsedExpressionType, rule.getParsedExpressionType());
+            } else {
+                parsed = false;
+            }
+        }
+        return new Redaction(List.copyOf(redactionRules), parsed ? List.copyOf(parsedExpressions) : null,
+                parsedExpressionType);
+    }
+
+    private static long decisionOf(PermissionRule rule) {
+        long mask = rule.getOperationMask() & ALLOW_MASK;
+        return rule.isAllow() ? mask : mask << 32;
+    }
+
+    /**
+     * Drops from a decision cell the denied operations that are also allowed.
+     */
+    private static long permitOverrides(long decision) {
+        return decision & ~((decision & ALLOW_MASK) << 32);
+    }
+
+    /**
+     * Decision cells of the rules of one permit-overrides group (see {@link PermissionRule#getPermitOverridesGroup()}),
+     * combined within the group before being merged with the rest of the policy.
+     */
+    private static final class Group {
+
+        private long wildcard;
+        private int[] typeIds = new int[4];
+        private long[] cells = new long[4];
+        private int size;
+
+        private void add(PermissionRule rule) {
+            if (WILDCARD.equals(rule.getResourceType())) {
+                wildcard |= decisionOf(rule);
+                return;
+            }
+            int typeId = rule.getResourceTypeId();
+            if (typeId == ResourceTypes.UNKNOWN) return;
+            for (int i = 0; i < size; i++) {
+                if (typeIds[i] == typeId) {
+                    cells[i] |= decisionOf(rule);
+                    return;
+                }
+            }
+            if (size == typeIds.length) {
+                typeIds = Arrays.copyOf(typeIds, size * 2);
+                cells = Arrays.copyOf(cells, size * 2);
+            }
+            typeIds[size] = typeId;
+            cells[size++] = decisionOf(rule);
+        }
+
+        /**
+         * Merges the decisions of the group into the table: a type of the group gets its own cell combined with the
+         * wildcard rules of the group, any other type the wildcard rules alone.
+         *
+         * @return the decision of the group for types it does not mention
+         */
+        private long fold(long[] decisions) {
+            long wildcardDecision = permitOverrides(wildcard);
+            if (wildcardDecision != 0) {
+                for (int typeId = 0; typeId < decisions.length; typeId++) {
+                    if (!mentions(typeId)) decisions[typeId] |= wildcardDecision;
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                decisions[typeIds[i]] |= permitOverrides(cells[i] | wildcard);
+            }
+            return wildcardDecision;
+        }
+
+        private boolean mentions(int typeId) {
+            for (int i = 0; i < size; i++) {
+                if (typeIds[i] == typeId) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The blacklist rules of a resource type, wildcard rules included.
+     */
+    private static final class Redaction {
+
+        private final List<PermissionRule> rules;
+        private final List<?> parsedExpressions;
+        private final Class<?> parsedExpressionType; // see PermissionRule.elementType(List)
+
+        private Redaction(List<PermissionRule> rules, List<?> parsedExpressions, Class<?> parsedExpressionType) {
+            this.rules = rules;
+            this.parsedExpressions = parsedExpressions;
+            this.parsedExpressionType = parsedExpressionType;
+        }
+    }
+}
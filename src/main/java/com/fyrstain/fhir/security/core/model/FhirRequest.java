@@ -4,16 +4,21 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 public class FhirRequest {
 
+    private static final int UNRESOLVED = Integer.MIN_VALUE;
+
     private HTTPVerb method;
     private String resourceType;
+    private int resourceTypeId = UNRESOLVED;
     private String resourceId;
     private String operationName;
     private Map<String, List<String>> searchParameters;
 
     private IBaseResource body; // optional (for create/update)
+    private Supplier<? extends IBaseResource> bodySupplier; // parses the body on first access, null once parsed
 
     public PermissionOperation getOperation() {
         switch (method) {
@@ -55,9 +60,21 @@ public class FhirRequest {
 
     public FhirRequest setResourceType(String resourceType) {
         this.resourceType = resourceType;
+        this.resourceTypeId = UNRESOLVED;
         return this;
     }
 
+    /**
+     * @return the id of the resource type in {@link ResourceTypes}, resolved once per request. A type that is not
+     * known yet is resolved again on the next call, as it may have been interned by a policy compiled meanwhile.
+     */
+    public int getResourceTypeId() {
+        if (resourceTypeId == UNRESOLVED || resourceTypeId == ResourceTypes.UNKNOWN) {
+            resourceTypeId = ResourceTypes.idOf(resourceType);
+        }
+        return resourceTypeId;
+    }
+
     public String getResourceId() {
         return resourceId;
     }
@@ -85,15 +102,42 @@ public class FhirRequest {
         return this;
     }
 
+    /**
+     * @return the body of the request, parsed on the first call if it was given with {@link #setBodySupplier}.
+     */
     public IBaseResource getBody() {
+        if (bodySupplier != null) {
+            body = bodySupplier.get();
+            bodySupplier = null;
+        }
         return body;
     }
 
     public FhirRequest setBody(IBaseResource body) {
         this.body = body;
+        this.bodySupplier = null;
         return this;
     }
 
+    /**
+     * Sets the body of the request lazily: it is only parsed if something reads it, so that requests denied on their
+     * operation, or allowed without looking at their content, never parse their payload.
+     *
+     * @param bodySupplier parses the body, called at most once
+     */
+    public FhirRequest setBodySupplier(Supplier<? extends IBaseResource> bodySupplier) {
+        this.body = null;
+        this.bodySupplier = bodySupplier;
+        return this;
+    }
+
+    /**
+     * @return true if the body was given parsed, or has been parsed since.
+     */
+    public boolean isBodyParsed() {
+        return bodySupplier == null;
+    }
+
     public enum HTTPVerb {
         GET, POST, PUT, DELETE, PATCH
     }
@@ -5,6 +5,7 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 public class FhirResponse {
     private int statusCode;
     private IBaseResource resource; // Could be a Bundle or a single resource
+    private int redactedElementCount;
 
     public int getStatusCode() {
         return statusCode;
@@ -23,4 +24,16 @@ public class FhirResponse {
         this.resource = resource;
         return this;
     }
+
+    /**
+     * @return the number of elements removed from the resource by the evaluator, 0 if it was not redacted
+     */
+    public int getRedactedElementCount() {
+        return redactedElementCount;
+    }
+
+    public FhirResponse setRedactedElementCount(int redactedElementCount) {
+        this.redactedElementCount = redactedElementCount;
+        return this;
+    }
 }
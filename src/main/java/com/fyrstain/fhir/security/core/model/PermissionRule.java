@@ -2,26 +2,72 @@ package com.fyrstain.fhir.security.core.model;
 
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.stream.Collectors;
 
 //TODO See if we only want one big structure that checks all permissions ?
+/**
+ * Immutable compiled rule. Instances are shared between users, see
+ * {@link com.fyrstain.fhir.security.core.cache.PermissionFragmentCache}.
+ */
 public class PermissionRule {
 
     private final String resourceType;
+    private final int resourceTypeId; // see ResourceTypes
     private final EnumSet<PermissionOperation> operations; // e.g. READ, UPDATE, DELETE, CREATE
     private final boolean allow; // true = allow, false = deny (if you plan to support deny rules later)
+    private final int operationMask; // one bit per PermissionOperation ordinal
 
     private final List<String> searchExpressions;
+    private final SearchFragment searchFragment; // searchExpressions, pre-parsed
     private final List<String> blacklistExpressions;
+    private final List<?> parsedBlacklistExpressions; // version specific FHIRPath nodes, null if not parsed
+    private final Class<?> parsedExpressionType; // class of all parsedBlacklistExpressions, null if there are none
+    private final String permitOverridesGroup; // see getPermitOverridesGroup()
+    private volatile PolicyFingerprint fingerprint; // computed on first use
 
 
     public PermissionRule(String resourceType, EnumSet<PermissionOperation> operations, boolean allow,
                           List<String> blacklistExpressions, List<String> searchExpressions) {
+        this(resourceType, operations, allow, blacklistExpressions, searchExpressions, null, null);
+    }
+
+    /**
+     * @param permitOverridesGroup the group of the rule, see {@link #getPermitOverridesGroup()}, null for none
+     */
+    public PermissionRule(String resourceType, EnumSet<PermissionOperation> operations, boolean allow,
+                          List<String> blacklistExpressions, List<String> searchExpressions,
+                          String permitOverridesGroup) {
+        this(resourceType, operations, allow, blacklistExpressions, searchExpressions, permitOverridesGroup, null);
+    }
+
+    private PermissionRule(String resourceType, EnumSet<PermissionOperation> operations, boolean allow,
+                           List<String> blacklistExpressions, List<String> searchExpressions,
+                           String permitOverridesGroup, List<?> parsedBlacklistExpressions) {
         this.resourceType = resourceType;
-        this.operations = operations;
+        this.resourceTypeId = ResourceTypes.intern(resourceType);
+        this.operations = operations != null ? EnumSet.copyOf(operations) : EnumSet.noneOf(PermissionOperation.class);
         this.allow = allow;
-        this.blacklistExpressions = blacklistExpressions;
-        this.searchExpressions = searchExpressions;
+        this.operationMask = maskOf(this.operations);
+        this.blacklistExpressions = blacklistExpressions != null ? List.copyOf(blacklistExpressions) : List.of();
+        this.searchExpressions = searchExpressions != null ? List.copyOf(searchExpressions) : List.of();
+        this.searchFragment = SearchFragment.parse(this.searchExpressions);
+        this.parsedBlacklistExpressions = parsedBlacklistExpressions != null ? List.copyOf(parsedBlacklistExpressions) : null;
+        this.parsedExpressionType = parsedBlacklistExpressions != null ? elementType(parsedBlacklistExpressions) : null;
+        this.permitOverridesGroup = permitOverridesGroup;
+    }
+
+    /**
+     * Returns a copy of this rule carrying its blacklist expressions already parsed, so that redaction does not parse
+     * them again for every resource.
+     *
+     * @param parsedBlacklistExpressions the parsed expressions (e.g. FHIRPath {@code ExpressionNode}s of the FHIR
+     *                                   version of the evaluator), invalid expressions being left out.
+     * @return the new rule
+     */
+    public PermissionRule withParsedBlacklistExpressions(List<?> parsedBlacklistExpressions) {
+        return new PermissionRule(resourceType, operations, allow, blacklistExpressions, searchExpressions,
+                permitOverridesGroup, parsedBlacklistExpressions);
     }
 
     public boolean allows(String resourceType, PermissionOperation op) {
@@ -38,10 +84,72 @@ public class PermissionRule {
         return blacklistExpressions;
     }
 
+    /**
+     * @return the parsed blacklist expressions, or null if they were not parsed at compile time.
+     */
+    public List<?> getParsedBlacklistExpressions() {
+        return parsedBlacklistExpressions;
+    }
+
+    /**
+     * Same as {@link #getParsedBlacklistExpressions()}, checking the type of the expressions once, when the rule was
+     * built, rather than on each call.
+     *
+     * @param type the expected type of the parsed expressions, e.g. the {@code ExpressionNode} of a FHIR version
+     * @return the parsed blacklist expressions, or null if they were not parsed at compile time or not of that type
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> getParsedBlacklistExpressions(Class<T> type) {
+        return parsedBlacklistExpressions != null && isOf(parsedExpressionType, type)
+                ? (List<T>) parsedBlacklistExpressions
+                : null;
+    }
+
+    /**
+     * @return the class of all the parsed blacklist expressions, null if there are none, {@code Object} if they differ
+     */
+    Class<?> getParsedExpressionType() {
+        return parsedExpressionType;
+    }
+
+    /**
+     * @return the class of all the elements, null if there are none, {@code Object} if they differ
+     */
+    static Class<?> elementType(List<?> elements) {
+        Class<?> type = null;
+        for (Object element : elements) {
+            type = commonType(type, element.getClass());
+        }
+        return type;
+    }
+
+    /**
+     * @return the common class of elements of the given classes, null standing for no element
+     */
+    static Class<?> commonType(Class<?> first, Class<?> second) {
+        if (first == null) return second;
+        if (second == null || first == second) return first;
+        return Object.class;
+    }
+
+    /**
+     * @return true if elements of the given class, null for no element, are all of the expected type
+     */
+    static boolean isOf(Class<?> elementType, Class<?> type) {
+        return elementType == null || type.isAssignableFrom(elementType);
+    }
+
     public List<String> getSearchExpressions() {
         return searchExpressions;
     }
 
+    /**
+     * @return the search expressions of this rule, parsed.
+     */
+    public SearchFragment getSearchFragment() {
+        return searchFragment;
+    }
+
     public boolean hasSearchExpressions() {
         return searchExpressions != null && !searchExpressions.isEmpty();
     }
@@ -50,20 +158,85 @@ public class PermissionRule {
         return resourceType;
     }
 
+    /**
+     * @return the id of the resource type in {@link ResourceTypes}.
+     */
+    public int getResourceTypeId() {
+        return resourceTypeId;
+    }
+
     public EnumSet<PermissionOperation> getOperations() {
-        return operations;
+        return EnumSet.copyOf(operations);
     }
 
     public boolean isAllow() {
         return allow;
     }
 
+    /**
+     * @return the operations of this rule as a bitmask, bit {@code n} being set for the operation of ordinal {@code n}.
+     */
+    public int getOperationMask() {
+        return operationMask;
+    }
+
+    /**
+     * Rules compiled from a Permission whose combining algorithm lets permits override denies share a group, usually
+     * the id of that Permission: within a group, a deny only applies to the resource types and operations no rule of
+     * the group permits. Rules without group are combined with deny-overrides, whatever Permission they come from.
+     *
+     * @return the group, or null for deny-overrides
+     */
+    public String getPermitOverridesGroup() {
+        return permitOverridesGroup;
+    }
+
+    /**
+     * @return the hash of the canonical encoding of this rule, computed once, from which
+     * {@link PolicyFingerprint#of(List)} fingerprints policies
+     */
+    public PolicyFingerprint getFingerprint() {
+        PolicyFingerprint computed = fingerprint;
+        if (computed == null) {
+            computed = PolicyFingerprint.of(this);
+            fingerprint = computed;
+        }
+        return computed;
+    }
+
+    private static int maskOf(EnumSet<PermissionOperation> operations) {
+        int mask = 0;
+        for (PermissionOperation operation : operations) {
+            mask |= 1 << operation.ordinal();
+        }
+        return mask;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PermissionRule)) return false;
+        PermissionRule that = (PermissionRule) o;
+        return allow == that.allow
+                && Objects.equals(resourceType, that.resourceType)
+                && operations.equals(that.operations)
+                && searchExpressions.equals(that.searchExpressions)
+                && blacklistExpressions.equals(that.blacklistExpressions)
+                && Objects.equals(permitOverridesGroup, that.permitOverridesGroup);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(resourceType, operations, allow, searchExpressions, blacklistExpressions, permitOverridesGroup);
+    }
+
     @Override
     public String toString() {
         return "PermissionRule{\n" +
                 "resourceType='" + resourceType + "\'\n" +
                 ", operations=" + operations + '\n' +
                 ", allow=" + allow + '\n' +
+                (permitOverridesGroup != null ? ", permitOverridesGroup=" + permitOverridesGroup + '\n' : "") +
                 ", blacklistExpressions=" + blacklistExpressions.stream().collect(Collectors.joining(", ")) + '\n' +
                 '}';
     }
@@ -0,0 +1,109 @@
+package com.fyrstain.fhir.security.core.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Stable hash of the effective rules of a policy: the first 128 bits of a SHA-256 of the sorted fingerprints of its
+ * rules, themselves hashed from the canonical encoding of each rule.
+ * <p>
+ * Rules are hashed whatever their order or repetitions, which do not change decisions, search rewrites nor redaction.
+ * Two policies with the same fingerprint are therefore equivalent, and caches of anything derived from a policy can be
+ * keyed by its fingerprint. Unlike {@code hashCode}, the fingerprint does not depend on the JVM.
+ */
+public record PolicyFingerprint(long high, long low) {
+
+    private static final Comparator<PolicyFingerprint> ORDER = Comparator
+            .comparingLong(PolicyFingerprint::high)
+            .thenComparingLong(PolicyFingerprint::low);
+
+    /**
+     * @param rules the rules of a policy
+     * @return their fingerprint
+     */
+    public static PolicyFingerprint of(List<PermissionRule> rules) {
+        PolicyFingerprint[] ruleFingerprints = new PolicyFingerprint[rules.size()];
+        for (int i = 0; i < ruleFingerprints.length; i++) {
+            ruleFingerprints[i] = rules.get(i).getFingerprint();
+        }
+        Arrays.sort(ruleFingerprints, ORDER);
+
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        PolicyFingerprint previous = null;
+        for (PolicyFingerprint rule : ruleFingerprints) {
+            if (!rule.equals(previous)) {
+                digest.update(buffer.clear().putLong(rule.high).putLong(rule.low).array());
+            }
+            previous = rule;
+        }
+        return of(digest.digest());
+    }
+
+    /**
+     * Fingerprint of a single rule, from its canonical encoding. Rules cache theirs, see
+     * {@link PermissionRule#getFingerprint()}.
+     */
+    static PolicyFingerprint of(PermissionRule rule) {
+        return of(sha256().digest(encode(rule)));
+    }
+
+    private static PolicyFingerprint of(byte[] hash) {
+        ByteBuffer buffer = ByteBuffer.wrap(hash);
+        return new PolicyFingerprint(buffer.getLong(), buffer.getLong());
+    }
+
+    private static byte[] encode(PermissionRule rule) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeString(out, rule.getResourceType());
+            out.writeBoolean(rule.isAllow());
+            out.writeInt(rule.getOperationMask());
+            writeStrings(out, rule.getBlacklistExpressions());
+            writeStrings(out, rule.getSearchExpressions());
+            writeString(out, rule.getPermitOverridesGroup());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", high, low);
+    }
+}
@@ -0,0 +1,75 @@
+package com.fyrstain.fhir.security.core.model;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Symbol table mapping resource type names to dense int ids, so that decisions can index arrays instead of comparing
+ * strings.
+ * <p>
+ * Ids are only assigned by {@link #intern(String)}, which is called when rules are compiled. Looking up a type coming
+ * from a request with {@link #idOf(String)} never grows the table: a type no rule mentions gets {@link #UNKNOWN}.
+ */
+public final class ResourceTypes {
+
+    public static final int UNKNOWN = -1;
+
+    private static final Map<String, Integer> IDS = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[0];
+
+    private ResourceTypes() {
+    }
+
+    /**
+     * Returns the id of a resource type, assigning a new one if needed.
+     *
+     * @param resourceType the resource type name
+     * @return its id, or {@link #UNKNOWN} for a null type
+     */
+    public static int intern(String resourceType) {
+        if (resourceType == null) {
+            return UNKNOWN;
+        }
+        Integer id = IDS.get(resourceType);
+        if (id != null) {
+            return id;
+        }
+        synchronized (ResourceTypes.class) {
+            return IDS.computeIfAbsent(resourceType, type -> {
+                String[] grown = Arrays.copyOf(names, names.length + 1);
+                grown[names.length] = type;
+                names = grown;
+                return names.length - 1;
+            });
+        }
+    }
+
+    /**
+     * Returns the id of a resource type without assigning one.
+     *
+     * @param resourceType the resource type name
+     * @return its id, or {@link #UNKNOWN} if the type was never interned
+     */
+    public static int idOf(String resourceType) {
+        if (resourceType == null) {
+            return UNKNOWN;
+        }
+        Integer id = IDS.get(resourceType);
+        return id != null ? id : UNKNOWN;
+    }
+
+    /**
+     * @return the name of the resource type with the given id
+     */
+    public static String nameOf(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return the number of interned resource types
+     */
+    public static int size() {
+        return names.length;
+    }
+}
@@ -0,0 +1,118 @@
+package com.fyrstain.fhir.security.core.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable search parameters parsed from {@code application/x-fhir-query} expressions, e.g.
+ * {@code identifier=system|code&name=Toto,Tata}. Expressions are parsed once when rules are compiled, and
+ * {@link #applyTo(Map)} merges the parameters into the ones of a request.
+ */
+public final class SearchFragment {
+
+    public static final SearchFragment EMPTY = new SearchFragment(Map.of());
+
+    private final Map<String, List<String>> parameters;
+
+    private SearchFragment(Map<String, List<String>> parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * Parses x-fhir-query expressions. Parameters are split on {@code &}, names and values on the first {@code =}
+     * and values on {@code ,}. Parameters without a value are ignored.
+     *
+     * @param expressions the expressions to parse
+     * @return the parsed fragment
+     */
+    public static SearchFragment parse(List<String> expressions) {
+        Map<String, List<String>> parameters = new LinkedHashMap<>();
+        for (String expression : expressions) {
+            if (expression == null || expression.isEmpty()) continue;
+
+            for (String pair : expression.split("&")) {
+                String[] parts = pair.split("=", 2); // only split on first '='
+                String key = parts[0].trim();
+                String value = parts.length > 1 ? parts[1].trim() : "";
+                if (!value.isEmpty()) {
+                    parameters.computeIfAbsent(key, k -> new ArrayList<>()).addAll(List.of(value.split(",")));
+                }
+            }
+        }
+        return of(parameters);
+    }
+
+    /**
+     * Concatenates fragments, values of the same parameter being appended in order.
+     */
+    public static SearchFragment merge(List<SearchFragment> fragments) {
+        if (fragments.isEmpty()) return EMPTY;
+        if (fragments.size() == 1) return fragments.get(0);
+
+        Map<String, List<String>> parameters = new LinkedHashMap<>();
+        for (SearchFragment fragment : fragments) {
+            fragment.parameters.forEach((key, values) ->
+                    parameters.computeIfAbsent(key, k -> new ArrayList<>()).addAll(values));
+        }
+        return of(parameters);
+    }
+
+    private static SearchFragment of(Map<String, List<String>> parameters) {
+        if (parameters.isEmpty()) return EMPTY;
+
+        Map<String, List<String>> copy = new LinkedHashMap<>();
+        parameters.forEach((key, values) -> copy.put(key, List.copyOf(values)));
+        return new SearchFragment(Collections.unmodifiableMap(copy));
+    }
+
+    /**
+     * Adds the parameters of this fragment to the ones of a request. Nothing is copied when the fragment is empty: the
+     * given map itself is returned, so that changes to the result change it too. Otherwise, or if the given map is
+     * null, the result is a new mutable map.
+     *
+     * @param searchParameters the parameters of the request, may be null. Never modified by this method.
+     * @return the merged parameters
+     */
+    public Map<String, List<String>> applyTo(Map<String, List<String>> searchParameters) {
+        if (parameters.isEmpty()) {
+            return searchParameters != null ? searchParameters : new HashMap<>();
+        }
+
+        Map<String, List<String>> updated = searchParameters != null ? new HashMap<>(searchParameters) : new HashMap<>();
+        parameters.forEach((key, values) -> {
+            List<String> existing = updated.get(key);
+            List<String> merged = new ArrayList<>(existing != null ? existing.size() + values.size() : values.size());
+            if (existing != null) merged.addAll(existing);
+            merged.addAll(values);
+            updated.put(key, merged);
+        });
+        return updated;
+    }
+
+    public Map<String, List<String>> getParameters() {
+        return parameters;
+    }
+
+    public boolean isEmpty() {
+        return parameters.isEmpty();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof SearchFragment && parameters.equals(((SearchFragment) o).parameters));
+    }
+
+    @Override
+    public int hashCode() {
+        return parameters.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return parameters.toString();
+    }
+}
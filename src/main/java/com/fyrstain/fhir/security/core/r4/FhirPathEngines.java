@@ -0,0 +1,72 @@
+package com.fyrstain.fhir.security.core.r4;
+
+import com.fyrstain.fhir.security.core.EnginePool;
+import com.fyrstain.fhir.security.core.SharedWorkerContext;
+import org.hl7.fhir.r4.context.SimpleWorkerContext;
+import org.hl7.fhir.r4.fhirpath.FHIRPathEngine;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Shared R4 FHIRPath engines.
+ * <p>
+ * {@link FHIRPathEngine} keeps mutable state while parsing and evaluating, so a single instance must not be used by
+ * several threads at once. Engines are instead taken from an {@link EnginePool}: each call to
+ * {@link #withEngine(Function)} gets an engine no other thread is using, and all engines share one worker context.
+ * Callers may run concurrently without any external synchronization. Parsed expressions and evaluation results can be
+ * shared between threads, as long as the resources evaluated are not modified concurrently.
+ * <p>
+ * The worker context is only built when the first engine is needed, see {@link SharedWorkerContext}. Call
+ * {@link #warmUp()} on startup to build it in the background instead.
+ */
+public final class FhirPathEngines {
+
+    private static final SharedWorkerContext<SimpleWorkerContext> WORKER_CONTEXT =
+            new SharedWorkerContext<>("R4", SimpleWorkerContext::new);
+    private static final EnginePool<FHIRPathEngine> POOL = new EnginePool<>(() -> new FHIRPathEngine(WORKER_CONTEXT.get()));
+
+    private FhirPathEngines() {
+    }
+
+    /**
+     * Runs the work with an engine nobody else is using.
+     *
+     * @param work the work, must not keep a reference to the engine once done
+     * @return the result of the work
+     */
+    public static <R> R withEngine(Function<FHIRPathEngine, R> work) {
+        return POOL.apply(work);
+    }
+
+    /**
+     * @return the pool, for callers borrowing an engine for a longer piece of work
+     */
+    public static EnginePool<FHIRPathEngine> pool() {
+        return POOL;
+    }
+
+    /**
+     * @return the worker context shared by the engines, built if needed
+     */
+    public static SimpleWorkerContext workerContext() {
+        return WORKER_CONTEXT.get();
+    }
+
+    /**
+     * Builds the worker context on a daemon thread, then creates a first engine and parses an expression with it so
+     * that the FHIRPath classes are loaded before the first request.
+     *
+     * @return completed once done
+     */
+    public static CompletableFuture<Void> warmUp() {
+        return WORKER_CONTEXT.warmUp().thenAccept(context -> withEngine(engine -> engine.parse("Resource.id")));
+    }
+
+    /**
+     * @return true once the worker context is built
+     */
+    public static boolean isInitialized() {
+        return WORKER_CONTEXT.isInitialized();
+    }
+}
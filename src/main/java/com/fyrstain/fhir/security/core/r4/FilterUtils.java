@@ -1,24 +1,24 @@
 package com.fyrstain.fhir.security.core.r4;
 
-import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
-import ca.uhn.fhir.context.RuntimeResourceDefinition;
-import org.hl7.fhir.instance.model.api.IBase;
+import com.fyrstain.fhir.security.core.BundleParallelism;
+import com.fyrstain.fhir.security.core.ElementRemover;
+import com.fyrstain.fhir.security.core.cache.ExpressionCache;
 import org.hl7.fhir.instance.model.api.IBaseResource;
-import org.hl7.fhir.r4.context.SimpleWorkerContext;
+import org.hl7.fhir.r4.fhirpath.ExpressionNode;
 import org.hl7.fhir.r4.fhirpath.FHIRPathEngine;
 import org.hl7.fhir.r4.model.Base;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.DomainResource;
-import org.hl7.fhir.r4.model.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * Util class for filtering resource content.
@@ -28,14 +28,49 @@ public class FilterUtils {
     private static final Logger LOGGER = LoggerFactory.getLogger(FilterUtils.class);
 
     private static final FhirContext CONTEXT = FhirContext.forCached(FhirVersionEnum.R4);
-    private static final FHIRPathEngine FHIR_PATH_ENGINE;
+    private static final ExpressionCache<ExpressionNode> EXPRESSION_CACHE = new ExpressionCache<>();
 
-    static {
-        try {
-            FHIR_PATH_ENGINE = new FHIRPathEngine(new SimpleWorkerContext());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private static volatile BundleParallelism bundleParallelism = BundleParallelism.SEQUENTIAL;
+
+    /**
+     * Sets how Bundle entries are redacted by default (sequential unless configured).
+     *
+     * @param parallelism the parallelism to use
+     */
+    public static void setBundleParallelism(BundleParallelism parallelism) {
+        bundleParallelism = parallelism != null ? parallelism : BundleParallelism.SEQUENTIAL;
+    }
+
+    public static BundleParallelism getBundleParallelism() {
+        return bundleParallelism;
+    }
+
+    /**
+     * Parses a FHIRPath expression. Parsed expressions are kept in a shared bounded cache.
+     *
+     * @param expression the FHIRPath expression
+     * @return the parsed expression, or null if it is invalid
+     */
+    public static ExpressionNode parse(String expression) {
+        return EXPRESSION_CACHE.get(expression, e -> FhirPathEngines.withEngine(engine -> engine.parse(e)));
+    }
+
+    /**
+     * Checks whether the resource, or for a Bundle one of its entries, is of a type accepted by the filter. The Bundle
+     * itself is not checked, as expressions are only applied to its entries.
+     *
+     * @param resource the resource to check
+     * @param filter   tests resource types
+     * @return true if a resource type is accepted
+     */
+    public static boolean anyResourceType(IBaseResource resource, Predicate<String> filter) {
+        if (resource instanceof Bundle) {
+            for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+                if (entry.getResource() != null && anyResourceType(entry.getResource(), filter)) return true;
+            }
+            return false;
         }
+        return resource != null && filter.test(resource.fhirType());
     }
 
     /**
@@ -47,110 +82,158 @@ public class FilterUtils {
     public static void removeFieldsByExpression(IBaseResource resource, List<String> expressions) {
         if (resource == null || expressions == null || expressions.isEmpty()) return;
 
-        if (resource instanceof DomainResource) {
-            ((DomainResource) resource).setText(null);
+        List<ExpressionNode> parsed = new ArrayList<>(expressions.size());
+        for (String expression : expressions) {
+            ExpressionNode node = parse(expression);
+            if (node != null) parsed.add(node);
         }
+        removeFields(resource, resourceType -> parsed, bundleParallelism);
+    }
 
-        // Handle bundles recursively
-        if (resource instanceof Bundle) {
-            for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
-                if (entry.getResource() != null)
-                    removeFieldsByExpression(entry.getResource(), expressions);
-            }
-            return;
-        }
+    /**
+     * Removes elements from a resource based on FHIRPath expressions parsed beforehand (see {@link #parse(String)}).
+     *
+     * @param resource    The resource to filter (IBaseResource / Resource)
+     * @param expressions List of parsed FHIRPath expressions to remove
+     */
+    public static void removeFieldsByParsedExpression(IBaseResource resource, List<ExpressionNode> expressions) {
+        removeFieldsByParsedExpression(resource, expressions, bundleParallelism);
+    }
 
-        for (String expression : expressions) {
-            try {
-                List<Base> matches = FHIR_PATH_ENGINE.evaluate((Base) resource, FHIR_PATH_ENGINE.parse(expression));
+    /**
+     * Same as {@link #removeFieldsByParsedExpression(IBaseResource, List)}, with the given Bundle parallelism.
+     *
+     * @param resource    The resource to filter (IBaseResource / Resource)
+     * @param expressions List of parsed FHIRPath expressions to remove
+     * @param parallelism how Bundle entries are split across threads
+     */
+    public static void removeFieldsByParsedExpression(IBaseResource resource, List<ExpressionNode> expressions,
+                                                      BundleParallelism parallelism) {
+        if (resource == null || expressions == null || expressions.isEmpty()) return;
 
-                for (Base match : matches) {
-                    removeElement((Resource) resource, match);
-                }
-            } catch (Exception e) {
-                // TODO See for exception here ?
-                LOGGER.error("Failed to apply FHIRPath expression '{}': {}", expression, e.getMessage());
-            }
-        }
+        removeFields(resource, resourceType -> expressions, parallelism);
     }
 
     /**
-     * Removes a Base element from its parent.
+     * Removes elements from a resource with the expressions of its type: the resource, or each entry of a Bundle, is
+     * only evaluated against the expressions returned for its own type. Resources of types without expressions (null)
+     * are left untouched, narrative included. The narrative of other resources is removed even if their list is empty,
+     * e.g. because none of the blacklist expressions of their rules could be parsed, as it may repeat redacted data.
      *
-     * @param resource the resource from which the element should be removed
-     * @param toRemove the element to remove
+     * @param resource          The resource to filter (IBaseResource / Resource)
+     * @param expressionsByType returns the parsed FHIRPath expressions to remove from resources of a type, or null if
+     *                          the type is not redacted, called from several threads when Bundle entries are redacted
+     *                          in parallel
+     * @return the number of elements removed
      */
-    private static void removeElement(Resource resource, Base toRemove) {
-        if (resource == null || toRemove == null) return;
-
-        RuntimeResourceDefinition def = CONTEXT.getResourceDefinition(resource);
-        removeFromChildren(resource, toRemove, def.getChildren());
+    public static int removeFieldsByParsedExpression(IBaseResource resource,
+                                                     Function<String, List<ExpressionNode>> expressionsByType) {
+        return removeFieldsByParsedExpression(resource, expressionsByType, bundleParallelism);
     }
 
     /**
-     * Recursively remove element from children.
+     * Same as {@link #removeFieldsByParsedExpression(IBaseResource, Function)}, with the given Bundle parallelism.
      *
-     * @param parent    the current level of the browsed resource.
-     * @param target    the target element to remove.
-     * @param children  the list of children to browse.
+     * @param resource          The resource to filter (IBaseResource / Resource)
+     * @param expressionsByType returns the parsed FHIRPath expressions to remove from resources of a type
+     * @param parallelism       how Bundle entries are split across threads
+     * @return the number of elements removed
      */
-    private static void removeFromChildren(Base parent, Base target, List<BaseRuntimeChildDefinition> children) {
-        for (BaseRuntimeChildDefinition childDef : children) {
-            List<IBase> values = new ArrayList<>(childDef.getAccessor().getValues(parent));
-            if (values == null || values.isEmpty()) continue;
-
-            // Remove target if present
-            if (safeRemoveChild(childDef, parent, target)) {
-                return;
+    public static int removeFieldsByParsedExpression(IBaseResource resource,
+                                                     Function<String, List<ExpressionNode>> expressionsByType,
+                                                     BundleParallelism parallelism) {
+        if (resource == null || expressionsByType == null) return 0;
+
+        return removeFields(resource, expressionsByType, parallelism);
+    }
+
+    private static int removeFields(IBaseResource resource, Function<String, List<ExpressionNode>> expressionsByType,
+                                    BundleParallelism parallelism) {
+        // Handle bundles recursively
+        if (resource instanceof Bundle && parallelism.isParallel(((Bundle) resource).getEntry().size())) {
+            List<Bundle.BundleEntryComponent> entries = ((Bundle) resource).getEntry();
+            return parallelism.pool().invoke(new EntriesTask(entries, 0, entries.size(), expressionsByType, parallelism.batchSize()));
+        }
+        return FhirPathEngines.withEngine(engine -> removeFields(resource, expressionsByType, engine));
+    }
+
+    private static int removeFields(IBaseResource resource, Function<String, List<ExpressionNode>> expressionsByType,
+                                    FHIRPathEngine engine) {
+        // Handle bundles recursively
+        if (resource instanceof Bundle) {
+            int removed = 0;
+            for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+                if (entry.getResource() != null)
+                    removed += removeFields(entry.getResource(), expressionsByType, engine);
             }
+            return removed;
+        }
 
-            // Recurse into child elements
-            for (IBase child : values) {
-                // Get child definition if possible
-                List<BaseRuntimeChildDefinition> grandChildren = List.of();
+        List<ExpressionNode> expressions = expressionsByType.apply(resource.fhirType());
+        if (expressions == null) return 0;
 
-                try {
-                    //TODO Remove one after testing !
-                    List<BaseRuntimeChildDefinition> grandChildren2 = childDef.getChildElementDefinitionByDatatype(child.getClass()).getChildren();
-
-                    if (child instanceof Resource)
-                        grandChildren = CONTEXT.getResourceDefinition((Resource) child).getChildren();
-                    else if (childDef.getChildByName(childDef.getElementName()) != null)
-                        grandChildren = childDef.getChildByName(childDef.getElementName()).getChildren();
-                } catch (Exception e) {
-                    LOGGER.warn("Error getting children elements : {}", e.getMessage());
-                }
+        if (resource instanceof DomainResource) {
+            ((DomainResource) resource).setText(null);
+        }
+        if (expressions.isEmpty()) return 0;
 
-                if (child instanceof Resource) {
-                    removeElement((Resource) child, target);
-                } else if (child instanceof Base) {
-                    removeFromChildren((Base) child, target, grandChildren);
-                }
+        List<Base> matches = new ArrayList<>();
+        for (ExpressionNode expression : expressions) {
+            try {
+                matches.addAll(engine.evaluate((Base) resource, expression));
+            } catch (Exception e) {
+                // TODO See for exception here ?
+                LOGGER.error("Failed to apply FHIRPath expression '{}': {}", expression, e.getMessage());
             }
         }
+
+        // Remove all matches in a single traversal of the resource
+        return ElementRemover.removeAll(CONTEXT, resource, matches);
     }
 
     /**
-     * Remove a child value.
-     *
-     * @param childDef  the child definition
-     * @param parent    the parent element
-     * @param target    the element to remove
-     * @return  true if the element was remove, false otherwise.
+     * Redacts a range of Bundle entries, splitting it in halves until it is small enough, and counts the elements
+     * removed.
      */
-    private static boolean safeRemoveChild(BaseRuntimeChildDefinition childDef, Base parent, Base target) {
-        List<IBase> values = new ArrayList<>(childDef.getAccessor().getValues(parent));
-
-        for (int i = 0; i < values.size(); i++) {
-            if (values.get(i) instanceof Base && ((Base) values.get(i)).equalsDeep(target)) {
-                if (childDef.isMultipleCardinality()) {
-                    childDef.getMutator().remove(parent, i);
-                } else {
-                    childDef.getMutator().setValue(parent, null);
+    private static class EntriesTask extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Bundle.BundleEntryComponent> entries;
+        private final int from;
+        private final int to;
+        private final Function<String, List<ExpressionNode>> expressionsByType;
+        private final int batchSize;
+
+        EntriesTask(List<Bundle.BundleEntryComponent> entries, int from, int to,
+                    Function<String, List<ExpressionNode>> expressionsByType, int batchSize) {
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.expressionsByType = expressionsByType;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from <= batchSize) {
+                int removed = 0;
+                FHIRPathEngine engine = FhirPathEngines.pool().borrow();
+                try {
+                    for (int i = from; i < to; i++) {
+                        if (entries.get(i).getResource() != null)
+                            removed += removeFields(entries.get(i).getResource(), expressionsByType, engine);
+                    }
+                } finally {
+                    FhirPathEngines.pool().release(engine);
                 }
-                return true;
+                return removed;
             }
+            int middle = (from + to) >>> 1;
+            EntriesTask left = new EntriesTask(entries, from, middle, expressionsByType, batchSize);
+            left.fork();
+            int right = new EntriesTask(entries, middle, to, expressionsByType, batchSize).compute();
+            return left.join() + right;
         }
-        return false;
     }
 }
@@ -6,14 +6,11 @@ import ca.uhn.fhir.context.RuntimeSearchParam;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import com.fyrstain.fhir.security.core.model.PermissionRule;
 import org.hl7.fhir.instance.model.api.IBaseResource;
-import org.hl7.fhir.r4.context.SimpleWorkerContext;
-import org.hl7.fhir.r4.fhirpath.FHIRPathEngine;
 import org.hl7.fhir.r4.model.Base;
 import org.hl7.fhir.r4.model.Identifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -25,15 +22,6 @@ public class MatcherUtils {
     private static final Logger LOGGER = LoggerFactory.getLogger(MatcherUtils.class);
 
     private static final FhirContext CONTEXT = FhirContext.forCached(FhirVersionEnum.R4);
-    private static final FHIRPathEngine FHIR_PATH_ENGINE;
-
-    static {
-        try {
-            FHIR_PATH_ENGINE = new FHIRPathEngine(new SimpleWorkerContext());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
 
     public static void matchOrThrow(IBaseResource resource, List<PermissionRule> rules) {
         try {
@@ -99,7 +87,7 @@ public class MatcherUtils {
             throw new IllegalStateException("SearchParameter has no FHIRPath expression");
         }
 
-        return FHIR_PATH_ENGINE.evaluate((Base) resource, expr);
+        return FhirPathEngines.withEngine(engine -> engine.evaluate((Base) resource, expr));
     }
 
     private static boolean checkTokenMatch(List<Base> extracted, ParsedCriteria parsed) {
@@ -1,23 +1,94 @@
 package com.fyrstain.fhir.security.core.r4;
 
 import com.fyrstain.fhir.security.core.SimplePermissionEvaluator;
+import com.fyrstain.fhir.security.core.cache.PermissionFragmentCache;
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
 import com.fyrstain.fhir.security.core.model.FhirResponse;
 import com.fyrstain.fhir.security.core.model.PermissionRule;
+import org.hl7.fhir.r4.fhirpath.ExpressionNode;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 public class SimpleR4PermissionEvaluator extends SimplePermissionEvaluator {
 
+    public SimpleR4PermissionEvaluator() {
+        super();
+    }
+
+    /**
+     * @param fragmentCache cache of compiled rules per Permission resource, shared by all users of this evaluator.
+     */
+    public SimpleR4PermissionEvaluator(PermissionFragmentCache fragmentCache) {
+        super(fragmentCache);
+    }
+
     /**
      * {@inheritDoc}
+     * <p>
+     * Each resource, or each entry of a Bundle, is only redacted with the blacklist expressions of the rules of its own
+     * type and of the wildcard rules. The resource is left untouched, without walking it, when the policy has no
+     * redaction for its type (or for the types of its entries).
+     */
+    @Override
+    public FhirResponse filterResponse(FhirResponse response, CompiledPolicy policy) {
+        if (!FilterUtils.anyResourceType(response.getResource(), policy::hasRedaction)) {
+            return response;
+        }
+        int removed = FilterUtils.removeFieldsByParsedExpression(response.getResource(),
+                resourceType -> parsedBlacklistExpressions(policy, resourceType));
+        return response.setRedactedElementCount(removed);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Same as {@link #filterResponse(FhirResponse, CompiledPolicy)}: expressions are routed by resource type.
      */
     @Override
     public FhirResponse filterResponse(FhirResponse response, List<PermissionRule> rules) {
-        List<String> blacklistExpressions = rules.stream()
-                .flatMap(r -> r.getBlacklistExpressions().stream()).collect(Collectors.toList());
+        return filterResponse(response, new CompiledPolicy(rules));
+    }
 
-        FilterUtils.removeFieldsByExpression(response.getResource(), blacklistExpressions);
-        return response;
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected List<ExpressionNode> parseBlacklistExpressions(List<String> expressions) {
+        List<ExpressionNode> parsed = new ArrayList<>(expressions.size());
+        for (String expression : expressions) {
+            ExpressionNode node = FilterUtils.parse(expression);
+            if (node != null) parsed.add(node);
+        }
+        return parsed;
+    }
+
+    /**
+     * Returns the expressions of the rules redacting the resource type, as grouped at compile time, or null if the
+     * type is not redacted. The list is empty, but not null, when none of the expressions of these rules parsed.
+     */
+    private List<ExpressionNode> parsedBlacklistExpressions(CompiledPolicy policy, String resourceType) {
+        if (!policy.hasRedaction(resourceType)) return null;
+        List<ExpressionNode> parsed = policy.getParsedBlacklistExpressions(resourceType, ExpressionNode.class);
+        if (parsed != null) {
+            return parsed;
+        }
+        List<ExpressionNode> expressions = new ArrayList<>();
+        for (PermissionRule rule : policy.getRedactionRules(resourceType)) {
+            expressions.addAll(parsedBlacklistExpressions(rule));
+        }
+        return expressions;
+    }
+
+    /**
+     * Returns the expressions parsed at compile time, or parses them (through the shared cache) for rules that were
+     * not compiled by this evaluator.
+     */
+    private List<ExpressionNode> parsedBlacklistExpressions(PermissionRule rule) {
+        List<ExpressionNode> parsed = rule.getParsedBlacklistExpressions(ExpressionNode.class);
+        if (parsed != null) {
+            return parsed;
+        }
+        return parseBlacklistExpressions(rule.getBlacklistExpressions());
     }
 }
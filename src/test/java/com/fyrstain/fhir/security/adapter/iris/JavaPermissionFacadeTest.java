@@ -0,0 +1,64 @@
+package com.fyrstain.fhir.security.adapter.iris;
+
+import com.fyrstain.fhir.security.core.PermissionService;
+import com.fyrstain.fhir.security.core.model.PermissionContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class JavaPermissionFacadeTest {
+
+    @Test
+    void evaluateRequests_shouldAnswerEveryLineInOrder() throws Throwable {
+        // The facade permission service grants nothing: every readable request is denied
+        String requests = "{\"httpVerb\":\"GET\",\"resourceType\":\"Patient\",\"searchParameters\":\"name=Doe\"}\n"
+                + "\n"
+                + "{\"httpVerb\":\"POST\",\"resourceType\":\"Patient\",\"body\":{\"resourceType\":\"Patient\",\"name\":[{\"family\":\"Doe\"}]}}\n"
+                + "{\"httpVerb\":\"FETCH\",\"resourceType\":\"Patient\"}\n"
+                + "not json\n"
+                + "{\"resourceType\":\"Patient\"}\n";
+
+        String decisions = JavaPermissionFacade.evaluateRequests("userId", "token", requests);
+
+        List<String> lines = decisions.lines().toList();
+        assertThat(lines).hasSize(5);
+        assertThat(lines.get(0)).isEqualTo("{\"allowed\":false}");
+        assertThat(lines.get(1)).isEqualTo("{\"allowed\":false}");
+        assertThat(lines.get(2)).startsWith("{\"allowed\":false,\"error\":").contains("FETCH");
+        assertThat(lines.get(3)).startsWith("{\"allowed\":false,\"error\":");
+        assertThat(lines.get(4)).isEqualTo("{\"allowed\":false,\"error\":\"httpVerb is missing\"}");
+    }
+
+    @Test
+    void parseBatch_shouldKeepBodyAsWritten() {
+        List<RequestBatch.Item> items = RequestBatch.parse(
+                "{\"httpVerb\":\"PUT\",\"resourceType\":\"Patient\",\"resourceId\":\"1\",\"body\":{\"resourceType\":\"Patient\",\"id\":\"1\"},\"extra\":1}");
+
+        assertThat(items).hasSize(1);
+        assertThat(items.get(0).error).isNull();
+        assertThat(items.get(0).httpVerb).isEqualTo("PUT");
+        assertThat(items.get(0).resourceId).isEqualTo("1");
+        assertThat(items.get(0).body).isEqualTo("{\"resourceType\":\"Patient\",\"id\":\"1\"}");
+    }
+
+    @Test
+    void permissionService_shouldBeCreatedFromClassName() {
+        assertThat(JavaPermissionFacade.permissionService(null)).isInstanceOf(JavaPermissionFacade.MockPermissionService.class);
+        assertThat(JavaPermissionFacade.permissionService(StaticPermissionService.class.getName()))
+                .isInstanceOf(StaticPermissionService.class);
+        assertThatThrownBy(() -> JavaPermissionFacade.permissionService(String.class.getName()))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    public static class StaticPermissionService implements PermissionService {
+
+        @Override
+        public List<IBaseResource> getPermissions(PermissionContext context) {
+            return List.of();
+        }
+    }
+}
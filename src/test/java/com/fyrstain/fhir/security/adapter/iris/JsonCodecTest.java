@@ -0,0 +1,63 @@
+package com.fyrstain.fhir.security.adapter.iris;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JsonCodecTest {
+
+    private static final String PATIENT = "{\"resourceType\":\"Patient\",\"id\":\"1\",\"name\":[{\"family\":\"Doe\",\"given\":[\"John\"]}]}";
+
+    @Test
+    void core_shouldRoundTripCompactByDefault() throws Exception {
+        JsonCodec codec = JsonCodec.core(false);
+
+        Patient patient = (Patient) codec.parse(PATIENT);
+
+        assertThat(patient.getNameFirstRep().getFamily()).isEqualTo("Doe");
+        assertThat(codec.encode(patient)).isEqualTo(PATIENT);
+    }
+
+    @Test
+    void hapi_shouldRoundTripCompact() throws Exception {
+        JsonCodec codec = JsonCodec.hapi(FhirContext.forCached(FhirVersionEnum.R4), false);
+
+        Patient patient = (Patient) codec.parse(PATIENT);
+
+        assertThat(patient.getNameFirstRep().getFamily()).isEqualTo("Doe");
+        assertThat(codec.encode(patient)).doesNotContain("\n").contains("\"family\":\"Doe\"");
+    }
+
+    @Test
+    void core_shouldIndentWhenPretty() throws Exception {
+        JsonCodec codec = JsonCodec.core(true);
+
+        assertThat(codec.encode(codec.parse(PATIENT))).contains("\n");
+    }
+
+    @Test
+    void core_shouldBeUsableFromSeveralThreads() throws Exception {
+        JsonCodec codec = JsonCodec.core(false);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                results.add(executor.submit(() -> codec.encode(codec.parse(PATIENT))));
+            }
+            for (Future<String> result : results) {
+                assertThat(result.get()).isEqualTo(PATIENT);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
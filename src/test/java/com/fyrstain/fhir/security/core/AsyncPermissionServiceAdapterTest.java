@@ -0,0 +1,55 @@
+package com.fyrstain.fhir.security.core;
+
+import com.fyrstain.fhir.security.core.model.PermissionContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncPermissionServiceAdapterTest {
+
+    @Test
+    void platformExecutor_shouldQueueCallsBeyondItsThreads() throws Exception {
+        ExecutorService executor = AsyncPermissionServiceAdapter.newPlatformExecutor(2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AsyncPermissionService service = AsyncPermissionService.of(context -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            return List.of();
+        }, executor);
+
+        try {
+            List<CompletableFuture<List<IBaseResource>>> calls = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                calls.add(service.getPermissionsAsync(new PermissionContext("user-" + i, null, null, null, null)));
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (running.get() < 2 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            assertEquals(2, running.get());
+
+            release.countDown();
+            CompletableFuture.allOf(calls.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+            assertEquals(2, maxRunning.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.fyrstain.fhir.security.core;
+
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.FhirRequest;
+import com.fyrstain.fhir.security.core.model.PermissionOperation;
+import com.fyrstain.fhir.security.core.model.PermissionRule;
+import com.fyrstain.fhir.security.core.r4.SimpleR4PermissionEvaluator;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumSet;
+import java.util.List;
+
+import static com.fyrstain.fhir.security.core.model.PermissionOperation.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Regression test making sure the decision path does not allocate once warmed up.
+ */
+class CanPerformAllocationTest {
+
+    private static final int ITERATIONS = 1_000_000;
+    // Allowance for the measurement itself (e.g. reading the allocation counter), far below one byte per call
+    private static final long MAX_ALLOCATED_BYTES = 512;
+
+    private final PermissionEvaluator evaluator = new SimpleR4PermissionEvaluator();
+
+    private final CompiledPolicy policy = new CompiledPolicy(List.of(
+            new PermissionRule("*", EnumSet.of(METADATA), true, List.of(), List.of()),
+            new PermissionRule("Patient", EnumSet.of(READ, SEARCH), true, List.of(), List.of()),
+            new PermissionRule("Patient", EnumSet.of(SEARCH), false, List.of(), List.of()),
+            new PermissionRule("Observation", EnumSet.of(READ, CREATE), true, List.of(), List.of())
+    ));
+
+    private final FhirRequest[] requests = {
+            new FhirRequest().setMethod(FhirRequest.HTTPVerb.GET).setResourceType("Patient").setResourceId("1"),
+            new FhirRequest().setMethod(FhirRequest.HTTPVerb.GET).setResourceType("Patient"),
+            new FhirRequest().setMethod(FhirRequest.HTTPVerb.POST).setResourceType("Observation"),
+            new FhirRequest().setMethod(FhirRequest.HTTPVerb.DELETE).setResourceType("Encounter"),
+    };
+
+    private final PermissionOperation[] operations = PermissionOperation.values();
+
+    @Test
+    void canPerform_shouldNotAllocateAfterWarmUp() {
+        com.sun.management.ThreadMXBean threads = threadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // Warm-up, so that the JIT has compiled the decision path
+        int allowed = run();
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        int allowedAfterWarmUp = run();
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(allowed, allowedAfterWarmUp);
+        assertTrue(allocated <= MAX_ALLOCATED_BYTES, "Allocated " + allocated + " bytes for " + ITERATIONS + " calls");
+    }
+
+    private int run() {
+        int allowed = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            FhirRequest request = requests[i % requests.length];
+            if (evaluator.canPerform(request.getResourceTypeId(), request.getOperation(), policy)) allowed++;
+            if (policy.canPerform(request.getResourceType(), operations[i % operations.length])) allowed++;
+        }
+        return allowed;
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                "Thread allocation counters are not available on this JVM");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled(),
+                "Thread allocation counters are disabled");
+        return threads;
+    }
+}
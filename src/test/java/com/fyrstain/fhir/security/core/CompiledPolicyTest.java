@@ -0,0 +1,174 @@
+package com.fyrstain.fhir.security.core;
+
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.PermissionOperation;
+import com.fyrstain.fhir.security.core.model.PermissionRule;
+import com.fyrstain.fhir.security.core.r4.SimpleR4PermissionEvaluator;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import static com.fyrstain.fhir.security.core.model.PermissionOperation.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompiledPolicyTest {
+
+    @Test
+    void canPerform_emptyPolicy() {
+        CompiledPolicy policy = new CompiledPolicy(List.of());
+
+        assertFalse(policy.canPerform("Patient", READ));
+    }
+
+    @Test
+    void canPerform_allowAndDenyOnSameType() {
+        CompiledPolicy policy = new CompiledPolicy(List.of(
+                new PermissionRule("Patient", EnumSet.of(READ, SEARCH), true, List.of(), List.of()),
+                new PermissionRule("Patient", EnumSet.of(SEARCH), false, List.of(), List.of())
+        ));
+
+        assertTrue(policy.canPerform("Patient", READ));
+        assertFalse(policy.canPerform("Patient", SEARCH));
+        assertFalse(policy.canPerform("Patient", CREATE));
+        assertFalse(policy.canPerform("Observation", READ));
+    }
+
+    @Test
+    void canPerform_wildcardIsFoldedIntoEveryType() {
+        CompiledPolicy policy = new CompiledPolicy(List.of(
+                new PermissionRule("*", EnumSet.of(READ), true, List.of(), List.of()),
+                new PermissionRule("*", EnumSet.of(DELETE), false, List.of(), List.of()),
+                new PermissionRule("Patient", EnumSet.of(DELETE, UPDATE), true, List.of(), List.of()),
+                new PermissionRule("Observation", EnumSet.of(READ), false, List.of(), List.of())
+        ));
+
+        assertTrue(policy.canPerform("Patient", READ));
+        assertTrue(policy.canPerform("Patient", UPDATE));
+        assertFalse(policy.canPerform("Patient", DELETE));
+        assertFalse(policy.canPerform("Observation", READ));
+        assertTrue(policy.canPerform("Encounter", READ));
+        assertFalse(policy.canPerform("Encounter", UPDATE));
+    }
+
+    @Test
+    void canPerform_shouldMatchListBasedEvaluation() {
+        PermissionEvaluator evaluator = new SimpleR4PermissionEvaluator();
+        List<PermissionRule> rules = List.of(
+                new PermissionRule("*", EnumSet.of(READ, SEARCH), true, List.of(), List.of()),
+                new PermissionRule("Patient", EnumSet.of(SEARCH, CUSTOM), false, List.of(), List.of()),
+                new PermissionRule("Observation", EnumSet.of(CREATE), true, List.of(), List.of())
+        );
+        CompiledPolicy policy = new CompiledPolicy(rules);
+
+        for (String type : List.of("Patient", "Observation", "Encounter")) {
+            for (PermissionOperation op : PermissionOperation.values()) {
+                assertEquals(evaluator.canPerform(type, op, rules), evaluator.canPerform(type, op, policy), type + " " + op);
+            }
+        }
+    }
+
+    @Test
+    void canPerform_permitOverridesWithinGroup() {
+        CompiledPolicy policy = new CompiledPolicy(List.of(
+                new PermissionRule("*", EnumSet.of(READ, DELETE), false, List.of(), List.of(), "Permission/a"),
+                new PermissionRule("Patient", EnumSet.of(READ), true, List.of(), List.of(), "Permission/a"),
+                new PermissionRule("Observation", EnumSet.of(SEARCH), false, List.of(), List.of(), "Permission/a"),
+                new PermissionRule("Observation", EnumSet.of(SEARCH, CREATE), true, List.of(), List.of(), "Permission/a"),
+                new PermissionRule("*", EnumSet.of(UPDATE), true, List.of(), List.of())
+        ));
+
+        assertTrue(policy.canPerform("Patient", READ));
+        assertFalse(policy.canPerform("Patient", DELETE));
+        assertTrue(policy.canPerform("Observation", SEARCH));
+        assertTrue(policy.canPerform("Observation", CREATE));
+        assertFalse(policy.canPerform("Observation", READ));
+        assertFalse(policy.canPerform("Encounter", READ));
+        assertTrue(policy.canPerform("Encounter", UPDATE));
+    }
+
+    @Test
+    void canPerform_groupsDoNotOverrideOtherPermissions() {
+        CompiledPolicy policy = new CompiledPolicy(List.of(
+                new PermissionRule("*", EnumSet.of(READ), false, List.of(), List.of(), "Permission/a"),
+                new PermissionRule("Patient", EnumSet.of(READ, SEARCH), true, List.of(), List.of(), "Permission/b"),
+                new PermissionRule("Observation", EnumSet.of(READ), true, List.of(), List.of(), "Permission/a"),
+                new PermissionRule("Observation", EnumSet.of(SEARCH), false, List.of(), List.of())
+        ));
+
+        assertFalse(policy.canPerform("Patient", READ));
+        assertTrue(policy.canPerform("Patient", SEARCH));
+        assertTrue(policy.canPerform("Observation", READ));
+        assertFalse(policy.canPerform("Observation", SEARCH));
+    }
+
+    @Test
+    void canPerform_groupsShouldMatchListBasedEvaluation() {
+        PermissionEvaluator evaluator = new SimpleR4PermissionEvaluator();
+        List<String> types = List.of("*", "Patient", "Observation", "Encounter");
+        Random random = new Random(42);
+        for (int policyIndex = 0; policyIndex < 200; policyIndex++) {
+            List<PermissionRule> rules = new ArrayList<>();
+            for (int i = 0, count = 1 + random.nextInt(8); i < count; i++) {
+                EnumSet<PermissionOperation> operations = EnumSet.noneOf(PermissionOperation.class);
+                operations.add(PermissionOperation.values()[random.nextInt(4)]);
+                operations.add(PermissionOperation.values()[random.nextInt(4)]);
+                String group = random.nextInt(3) == 0 ? null : "Permission/" + random.nextInt(3);
+                rules.add(new PermissionRule(types.get(random.nextInt(types.size())), operations, random.nextBoolean(),
+                        List.of(), List.of(), group));
+            }
+            CompiledPolicy policy = new CompiledPolicy(rules);
+
+            for (String type : types.subList(1, types.size())) {
+                for (PermissionOperation op : PermissionOperation.values()) {
+                    assertEquals(evaluator.canPerform(type, op, rules), evaluator.canPerform(type, op, policy), rules + " " + type + " " + op);
+                }
+            }
+        }
+    }
+
+    @Test
+    void getParsedBlacklistExpressions_shouldCheckTheirTypeAtCompileTime() {
+        CompiledPolicy policy = new CompiledPolicy(List.of(
+                new PermissionRule("Patient", EnumSet.of(READ), false, List.of("Patient.telecom"), List.of())
+                        .withParsedBlacklistExpressions(List.of("parsed telecom")),
+                new PermissionRule("Observation", EnumSet.of(READ), false, List.of("Observation.note"), List.of())
+                        .withParsedBlacklistExpressions(List.of("parsed note")),
+                new PermissionRule("Observation", EnumSet.of(READ), false, List.of("Observation.value"), List.of())
+                        .withParsedBlacklistExpressions(List.of(42))
+        ));
+
+        assertEquals(List.of("parsed telecom"), policy.getParsedBlacklistExpressions("Patient", String.class));
+        assertNull(policy.getParsedBlacklistExpressions("Patient", Integer.class));
+        // Expressions of different types are never returned as one of them
+        assertNull(policy.getParsedBlacklistExpressions("Observation", String.class));
+        assertEquals(List.of(), policy.getParsedBlacklistExpressions("Encounter", String.class));
+        assertEquals(List.of(42), policy.getRules().get(2).getParsedBlacklistExpressions(Integer.class));
+        assertNull(policy.getRules().get(2).getParsedBlacklistExpressions(String.class));
+    }
+
+    @Test
+    void hasRedaction_onlyForTypesWithBlacklistExpressions() {
+        CompiledPolicy policy = new CompiledPolicy(List.of(
+                new PermissionRule("Patient", EnumSet.of(READ), true, List.of(), List.of()),
+                new PermissionRule("Observation", EnumSet.of(READ), false, List.of("Observation.note"), List.of())
+        ));
+
+        assertTrue(policy.hasRedaction("Observation"));
+        assertFalse(policy.hasRedaction("Patient"));
+        assertFalse(policy.hasRedaction("Encounter"));
+        assertFalse(policy.hasRedaction("NotAType"));
+    }
+
+    @Test
+    void hasRedaction_wildcardRedactsEveryType() {
+        CompiledPolicy policy = new CompiledPolicy(List.of(
+                new PermissionRule("*", EnumSet.of(READ), false, List.of("meta"), List.of())
+        ));
+
+        assertTrue(policy.hasRedaction("Patient"));
+        assertTrue(policy.hasRedaction("NotAType"));
+    }
+}
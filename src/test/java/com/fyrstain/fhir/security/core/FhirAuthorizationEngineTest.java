@@ -3,7 +3,11 @@ package com.fyrstain.fhir.security.core;
 import com.fyrstain.fhir.security.core.FhirAuthorizationEngine;
 import com.fyrstain.fhir.security.core.MockPermissionService;
 import com.fyrstain.fhir.security.core.PermissionEvaluator;
+import com.fyrstain.fhir.security.core.cache.PolicyCache;
+import com.fyrstain.fhir.security.core.metrics.AuthorizationMetrics.Phase;
+import com.fyrstain.fhir.security.core.metrics.InMemoryAuthorizationMetrics;
 import com.fyrstain.fhir.security.core.model.FhirRequest;
+import com.fyrstain.fhir.security.core.model.FhirResponse;
 import com.fyrstain.fhir.security.core.model.PermissionContext;
 import com.fyrstain.fhir.security.core.model.RequestEvaluationResult;
 import com.fyrstain.fhir.security.core.r4.SimpleR4PermissionEvaluator;
@@ -13,6 +17,10 @@ import org.junit.jupiter.api.Test;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -192,4 +200,218 @@ public class FhirAuthorizationEngineTest {
         assertFalse(result.isAllowed());
         assertEquals(searchParameters, result.getModifiedSearchParameters());
     }
+
+    @Test
+    void evaluateRequests_shouldEvaluateAllRequestsAgainstOnePolicy() {
+        Permission permission = new Permission();
+        permission.setStatus(Permission.PermissionStatus.ACTIVE)
+                .setCombining(Permission.PermissionRuleCombining.DENYUNLESSPERMIT)
+                .addRule(new Permission.RuleComponent()
+                        .setType(Enumerations.ConsentProvisionType.PERMIT)
+                        .addData(new Permission.RuleDataComponent()
+                                .addResource(new Permission.RuleDataResourceComponent()
+                                        .setMeaning(Enumerations.ConsentDataMeaning.INSTANCE)
+                                        .setReference(new Reference().setDisplay("Patient"))
+                                )
+                        ).addActivity(new Permission.RuleActivityComponent()
+                                .addAction(new CodeableConcept().addCoding(new Coding().setCode("read")))
+                        )
+                );
+        permissionService.addRule(permission);
+        AtomicInteger calls = new AtomicInteger();
+        FhirAuthorizationEngine countingEngine = new FhirAuthorizationEngine(context -> {
+            calls.incrementAndGet();
+            return permissionService.getPermissions(context);
+        }, evaluator);
+
+        PermissionContext permissionContext = new PermissionContext("userId", null, "token", null, null);
+
+        List<RequestEvaluationResult> results = countingEngine.evaluateRequests(permissionContext, List.of(
+                new FhirRequest().setMethod(FhirRequest.HTTPVerb.GET).setResourceType("Patient").setResourceId("1"),
+                new FhirRequest().setMethod(FhirRequest.HTTPVerb.GET).setResourceType("Observation").setResourceId("2"),
+                new FhirRequest().setMethod(FhirRequest.HTTPVerb.DELETE).setResourceType("Patient").setResourceId("1")));
+
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).isAllowed());
+        assertFalse(results.get(1).isAllowed());
+        assertFalse(results.get(2).isAllowed());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void evaluateRequest_shouldNotParseBody() {
+        Permission permission = new Permission();
+        permission.setStatus(Permission.PermissionStatus.ACTIVE)
+                .setCombining(Permission.PermissionRuleCombining.DENYUNLESSPERMIT)
+                .addRule(new Permission.RuleComponent()
+                        .setType(Enumerations.ConsentProvisionType.PERMIT)
+                        .addData(new Permission.RuleDataComponent()
+                                .addResource(new Permission.RuleDataResourceComponent()
+                                        .setMeaning(Enumerations.ConsentDataMeaning.INSTANCE)
+                                        .setReference(new Reference().setDisplay("Patient"))
+                                )
+                        ).addActivity(new Permission.RuleActivityComponent()
+                                .addAction(new CodeableConcept().addCoding(new Coding().setCode("create")))
+                        )
+                );
+        permissionService.addRule(permission);
+        AtomicInteger parsed = new AtomicInteger();
+
+        PermissionContext permissionContext = new PermissionContext("userId", null, "token", null, null);
+
+        FhirRequest allowed = new FhirRequest().setMethod(FhirRequest.HTTPVerb.POST).setResourceType("Patient")
+                .setBodySupplier(() -> {
+                    parsed.incrementAndGet();
+                    return new org.hl7.fhir.r4.model.Patient();
+                });
+        FhirRequest denied = new FhirRequest().setMethod(FhirRequest.HTTPVerb.PUT).setResourceType("Patient")
+                .setBodySupplier(() -> {
+                    throw new IllegalArgumentException("Invalid request body");
+                });
+
+        assertTrue(engine.evaluateRequest(permissionContext, allowed).isAllowed());
+        assertFalse(engine.evaluateRequest(permissionContext, denied).isAllowed());
+        assertEquals(0, parsed.get());
+        assertFalse(allowed.isBodyParsed());
+
+        assertNotNull(allowed.getBody());
+        assertNotNull(allowed.getBody());
+        assertEquals(1, parsed.get());
+        assertTrue(allowed.isBodyParsed());
+    }
+
+    @Test
+    void filterResponse_shouldSkipTypesWithoutRedaction() {
+        Permission permission = new Permission();
+        permission.setStatus(Permission.PermissionStatus.ACTIVE)
+                .setCombining(Permission.PermissionRuleCombining.PERMITUNLESSDENY)
+                .addRule(new Permission.RuleComponent()
+                        .setType(Enumerations.ConsentProvisionType.DENY)
+                        .addData(new Permission.RuleDataComponent()
+                                .addResource(new Permission.RuleDataResourceComponent()
+                                        .setMeaning(Enumerations.ConsentDataMeaning.INSTANCE)
+                                        .setReference(new Reference().setDisplay("Patient"))
+                                ).setExpression(new Expression().setLanguage("text/fhirpath").setExpression("Patient.telecom")))
+                );
+        permissionService.addRule(permission);
+
+        PermissionContext permissionContext = new PermissionContext("userId", null, "token", null, null);
+
+        org.hl7.fhir.r4.model.Observation observation = new org.hl7.fhir.r4.model.Observation();
+        observation.getText().setDivAsString("<div>narrative</div>");
+        engine.filterResponse(permissionContext, new FhirResponse().setResource(observation));
+        assertTrue(observation.hasText());
+
+        org.hl7.fhir.r4.model.Patient patient = new org.hl7.fhir.r4.model.Patient();
+        patient.getText().setDivAsString("<div>narrative</div>");
+        patient.addTelecom().setValue("123");
+        org.hl7.fhir.r4.model.Bundle bundle = new org.hl7.fhir.r4.model.Bundle();
+        bundle.addEntry().setResource(patient);
+        engine.filterResponse(permissionContext, new FhirResponse().setResource(bundle));
+        assertFalse(patient.hasText());
+        assertFalse(patient.hasTelecom());
+    }
+
+    @Test
+    void metrics_shouldRecordEachPhase() {
+        Permission permission = new Permission();
+        permission.setStatus(Permission.PermissionStatus.ACTIVE)
+                .addRule(new Permission.RuleComponent()
+                        .setType(Enumerations.ConsentProvisionType.PERMIT)
+                        .addData(new Permission.RuleDataComponent()
+                                .addResource(new Permission.RuleDataResourceComponent()
+                                        .setMeaning(Enumerations.ConsentDataMeaning.INSTANCE)
+                                        .setReference(new Reference().setDisplay("Patient"))
+                                )
+                        ).addActivity(new Permission.RuleActivityComponent()
+                                .addAction(new CodeableConcept().addCoding(new Coding().setCode("search")))
+                        )
+                )
+                .addRule(new Permission.RuleComponent()
+                        .setType(Enumerations.ConsentProvisionType.DENY)
+                        .addData(new Permission.RuleDataComponent()
+                                .addResource(new Permission.RuleDataResourceComponent()
+                                        .setMeaning(Enumerations.ConsentDataMeaning.INSTANCE)
+                                        .setReference(new Reference().setDisplay("Patient"))
+                                ).setExpression(new Expression().setLanguage("text/fhirpath").setExpression("Patient.telecom")))
+                );
+        permissionService.addRule(permission);
+        InMemoryAuthorizationMetrics metrics = new InMemoryAuthorizationMetrics();
+        FhirAuthorizationEngine measuredEngine = new FhirAuthorizationEngine(permissionService, evaluator, new PolicyCache(), metrics);
+
+        PermissionContext permissionContext = new PermissionContext("userId", null, "token", null, null);
+
+        measuredEngine.evaluateRequest(permissionContext, new FhirRequest().setMethod(FhirRequest.HTTPVerb.GET).setResourceType("Patient"));
+        measuredEngine.evaluateRequest(permissionContext, new FhirRequest().setMethod(FhirRequest.HTTPVerb.GET).setResourceType("Patient"));
+
+        org.hl7.fhir.r4.model.Patient patient = new org.hl7.fhir.r4.model.Patient();
+        patient.addTelecom().setValue("123");
+        patient.addTelecom().setValue("456");
+        org.hl7.fhir.r4.model.Bundle bundle = new org.hl7.fhir.r4.model.Bundle();
+        bundle.addEntry().setResource(patient);
+        bundle.addEntry().setResource(new org.hl7.fhir.r4.model.Observation());
+        FhirResponse response = measuredEngine.filterResponse(permissionContext, new FhirResponse().setResource(bundle));
+
+        assertEquals(2, response.getRedactedElementCount());
+        assertEquals(1, metrics.getLatency(Phase.PERMISSION_FETCH).getCount());
+        assertEquals(1, metrics.getLatency(Phase.COMPILE).getCount());
+        assertEquals(2, metrics.getLatency(Phase.DECISION).getCount());
+        assertEquals(2, metrics.getLatency(Phase.SEARCH_REWRITE).getCount());
+        assertEquals(1, metrics.getLatency(Phase.REDACTION).getCount());
+        assertEquals(2, metrics.getRuleCounts().getMax());
+        assertEquals(2, metrics.getBundleSizes().getMax());
+        assertEquals(2, metrics.getRedactionMatches().getMax());
+    }
+
+    @Test
+    void evaluateRequestAsync_shouldCompleteWhenPermissionsArrive() {
+        Permission permission = new Permission();
+        permission.setStatus(Permission.PermissionStatus.ACTIVE)
+                .addRule(new Permission.RuleComponent()
+                        .setType(Enumerations.ConsentProvisionType.PERMIT)
+                        .addData(new Permission.RuleDataComponent()
+                                .addResource(new Permission.RuleDataResourceComponent()
+                                        .setMeaning(Enumerations.ConsentDataMeaning.INSTANCE)
+                                        .setReference(new Reference().setDisplay("Patient"))
+                                )
+                        ).addActivity(new Permission.RuleActivityComponent()
+                                .addAction(new CodeableConcept().addCoding(new Coding().setCode("read")))
+                        )
+                );
+        CompletableFuture<List<org.hl7.fhir.instance.model.api.IBaseResource>> permissions = new CompletableFuture<>();
+        FhirAuthorizationEngine asyncEngine = new FhirAuthorizationEngine((AsyncPermissionService) context -> permissions, evaluator,
+                new PolicyCache(), com.fyrstain.fhir.security.core.metrics.AuthorizationMetrics.noop());
+
+        PermissionContext permissionContext = new PermissionContext("userId", null, "token", null, null);
+        FhirRequest request = new FhirRequest().setMethod(FhirRequest.HTTPVerb.GET).setResourceType("Patient").setResourceId("1");
+
+        CompletableFuture<RequestEvaluationResult> result = asyncEngine.evaluateRequestAsync(permissionContext, request);
+        assertFalse(result.isDone());
+
+        permissions.complete(List.of(permission));
+        assertTrue(result.join().isAllowed());
+
+        // The policy is now cached: the next evaluation completes on the calling thread
+        assertTrue(asyncEngine.evaluateRequestAsync(permissionContext, request).isDone());
+        assertTrue(asyncEngine.evaluateRequest(permissionContext, request).isAllowed());
+    }
+
+    @Test
+    void filterResponseAsync_shouldRunSynchronousServiceOffTheCallingThread() {
+        AtomicReference<Thread> serviceThread = new AtomicReference<>();
+        FhirAuthorizationEngine asyncEngine = new FhirAuthorizationEngine(context -> {
+            serviceThread.set(Thread.currentThread());
+            throw new IllegalStateException("Permission store unavailable");
+        }, evaluator);
+
+        PermissionContext permissionContext = new PermissionContext("userId", null, "token", null, null);
+
+        CompletableFuture<FhirResponse> response = asyncEngine.filterResponseAsync(permissionContext,
+                new FhirResponse().setResource(new org.hl7.fhir.r4.model.Patient()));
+
+        CompletionException error = assertThrows(CompletionException.class, response::join);
+        assertInstanceOf(IllegalStateException.class, error.getCause());
+        assertNotSame(Thread.currentThread(), serviceThread.get());
+        assertThrows(IllegalStateException.class, () -> asyncEngine.filterResponse(permissionContext, new FhirResponse()));
+    }
 }
@@ -0,0 +1,159 @@
+package com.fyrstain.fhir.security.core;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fyrstain.fhir.security.core.model.PermissionContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.Patient;
+import org.hl7.fhir.r5.model.Permission;
+import org.hl7.fhir.r5.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FilePermissionServiceTest {
+
+    private static final FhirContext CONTEXT = FhirContext.forR5Cached();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void getPermissions_shouldSelectByUserRoleAndOrganization() throws IOException {
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(permission("user", new Reference("Practitioner/123")));
+        bundle.addEntry().setResource(permission("role", new Reference().setIdentifier(
+                new org.hl7.fhir.r5.model.Identifier().setSystem(FilePermissionService.ROLE_SYSTEM).setValue("nurse"))));
+        bundle.addEntry().setResource(new Patient());
+        write("a.json", CONTEXT.newJsonParser().encodeResourceToString(bundle));
+        write("b.ndjson", encode(permission("organization", new Reference("Organization/org1"))) + "\n\n"
+                + encode(permission("everyone")) + "\n");
+        write("ignored.txt", "not a Permission");
+
+        FilePermissionService service = new FilePermissionService(directory);
+
+        assertEquals(4, service.size());
+        assertEquals(List.of("user", "role", "organization", "everyone"),
+                ids(service.getPermissions(new PermissionContext("Practitioner/123", null, null, Set.of("nurse"), "org1"))));
+        assertEquals(List.of("user", "everyone"),
+                ids(service.getPermissions(new PermissionContext("123", null, null, Set.of("doctor"), null))));
+        assertEquals(List.of("role", "everyone"),
+                ids(service.getPermissions(new PermissionContext("someone", null, null, Set.of("nurse"), null))));
+        assertEquals(List.of("everyone"),
+                ids(service.getPermissions(new PermissionContext("someone", null, null, null, "org2"))));
+    }
+
+    @Test
+    void getPermissions_shouldNotApplyUninterpretedActorsToEveryone() throws IOException {
+        write("a.ndjson", encode(permission("identifier", new Reference().setIdentifier(
+                new org.hl7.fhir.r5.model.Identifier().setSystem("urn:example:user").setValue("alice")))) + "\n"
+                + encode(permission("display", new Reference().setDisplay("Alice"))) + "\n"
+                + encode(permission("everyone")) + "\n");
+
+        FilePermissionService service = new FilePermissionService(directory);
+
+        assertEquals(List.of("everyone"),
+                ids(service.getPermissions(new PermissionContext("alice", null, null, Set.of("nurse"), null))));
+        assertEquals(List.of("everyone"),
+                ids(service.getPermissions(new PermissionContext("someone", null, null, null, null))));
+    }
+
+    @Test
+    void reload_shouldKeepPreviousPermissionsOnInvalidFile() throws IOException {
+        write("a.json", encode(permission("first")));
+        write("b.json", encode(permission("second")));
+        FilePermissionService service = new FilePermissionService(directory);
+        PermissionContext context = new PermissionContext("user", null, null, null, null);
+        IBaseResource first = service.getPermissions(context).get(0);
+
+        write("b.json", "{\"resourceType\":\"Permission\",");
+        assertFalse(service.reload());
+        assertEquals(List.of("first", "second"), ids(service.getPermissions(context)));
+
+        write("b.json", encode(permission("third")));
+        assertTrue(service.reload());
+        assertEquals(List.of("first", "third"), ids(service.getPermissions(context)));
+        // Unchanged files are not parsed again
+        assertSame(first, service.getPermissions(context).get(0));
+    }
+
+    @Test
+    void constructor_shouldRejectInvalidFile() throws IOException {
+        write("a.ndjson", encode(permission("first")) + "\n{");
+
+        IllegalArgumentException error = assertThrows(IllegalArgumentException.class, () -> new FilePermissionService(directory));
+        assertTrue(error.getMessage().contains("a.ndjson:2"));
+    }
+
+    @Test
+    void startWatching_shouldReloadChangedFiles() throws Exception {
+        Path file = write("permissions.json", encode(permission("first")));
+        CountDownLatch reloaded = new CountDownLatch(1);
+        PermissionContext context = new PermissionContext("user", null, null, null, null);
+
+        try (FilePermissionService service = new FilePermissionService(file).startWatching()) {
+            service.addReloadListener(reloaded::countDown);
+            write("other.json", encode(permission("other")));
+            write("permissions.json", encode(permission("second")));
+
+            assertTrue(reloaded.await(30, TimeUnit.SECONDS));
+            assertEquals(List.of("second"), ids(service.getPermissions(context)));
+        }
+    }
+
+    @Test
+    void startWatching_shouldKeepReloadingWhenListenerFails() throws Exception {
+        Path file = write("permissions.json", encode(permission("first")));
+        CountDownLatch reloaded = new CountDownLatch(1);
+        PermissionContext context = new PermissionContext("user", null, null, null, null);
+
+        try (FilePermissionService service = new FilePermissionService(file).startWatching()) {
+            service.addReloadListener(() -> {
+                throw new IllegalStateException("listener failure");
+            });
+            service.addReloadListener(reloaded::countDown);
+            write("permissions.json", encode(permission("second")));
+            assertTrue(reloaded.await(30, TimeUnit.SECONDS));
+            write("permissions.json", encode(permission("third")));
+
+            // The watcher survived the failure: the next change is reloaded too
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (!ids(service.getPermissions(context)).equals(List.of("third")) && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(List.of("third"), ids(service.getPermissions(context)));
+        }
+    }
+
+    private static Permission permission(String id, Reference... actors) {
+        Permission permission = new Permission();
+        permission.setId(id);
+        permission.setStatus(Permission.PermissionStatus.ACTIVE);
+        Permission.RuleActivityComponent activity = permission.addRule().addActivity();
+        for (Reference actor : actors) {
+            activity.addActor(actor);
+        }
+        return permission;
+    }
+
+    private static String encode(Permission permission) {
+        return CONTEXT.newJsonParser().encodeResourceToString(permission);
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.writeString(directory.resolve(name), content);
+    }
+
+    private static List<String> ids(List<IBaseResource> permissions) {
+        return permissions.stream().map(p -> p.getIdElement().getIdPart()).toList();
+    }
+}
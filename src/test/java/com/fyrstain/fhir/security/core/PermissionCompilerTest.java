@@ -1,5 +1,6 @@
 package com.fyrstain.fhir.security.core;
 
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
 import com.fyrstain.fhir.security.core.model.FhirResponse;
 import com.fyrstain.fhir.security.core.model.PermissionOperation;
 import com.fyrstain.fhir.security.core.model.PermissionRule;
@@ -241,4 +242,98 @@ class PermissionCompilerTest {
         assertTrue(deny.getOperations().contains(PermissionOperation.READ));
         assertEquals(List.of("value"), deny.getBlacklistExpressions());
     }
+
+    @Test
+    void compileRules_shouldGroupRulesOfPermitOverridesPermissions() {
+        Permission permitOverrides = buildPermission(true);
+        permitOverrides.setId("Permission/permit");
+        permitOverrides.setCombining(Permission.PermissionRuleCombining.PERMITOVERRIDES);
+        Permission.RuleComponent deny = newRule(false);
+        deny.addActivity(activity("read", "search"));
+        deny.addData(dataForInstance("Patient", null, null));
+        Permission.RuleComponent allow = newRule(true);
+        allow.addActivity(activity("read"));
+        allow.addData(dataForInstance("Patient", null, null));
+        permitOverrides.addRule(deny).addRule(allow);
+
+        Permission denyOverrides = buildPermission(true);
+        denyOverrides.setId("Permission/deny");
+        denyOverrides.setCombining(Permission.PermissionRuleCombining.DENYOVERRIDES);
+        Permission.RuleComponent denyObservation = newRule(false);
+        denyObservation.addActivity(activity("read"));
+        denyObservation.addData(dataForInstance("Observation", null, null));
+        Permission.RuleComponent allowObservation = newRule(true);
+        allowObservation.addActivity(activity("read"));
+        allowObservation.addData(dataForInstance("Observation", null, null));
+        denyOverrides.addRule(denyObservation).addRule(allowObservation);
+
+        List<PermissionRule> rules = evaluator.compileRules(List.of(permitOverrides, denyOverrides));
+
+        assertEquals(4, rules.size());
+        assertEquals("Permission/permit", rules.get(0).getPermitOverridesGroup());
+        assertEquals("Permission/permit", rules.get(1).getPermitOverridesGroup());
+        assertNull(rules.get(2).getPermitOverridesGroup());
+        assertNull(rules.get(3).getPermitOverridesGroup());
+
+        CompiledPolicy policy = new CompiledPolicy(rules);
+        assertTrue(evaluator.canPerform("Patient", PermissionOperation.READ, rules));
+        assertTrue(evaluator.canPerform("Patient", PermissionOperation.READ, policy));
+        assertFalse(evaluator.canPerform("Patient", PermissionOperation.SEARCH, rules));
+        assertFalse(evaluator.canPerform("Patient", PermissionOperation.SEARCH, policy));
+        assertFalse(evaluator.canPerform("Observation", PermissionOperation.READ, rules));
+        assertFalse(evaluator.canPerform("Observation", PermissionOperation.READ, policy));
+    }
+
+    @Test
+    void compileRules_permitUnlessDenyShouldNotPermitWhatItDoesNotMention() {
+        Permission permission = buildPermission(true);
+        permission.setCombining(Permission.PermissionRuleCombining.PERMITUNLESSDENY);
+        Permission.RuleComponent deny = newRule(false);
+        deny.addActivity(activity("delete"));
+        deny.addData(dataForInstance("Patient", null, null));
+        permission.addRule(deny);
+
+        List<PermissionRule> rules = evaluator.compileRules(List.of(permission));
+        CompiledPolicy policy = new CompiledPolicy(rules);
+
+        assertNull(rules.get(0).getPermitOverridesGroup());
+        for (PermissionOperation op : List.of(PermissionOperation.DELETE, PermissionOperation.READ)) {
+            assertFalse(evaluator.canPerform("Patient", op, rules), op.name());
+            assertFalse(evaluator.canPerform("Patient", op, policy), op.name());
+            assertFalse(evaluator.canPerform("Observation", op, policy), op.name());
+        }
+    }
+
+    @Test
+    void compileRules_denyUnlessPermitShouldBehaveAsPermitOverrides() {
+        for (Permission.PermissionRuleCombining combining : List.of(
+                Permission.PermissionRuleCombining.DENYUNLESSPERMIT, Permission.PermissionRuleCombining.PERMITOVERRIDES)) {
+            Permission permission = buildPermission(true);
+            permission.setCombining(combining);
+            Permission.RuleComponent deny = newRule(false);
+            deny.addActivity(activity("read", "search"));
+            deny.addData(dataForInstance("Patient", null, null));
+            Permission.RuleComponent allow = newRule(true);
+            allow.addActivity(activity("read", "create"));
+            allow.addData(dataForInstance("Patient", null, null));
+            permission.addRule(deny).addRule(allow);
+
+            List<PermissionRule> rules = evaluator.compileRules(List.of(permission));
+            CompiledPolicy policy = new CompiledPolicy(rules);
+
+            for (List<Object> expected : List.<List<Object>>of(
+                    List.of("Patient", PermissionOperation.READ, true),
+                    List.of("Patient", PermissionOperation.CREATE, true),
+                    List.of("Patient", PermissionOperation.SEARCH, false),
+                    // Neither mentioned nor permitted: denied by default
+                    List.of("Patient", PermissionOperation.DELETE, false),
+                    List.of("Observation", PermissionOperation.READ, false))) {
+                String type = (String) expected.get(0);
+                PermissionOperation op = (PermissionOperation) expected.get(1);
+                String message = combining + " " + type + " " + op;
+                assertEquals(expected.get(2), evaluator.canPerform(type, op, rules), message);
+                assertEquals(expected.get(2), evaluator.canPerform(type, op, policy), message);
+            }
+        }
+    }
 }
@@ -0,0 +1,88 @@
+package com.fyrstain.fhir.security.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SharedWorkerContextTest {
+
+    private static final int THREADS = 8;
+
+    private final AtomicInteger builds = new AtomicInteger();
+
+    @Test
+    void get_shouldBuildOnceUnderContention() throws Exception {
+        SharedWorkerContext<Object> context = new SharedWorkerContext<>("test", () -> {
+            builds.incrementAndGet();
+            Thread.sleep(100);
+            return new Object();
+        });
+        assertFalse(context.isInitialized());
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Object>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                return context.get();
+            }));
+        }
+        start.countDown();
+        for (Future<Object> result : results) {
+            assertSame(context.get(), result.get(10, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+
+        assertEquals(1, builds.get());
+        assertTrue(context.isInitialized());
+    }
+
+    @Test
+    void warmUp_shouldBuildInBackground() throws Exception {
+        CountDownLatch building = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        SharedWorkerContext<String> context = new SharedWorkerContext<>("test", () -> {
+            builds.incrementAndGet();
+            assertTrue(Thread.currentThread().isDaemon());
+            building.countDown();
+            release.await();
+            return "context";
+        });
+
+        CompletableFuture<String> warmUp = context.warmUp();
+        assertTrue(building.await(10, TimeUnit.SECONDS));
+        assertFalse(warmUp.isDone());
+        release.countDown();
+
+        assertEquals("context", context.get());
+        assertEquals("context", warmUp.get(10, TimeUnit.SECONDS));
+        context.warmUp();
+        assertEquals(1, builds.get());
+    }
+
+    @Test
+    void get_shouldRethrowFailureWithoutRetrying() {
+        SharedWorkerContext<Object> context = new SharedWorkerContext<>("test", () -> {
+            builds.incrementAndGet();
+            throw new IOException("Missing definitions");
+        });
+
+        IllegalStateException error = assertThrows(IllegalStateException.class, context::get);
+        assertInstanceOf(IOException.class, error.getCause());
+        assertThrows(IllegalStateException.class, context::get);
+        assertEquals(1, builds.get());
+        assertFalse(context.isInitialized());
+    }
+}
@@ -0,0 +1,199 @@
+package com.fyrstain.fhir.security.core;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.FhirResponse;
+import com.fyrstain.fhir.security.core.model.PermissionOperation;
+import com.fyrstain.fhir.security.core.model.PermissionRule;
+import com.fyrstain.fhir.security.core.r4.FilterUtils;
+import com.fyrstain.fhir.security.core.r4.SimpleR4PermissionEvaluator;
+import org.hl7.fhir.r4.formats.JsonParser;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StreamingJsonRedactorTest {
+
+    private final StreamingJsonRedactor redactor = new StreamingJsonRedactor(FhirContext.forCached(FhirVersionEnum.R4));
+
+    @Test
+    void redact_shouldRemoveSimpleFieldLikeModel() throws IOException {
+        Patient patient = new Patient();
+        patient.getText().setStatus(Narrative.NarrativeStatus.GENERATED).setDivAsString("<div>John Doe</div>");
+        patient.addName().setFamily("Doe").addGiven("John");
+        patient.addTelecom().setValue("123456").setSystem(ContactPoint.ContactPointSystem.PHONE);
+        patient.setBirthDateElement(new DateType("1970-01-01"));
+        patient.getBirthDateElement().addExtension("http://example.org/precision", new StringType("day"));
+
+        assertRedactedLikeModel(patient, List.of("Patient.telecom", "Patient.birthDate"));
+        String redacted = redactor.redact(compose(patient), List.of("Patient.telecom", "Patient.birthDate"));
+        assertThat(redacted).doesNotContain("telecom", "birthDate", "precision", "div").contains("Doe");
+    }
+
+    @Test
+    void redact_shouldRemoveAllNamesOfChoiceElement() throws IOException {
+        Observation obs = new Observation();
+        obs.setStatus(Observation.ObservationStatus.FINAL);
+        obs.getCode().addCoding().setSystem("http://loinc.org").setCode("1234-5");
+        obs.setValue(new Quantity().setValue(12.3).setUnit("mg"));
+
+        assertRedactedLikeModel(obs, List.of("Observation.value"));
+        assertThat(redactor.redact(compose(obs), List.of("Observation.value"))).doesNotContain("valueQuantity");
+    }
+
+    @Test
+    void compile_shouldSharePlanOfEquivalentPolicies() {
+        PermissionRule telecom = new PermissionRule("Patient", EnumSet.noneOf(PermissionOperation.class), false,
+                List.of("Patient.telecom"), List.of());
+        PermissionRule read = new PermissionRule("Patient", EnumSet.of(PermissionOperation.READ), true, List.of(), List.of());
+
+        JsonRedactionPlan plan = redactor.compile(new CompiledPolicy(List.of(read, telecom)));
+
+        assertThat(plan).isNotNull();
+        assertThat(redactor.compile(new CompiledPolicy(List.of(telecom, read)))).isSameAs(plan);
+        assertThat(redactor.compile(new CompiledPolicy(List.of(telecom)))).isNotSameAs(plan);
+    }
+
+    @Test
+    void redact_shouldRemoveNestedElementAndDropEmptyParents() throws IOException {
+        Patient patient = new Patient();
+        patient.addName().setFamily("Doe");
+        patient.addContact().setName(new HumanName().setFamily("Smith")).addTelecom().setValue("123");
+        patient.addContact().addTelecom().setValue("456");
+
+        String redacted = redactor.redact(compose(patient), List.of("Patient.contact.telecom"));
+
+        Patient result = (Patient) new JsonParser().parse(redacted);
+        assertThat(result.getContact()).hasSize(1);
+        assertThat(result.getContactFirstRep().getName().getFamily()).isEqualTo("Smith");
+        assertThat(result.getContactFirstRep().hasTelecom()).isFalse();
+        assertThat(redacted).doesNotContain("123", "456", "{}");
+    }
+
+    @Test
+    void redact_shouldApplyToBundleEntriesByType() throws IOException {
+        Patient patient = new Patient();
+        patient.getText().setStatus(Narrative.NarrativeStatus.GENERATED).setDivAsString("<div>Doe</div>");
+        patient.addName().setFamily("Doe");
+        patient.addTelecom().setValue("11111");
+        Observation obs = new Observation();
+        obs.setStatus(Observation.ObservationStatus.FINAL);
+        obs.addNote().setText("secret note");
+        obs.setValue(new StringType("positive"));
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.setTotal(2);
+        bundle.addEntry().setFullUrl("Patient/1").setResource(patient);
+        bundle.addEntry().setFullUrl("Observation/2").setResource(obs);
+
+        assertRedactedLikeModel(bundle, List.of("Patient.telecom", "Observation.note"));
+        String redacted = redactor.redact(compose(bundle), List.of("Patient.telecom", "Observation.note"));
+        assertThat(redacted).doesNotContain("11111", "secret note").contains("positive", "Observation/2");
+    }
+
+    @Test
+    void redact_shouldLeaveContainedResourcesUnchanged() throws IOException {
+        Patient contained = new Patient();
+        contained.setId("p1");
+        contained.addTelecom().setValue("contained-phone");
+        Observation obs = new Observation();
+        obs.setStatus(Observation.ObservationStatus.FINAL);
+        obs.addContained(contained);
+        obs.setSubject(new Reference("#p1"));
+
+        assertRedactedLikeModel(obs, List.of("Patient.telecom"));
+        assertThat(redactor.redact(compose(obs), List.of("Patient.telecom"))).contains("contained-phone");
+    }
+
+    @Test
+    void redact_shouldKeepDecimalPrecision() {
+        String json = "{\"resourceType\":\"Observation\",\"status\":\"final\",\"note\":[{\"text\":\"x\"}],"
+                + "\"valueQuantity\":{\"value\":1.50,\"unit\":\"mg\"}}";
+
+        String redacted = redactor.redact(json, List.of("Observation.note"));
+
+        assertThat(redacted).isEqualTo("{\"resourceType\":\"Observation\",\"status\":\"final\","
+                + "\"valueQuantity\":{\"value\":1.50,\"unit\":\"mg\"}}");
+    }
+
+    @Test
+    void redact_shouldReturnInputWithoutExpressions() {
+        String json = "{\"resourceType\":\"Patient\",\"text\":{\"status\":\"generated\"}}";
+
+        assertThat(redactor.redact(json, List.of())).isSameAs(json);
+    }
+
+    @Test
+    void redact_shouldFallBackForUnsupportedExpressionsOrJson() {
+        String json = "{\"resourceType\":\"Patient\",\"telecom\":[{\"system\":\"email\",\"value\":\"a@b.c\"}]}";
+
+        assertThat(redactor.redact(json, List.of("Patient.telecom.where(system='email')"))).isNull();
+        assertThat(redactor.redact(json, List.of("Unknown.telecom"))).isNull();
+        assertThat(redactor.redact(json, List.of("Patient.unknown"))).isNull();
+        assertThat(redactor.redact(json, List.of("Observation.value.unit"))).isNull();
+        assertThat(redactor.redact("{\"id\":\"1\",\"resourceType\":\"Patient\"}", List.of("Patient.telecom"))).isNull();
+        assertThat(redactor.redact("{\"resourceType\":\"Patient\"", List.of("Patient.telecom"))).isNull();
+    }
+
+    @Test
+    void anyResourceType_shouldFindResourceTypesWithoutParsing() {
+        String bundle = "{\"resourceType\": \"Bundle\",\"entry\":[{\"resource\":{\"resourceType\" : \"Observation\","
+                + "\"note\":[{\"text\":\"see \\\"resourceType\\\":\\\"Patient\\\"\"}],\"code\":{\"text\":\"resourceType\"}}}]}";
+
+        assertThat(StreamingJsonRedactor.anyResourceType(bundle, "Observation"::equals)).isTrue();
+        assertThat(StreamingJsonRedactor.anyResourceType(bundle, "Patient"::equals)).isFalse();
+        assertThat(StreamingJsonRedactor.anyResourceType("{\"resourceType\":1}", "Patient"::equals)).isTrue();
+    }
+
+    @Test
+    void redactWithPolicy_shouldRouteExpressionsLikeModel() throws IOException {
+        CompiledPolicy policy = new CompiledPolicy(List.of(
+                new PermissionRule("Patient", EnumSet.of(PermissionOperation.SEARCH), false,
+                        List.of("Patient.telecom", "Observation.note"), List.of()),
+                new PermissionRule("Observation", EnumSet.of(PermissionOperation.SEARCH), false,
+                        List.of("Observation.value"), List.of())));
+        Patient patient = new Patient();
+        patient.getText().setStatus(Narrative.NarrativeStatus.GENERATED).setDivAsString("<div>Doe</div>");
+        patient.addTelecom().setValue("11111");
+        Practitioner practitioner = new Practitioner();
+        practitioner.getText().setStatus(Narrative.NarrativeStatus.GENERATED).setDivAsString("<div>Smith</div>");
+        practitioner.addTelecom().setValue("22222");
+        Observation obs = new Observation();
+        obs.setStatus(Observation.ObservationStatus.FINAL);
+        obs.addNote().setText("kept note");
+        obs.setValue(new StringType("positive"));
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.addEntry().setResource(patient);
+        bundle.addEntry().setResource(practitioner);
+        bundle.addEntry().setResource(obs);
+        String json = compose(bundle);
+
+        String redacted = redactor.redact(json, policy);
+        Resource model = new JsonParser().parse(json);
+        new SimpleR4PermissionEvaluator().filterResponse(new FhirResponse().setResource(model), policy);
+
+        assertThat(compose(new JsonParser().parse(redacted))).isEqualTo(compose(model));
+        assertThat(redacted).doesNotContain("11111", "positive", "Doe").contains("22222", "Smith", "kept note");
+    }
+
+    private void assertRedactedLikeModel(Resource resource, List<String> expressions) throws IOException {
+        String json = compose(resource);
+
+        Resource streamed = new JsonParser().parse(redactor.redact(json, expressions));
+        Resource model = new JsonParser().parse(json);
+        FilterUtils.removeFieldsByExpression(model, expressions);
+
+        assertThat(compose(streamed)).isEqualTo(compose(model));
+    }
+
+    private static String compose(Resource resource) throws IOException {
+        return new JsonParser().composeString(resource);
+    }
+}
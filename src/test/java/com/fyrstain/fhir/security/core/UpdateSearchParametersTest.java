@@ -1,5 +1,6 @@
 package com.fyrstain.fhir.security.core;
 
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
 import com.fyrstain.fhir.security.core.model.FhirResponse;
 import com.fyrstain.fhir.security.core.model.PermissionOperation;
 import com.fyrstain.fhir.security.core.model.PermissionRule;
@@ -110,4 +111,62 @@ public class UpdateSearchParametersTest {
         assertEquals(List.of("system|code"), updatedSearchParameters.get("identifier"));
         assertEquals(List.of("Toto", "Tata", "Tutu"), updatedSearchParameters.get("name"));
     }
+
+    @Test
+    void updateSearchParameters_policyMatchesRules() {
+        Map<String, List<String>> searchParameters = new HashMap<>();
+        searchParameters.put("name", List.of("Titi"));
+
+        List<PermissionRule> rules = List.of(
+                new PermissionRule("Patient", null, true,
+                        null, List.of("identifier=system|code&name=Toto,Tata")),
+                new PermissionRule("Patient", null, true,
+                        null, List.of("name=Tutu")),
+                new PermissionRule("Observation", null, true,
+                        null, List.of("status=final")),
+                new PermissionRule("Patient", null, false,
+                        null, List.of("active=false"))
+        );
+        CompiledPolicy policy = new CompiledPolicy(rules);
+
+        Map<String, List<String>> updatedSearchParameters = evaluator.updateSearchParameters("Patient", searchParameters, policy);
+
+        assertEquals(evaluator.updateSearchParameters("Patient", searchParameters, rules), updatedSearchParameters);
+        assertEquals(List.of("Titi", "Toto", "Tata", "Tutu"), updatedSearchParameters.get("name"));
+        assertEquals(List.of("system|code"), updatedSearchParameters.get("identifier"));
+        assertFalse(updatedSearchParameters.containsKey("active"));
+        assertEquals(List.of("Titi"), searchParameters.get("name"), "Original parameters must not be modified");
+    }
+
+    @Test
+    void updateSearchParameters_noFragmentReturnsSameParameters() {
+        Map<String, List<String>> searchParameters = Map.of("name", List.of("Toto"));
+
+        CompiledPolicy policy = new CompiledPolicy(List.of(
+                new PermissionRule("Observation", null, true,
+                        null, List.of("status=final"))
+        ));
+
+        assertSame(searchParameters, evaluator.updateSearchParameters("Patient", searchParameters, policy));
+        assertTrue(evaluator.updateSearchParameters("Patient", null, policy).isEmpty());
+    }
+
+    @Test
+    void updateSearchParameters_resultShouldBeMutable() {
+        List<PermissionRule> rules = List.of(new PermissionRule("Patient", null, true, null, List.of()));
+        CompiledPolicy policy = new CompiledPolicy(rules);
+
+        for (Map<String, List<String>> updated : List.of(
+                evaluator.updateSearchParameters("Patient", null, rules),
+                evaluator.updateSearchParameters("Patient", null, policy))) {
+            updated.put("_count", List.of("10"));
+            assertEquals(List.of("10"), updated.get("_count"));
+        }
+
+        // Without parameters to add, the request parameters are returned as they are
+        Map<String, List<String>> searchParameters = new HashMap<>();
+        Map<String, List<String>> updated = evaluator.updateSearchParameters("Patient", searchParameters, policy);
+        updated.put("_count", List.of("10"));
+        assertSame(searchParameters, updated);
+    }
 }
@@ -0,0 +1,191 @@
+package com.fyrstain.fhir.security.core.cache;
+
+import com.fyrstain.fhir.security.core.AsyncPermissionService;
+import com.fyrstain.fhir.security.core.model.PermissionContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r5.model.Permission;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingPermissionServiceTest {
+
+    private static final int THREADS = 16;
+
+    private final AtomicLong now = new AtomicLong();
+    private final List<CompletableFuture<List<IBaseResource>>> pendingLoads = new CopyOnWriteArrayList<>();
+
+    /**
+     * Backend whose loads only complete when the test says so.
+     */
+    private final AsyncPermissionService backend = context -> {
+        CompletableFuture<List<IBaseResource>> load = new CompletableFuture<>();
+        pendingLoads.add(load);
+        return load;
+    };
+
+    private final CachingPermissionService cache = new CachingPermissionService(
+            backend, Duration.ofSeconds(60), Duration.ofSeconds(45), 100, now::get);
+
+    private final PermissionContext context = new PermissionContext("user", null, "token", Set.of("nurse"), "org");
+
+    @Test
+    void getPermissions_shouldCallBackendOncePerKeyUnderContention() throws Exception {
+        Permission permission = new Permission();
+        ConcurrentHashMap<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+        CachingPermissionService blockingCache = new CachingPermissionService(AsyncPermissionService.of(ctx -> {
+            calls.computeIfAbsent(ctx.getUserId(), u -> new AtomicInteger()).incrementAndGet();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return List.of(permission);
+        }), Duration.ofMinutes(1), Duration.ofMinutes(1), 100);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<IBaseResource>>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            // Two keys, with tokens that do not take part in the key
+            PermissionContext ctx = new PermissionContext("user" + (i % 2), null, "token" + i, null, null);
+            results.add(executor.submit(() -> {
+                start.await();
+                return blockingCache.getPermissions(ctx);
+            }));
+        }
+        start.countDown();
+        for (Future<List<IBaseResource>> result : results) {
+            assertSame(permission, result.get(10, TimeUnit.SECONDS).get(0));
+        }
+        executor.shutdown();
+
+        assertEquals(1, calls.get("user0").get());
+        assertEquals(1, calls.get("user1").get());
+        assertEquals(2, blockingCache.size());
+    }
+
+    @Test
+    void getPermissionsAsync_shouldShareLoadInFlight() {
+        List<CompletableFuture<List<IBaseResource>>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(cache.getPermissionsAsync(context));
+        }
+        assertEquals(1, pendingLoads.size());
+        assertTrue(results.stream().noneMatch(CompletableFuture::isDone));
+
+        // A caller cancelling its future does not affect the others
+        results.get(0).cancel(true);
+        List<IBaseResource> permissions = List.of(new Permission());
+        pendingLoads.get(0).complete(permissions);
+
+        results.subList(1, THREADS).forEach(result -> assertSame(permissions, result.join()));
+        assertSame(permissions, cache.getPermissions(context));
+        assertEquals(1, pendingLoads.size());
+    }
+
+    @Test
+    void getPermissions_shouldServeStaleWhileRefreshingAhead() {
+        List<IBaseResource> first = List.of(new Permission());
+        List<IBaseResource> second = List.of(new Permission());
+        CompletableFuture<List<IBaseResource>> initial = cache.getPermissionsAsync(context);
+        pendingLoads.get(0).complete(first);
+        assertSame(first, initial.join());
+
+        // Past the refresh delay: the cached Permissions are served, and reloaded once in the background
+        now.addAndGet(Duration.ofSeconds(50).toNanos());
+        for (int i = 0; i < THREADS; i++) {
+            assertSame(first, cache.getPermissions(context));
+        }
+        assertEquals(2, pendingLoads.size());
+
+        pendingLoads.get(1).complete(second);
+        assertSame(second, cache.getPermissions(context));
+
+        // The refreshed entry starts a new life
+        now.addAndGet(Duration.ofSeconds(30).toNanos());
+        assertSame(second, cache.getPermissions(context));
+        assertEquals(2, pendingLoads.size());
+    }
+
+    @Test
+    void getPermissions_shouldWaitForReloadAfterTtl() {
+        cache.getPermissionsAsync(context);
+        pendingLoads.get(0).complete(List.of());
+
+        now.addAndGet(Duration.ofSeconds(61).toNanos());
+        CompletableFuture<List<IBaseResource>> expired = cache.getPermissionsAsync(context);
+        CompletableFuture<List<IBaseResource>> concurrent = cache.getPermissionsAsync(context);
+
+        assertFalse(expired.isDone());
+        assertEquals(2, pendingLoads.size());
+        List<IBaseResource> reloaded = List.of(new Permission());
+        pendingLoads.get(1).complete(reloaded);
+        assertSame(reloaded, expired.join());
+        assertSame(reloaded, concurrent.join());
+    }
+
+    @Test
+    void getPermissionsAsync_shouldEvictOldestLoadedEntriesButNotLoadsInFlight() {
+        CachingPermissionService small = new CachingPermissionService(
+                backend, Duration.ofSeconds(60), Duration.ofSeconds(45), 2, now::get);
+        PermissionContext newest = new PermissionContext("newest", null, null, null, null);
+        PermissionContext oldest = new PermissionContext("oldest", null, null, null, null);
+        PermissionContext inFlight = new PermissionContext("in-flight", null, null, null, null);
+        small.getPermissionsAsync(newest);
+        small.getPermissionsAsync(oldest);
+        pendingLoads.get(1).complete(List.of());
+        now.addAndGet(Duration.ofSeconds(1).toNanos());
+        pendingLoads.get(0).complete(List.of());
+
+        CompletableFuture<List<IBaseResource>> first = small.getPermissionsAsync(inFlight);
+        CompletableFuture<List<IBaseResource>> second = small.getPermissionsAsync(inFlight);
+
+        // The load in flight is shared, the entry loaded the longest ago was evicted for it
+        assertEquals(3, pendingLoads.size());
+        assertEquals(2, small.size());
+        pendingLoads.get(2).complete(List.of());
+        assertSame(first.join(), second.join());
+        small.getPermissionsAsync(newest);
+        assertEquals(3, pendingLoads.size());
+        small.getPermissionsAsync(oldest);
+        assertEquals(4, pendingLoads.size());
+    }
+
+    @Test
+    void getPermissions_shouldNotCacheFailures() {
+        CompletableFuture<List<IBaseResource>> failed = cache.getPermissionsAsync(context);
+        pendingLoads.get(0).completeExceptionally(new IllegalStateException("Permission store unavailable"));
+        assertTrue(failed.isCompletedExceptionally());
+
+        CompletableFuture<List<IBaseResource>> retried = cache.getPermissionsAsync(context);
+        assertEquals(2, pendingLoads.size());
+        pendingLoads.get(1).complete(List.of());
+        assertEquals(List.of(), retried.join());
+    }
+
+    @Test
+    void getPermissions_shouldRethrowBackendExceptions() {
+        CachingPermissionService failing = new CachingPermissionService(ctx -> {
+            throw new IllegalStateException("Permission store unavailable");
+        });
+
+        assertThrows(IllegalStateException.class, () -> failing.getPermissions(context));
+        assertEquals(0, failing.size());
+    }
+}
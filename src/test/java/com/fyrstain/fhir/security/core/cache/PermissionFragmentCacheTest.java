@@ -0,0 +1,114 @@
+package com.fyrstain.fhir.security.core.cache;
+
+import com.fyrstain.fhir.security.core.PermissionEvaluator;
+import com.fyrstain.fhir.security.core.model.PermissionRule;
+import com.fyrstain.fhir.security.core.r4.SimpleR4PermissionEvaluator;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r5.model.Permission;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.fyrstain.fhir.security.core.PermissionHelper.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PermissionFragmentCacheTest {
+
+    private final AtomicInteger compilations = new AtomicInteger();
+
+    private List<PermissionRule> compile(Permission permission) {
+        compilations.incrementAndGet();
+        return List.of(new PermissionRule("Patient", null, true, List.of(), List.of()));
+    }
+
+    private static Permission patientPermission(String search) {
+        Permission p = buildPermission(true);
+        Permission.RuleComponent rule = newRule(true);
+        rule.addActivity(activity("read"));
+        rule.addData(dataForInstance("Patient", null, search));
+        p.addRule(rule);
+        return p;
+    }
+
+    @Test
+    void get_shouldCompileVersionedPermissionOnce() {
+        PermissionFragmentCache cache = new PermissionFragmentCache();
+        Permission p = patientPermission("active=true");
+        p.getMeta().setVersionId("1");
+
+        List<PermissionRule> first = cache.get(p, this::compile);
+        List<PermissionRule> second = cache.get(p, this::compile);
+
+        assertEquals(1, compilations.get());
+        assertSame(first, second);
+
+        p.getMeta().setVersionId("2");
+        cache.get(p, this::compile);
+        assertEquals(2, compilations.get());
+    }
+
+    @Test
+    void get_shouldUseContentHashForUnversionedPermissions() {
+        PermissionFragmentCache cache = new PermissionFragmentCache();
+
+        cache.get(patientPermission("active=true"), this::compile);
+        cache.get(patientPermission("active=true"), this::compile);
+        assertEquals(1, compilations.get());
+
+        cache.get(patientPermission("active=false"), this::compile);
+        assertEquals(2, compilations.get());
+    }
+
+    @Test
+    void keyOf_shouldNotModifyThePermission() {
+        Permission p = patientPermission("active=true");
+        p.setId((String) null);
+
+        PermissionFragmentCache.keyOf(p);
+
+        assertFalse(p.hasMeta());
+        assertFalse(p.hasIdElement());
+    }
+
+    @Test
+    void keyOf_shouldHashModifiedPermissionsAgainUnlessRegisteredImmutable() {
+        Permission modified = patientPermission("active=true");
+        String key = PermissionFragmentCache.keyOf(modified);
+        modified.getRuleFirstRep().getDataFirstRep().getExpression().setExpression("active=false");
+        assertNotEquals(key, PermissionFragmentCache.keyOf(modified));
+
+        Permission registered = patientPermission("active=true");
+        PermissionFragmentCache.registerImmutable(registered);
+        String registeredKey = PermissionFragmentCache.keyOf(registered);
+        assertEquals(key, registeredKey);
+        assertSame(registeredKey, PermissionFragmentCache.keyOf(registered));
+    }
+
+    @Test
+    void get_shouldInternIdenticalRules() {
+        PermissionEvaluator evaluator = new SimpleR4PermissionEvaluator();
+
+        Permission p1 = patientPermission("active=true");
+        p1.setId("Permission/1");
+        Permission p2 = patientPermission("active=true");
+        p2.setId("Permission/2");
+
+        List<PermissionRule> rules = evaluator.compileRules(List.<IBaseResource>of(p1, p2));
+
+        assertEquals(2, rules.size());
+        assertSame(rules.get(0), rules.get(1));
+    }
+
+    @Test
+    void get_shouldNotCacheWhenDisabled() {
+        PermissionFragmentCache cache = new PermissionFragmentCache(0);
+        Permission p = patientPermission("active=true");
+
+        cache.get(p, this::compile);
+        cache.get(p, this::compile);
+
+        assertEquals(2, compilations.get());
+        assertEquals(0, cache.size());
+    }
+}
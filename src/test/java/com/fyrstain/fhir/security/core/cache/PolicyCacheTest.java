@@ -0,0 +1,170 @@
+package com.fyrstain.fhir.security.core.cache;
+
+import com.fyrstain.fhir.security.core.FhirAuthorizationEngine;
+import com.fyrstain.fhir.security.core.PermissionService;
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.FhirRequest;
+import com.fyrstain.fhir.security.core.model.FhirResponse;
+import com.fyrstain.fhir.security.core.model.PermissionContext;
+import com.fyrstain.fhir.security.core.model.PermissionRule;
+import com.fyrstain.fhir.security.core.r4.SimpleR4PermissionEvaluator;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PolicyCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private CompiledPolicy load(PermissionContext context, int size) {
+        loads.incrementAndGet();
+        return new CompiledPolicy(Collections.nCopies(size, new PermissionRule("Patient", null, true, List.of(), List.of())));
+    }
+
+    @Test
+    void get_shouldReuseEntryForSameUserRolesAndOrganization() {
+        PolicyCache cache = new PolicyCache(100, Duration.ofMinutes(1), now::get);
+
+        cache.get(new PermissionContext("user", null, "token1", Set.of("nurse"), "org"), c -> load(c, 1));
+        cache.get(new PermissionContext("user", "User", "token2", Set.of("nurse"), "org"), c -> load(c, 1));
+        cache.get(new PermissionContext("user", null, "token1", Set.of("doctor"), "org"), c -> load(c, 1));
+
+        assertEquals(2, loads.get());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void get_shouldReloadAfterTtl() {
+        PolicyCache cache = new PolicyCache(100, Duration.ofSeconds(10), now::get);
+        PermissionContext context = new PermissionContext("user", null, null, null, null);
+
+        cache.get(context, c -> load(c, 1));
+        now.addAndGet(Duration.ofSeconds(9).toNanos());
+        cache.get(context, c -> load(c, 1));
+        assertEquals(1, loads.get());
+
+        now.addAndGet(Duration.ofSeconds(2).toNanos());
+        cache.get(context, c -> load(c, 1));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void get_shouldEvictLeastRecentlyUsedWhenOverWeight() {
+        PolicyCache cache = new PolicyCache(10, Duration.ofMinutes(1), now::get);
+        PermissionContext a = new PermissionContext("a", null, null, null, null);
+        PermissionContext b = new PermissionContext("b", null, null, null, null);
+        PermissionContext c = new PermissionContext("c", null, null, null, null);
+
+        cache.get(a, ctx -> load(ctx, 4));
+        cache.get(b, ctx -> load(ctx, 4));
+        cache.get(a, ctx -> load(ctx, 4));
+        cache.get(c, ctx -> load(ctx, 4));
+
+        assertEquals(8, cache.weight());
+        assertEquals(3, loads.get());
+
+        // b was the least recently used one
+        cache.get(b, ctx -> load(ctx, 4));
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    void get_shouldNotStoreEntriesHeavierThanMaximum() {
+        PolicyCache cache = new PolicyCache(3, Duration.ofMinutes(1), now::get);
+        PermissionContext context = new PermissionContext("user", null, null, null, null);
+
+        cache.get(context, c -> load(c, 4));
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void invalidate_shouldRemoveEntries() {
+        PolicyCache cache = new PolicyCache(100, Duration.ofMinutes(1), now::get);
+        PermissionContext nurse = new PermissionContext("user", null, null, Set.of("nurse"), null);
+        PermissionContext doctor = new PermissionContext("user", null, null, Set.of("doctor"), null);
+        PermissionContext other = new PermissionContext("other", null, null, null, null);
+
+        cache.get(nurse, c -> load(c, 1));
+        cache.get(doctor, c -> load(c, 1));
+        cache.get(other, c -> load(c, 1));
+
+        cache.invalidate(nurse);
+        assertEquals(2, cache.size());
+
+        cache.invalidateUser("user");
+        assertEquals(1, cache.size());
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    void get_shouldNotStorePolicyLoadedBeforeInvalidation() throws Exception {
+        PolicyCache cache = new PolicyCache(100, Duration.ofMinutes(1), now::get);
+        PermissionContext context = new PermissionContext("user", null, null, Set.of("nurse"), null);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch invalidated = new CountDownLatch(1);
+
+        Thread loader = new Thread(() -> cache.get(context, c -> {
+            loading.countDown();
+            try {
+                invalidated.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return load(c, 1);
+        }));
+        loader.start();
+        assertTrue(loading.await(10, TimeUnit.SECONDS));
+        cache.invalidateAll();
+        invalidated.countDown();
+        loader.join(10_000);
+
+        assertEquals(0, cache.size());
+        cache.get(context, c -> load(c, 1));
+        assertEquals(2, loads.get());
+        assertEquals(1, cache.size());
+
+        CompletableFuture<CompiledPolicy> pending = new CompletableFuture<>();
+        CompletableFuture<CompiledPolicy> result = cache.getAsync(
+                new PermissionContext("other", null, null, null, null), c -> pending);
+        cache.invalidateUser("other");
+        pending.complete(load(context, 1));
+
+        assertNotNull(result.join());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void engine_shouldFetchOncePerCallWithCache() {
+        AtomicInteger fetches = new AtomicInteger();
+        PermissionService service = context -> {
+            fetches.incrementAndGet();
+            return List.<IBaseResource>of();
+        };
+        FhirAuthorizationEngine engine = new FhirAuthorizationEngine(service, new SimpleR4PermissionEvaluator(), new PolicyCache());
+        PermissionContext context = new PermissionContext("user", null, "token", null, null);
+
+        engine.evaluateRequest(context, new FhirRequest().setMethod(FhirRequest.HTTPVerb.GET).setResourceType("Patient"));
+        engine.filterResponse(context, new FhirResponse());
+        assertEquals(1, fetches.get());
+
+        engine.invalidate(context);
+        engine.filterResponse(context, new FhirResponse());
+        assertEquals(2, fetches.get());
+    }
+}
@@ -0,0 +1,69 @@
+package com.fyrstain.fhir.security.core.cache;
+
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.PermissionContext;
+import com.fyrstain.fhir.security.core.model.PermissionOperation;
+import com.fyrstain.fhir.security.core.model.PermissionRule;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PolicyInternerTest {
+
+    private static final PermissionRule READ_PATIENTS = new PermissionRule("Patient",
+            EnumSet.of(PermissionOperation.READ), true, List.of(), List.of("_tag=vip"));
+    private static final PermissionRule DENY_DELETE = new PermissionRule("*",
+            EnumSet.of(PermissionOperation.DELETE), false, List.of(), List.of());
+    private static final PermissionRule REDACT_TELECOM = new PermissionRule("Patient",
+            EnumSet.noneOf(PermissionOperation.class), false, List.of("Patient.telecom"), List.of());
+
+    @Test
+    void fingerprint_shouldIgnoreRuleOrderAndRepetitions() {
+        CompiledPolicy policy = new CompiledPolicy(List.of(READ_PATIENTS, DENY_DELETE, REDACT_TELECOM));
+        CompiledPolicy reordered = new CompiledPolicy(List.of(REDACT_TELECOM, READ_PATIENTS, DENY_DELETE, READ_PATIENTS));
+        CompiledPolicy copied = new CompiledPolicy(List.of(
+                new PermissionRule("Patient", EnumSet.of(PermissionOperation.READ), true, List.of(), List.of("_tag=vip")),
+                DENY_DELETE, REDACT_TELECOM));
+
+        assertEquals(policy.getFingerprint(), reordered.getFingerprint());
+        assertEquals(policy.getFingerprint(), copied.getFingerprint());
+        assertEquals(32, policy.getFingerprint().toString().length());
+
+        assertNotEquals(policy.getFingerprint(), new CompiledPolicy(List.of(READ_PATIENTS, DENY_DELETE)).getFingerprint());
+        assertNotEquals(policy.getFingerprint(), new CompiledPolicy(List.of(READ_PATIENTS, DENY_DELETE,
+                new PermissionRule("Patient", EnumSet.noneOf(PermissionOperation.class), false,
+                        List.of("Patient.address"), List.of()))).getFingerprint());
+    }
+
+    @Test
+    void intern_shouldReturnCanonicalEquivalentPolicy() {
+        PolicyInterner interner = new PolicyInterner();
+        CompiledPolicy first = new CompiledPolicy(List.of(READ_PATIENTS, DENY_DELETE));
+        CompiledPolicy equivalent = new CompiledPolicy(List.of(DENY_DELETE, READ_PATIENTS));
+        CompiledPolicy other = new CompiledPolicy(List.of(READ_PATIENTS));
+
+        assertSame(first, interner.intern(first));
+        assertSame(first, interner.intern(equivalent));
+        assertSame(other, interner.intern(other));
+        assertEquals(2, interner.size());
+    }
+
+    @Test
+    void policyCache_shouldShareEquivalentPoliciesAcrossUsers() {
+        PolicyCache cache = new PolicyCache(100, Duration.ofMinutes(1));
+
+        CompiledPolicy alice = cache.get(new PermissionContext("alice", null, null, Set.of("nurse"), null),
+                c -> new CompiledPolicy(List.of(READ_PATIENTS, REDACT_TELECOM)));
+        CompiledPolicy bob = cache.get(new PermissionContext("bob", null, null, Set.of("nurse"), null),
+                c -> new CompiledPolicy(List.of(READ_PATIENTS, REDACT_TELECOM)));
+
+        assertSame(alice, bob);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getInterner().size());
+    }
+}
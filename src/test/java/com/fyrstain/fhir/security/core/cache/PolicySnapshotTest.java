@@ -0,0 +1,103 @@
+package com.fyrstain.fhir.security.core.cache;
+
+import com.fyrstain.fhir.security.core.model.CompiledPolicy;
+import com.fyrstain.fhir.security.core.model.PermissionContext;
+import com.fyrstain.fhir.security.core.model.PermissionOperation;
+import com.fyrstain.fhir.security.core.model.PermissionRule;
+import com.fyrstain.fhir.security.core.model.ResourceTypes;
+import com.fyrstain.fhir.security.core.r4.SimpleR4PermissionEvaluator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PolicySnapshotTest {
+
+    private static final PermissionRule READ_PATIENTS = new PermissionRule("Patient",
+            EnumSet.of(PermissionOperation.READ, PermissionOperation.SEARCH), true,
+            List.of(), List.of("organization=Organization/org1", "_tag=vip"));
+    private static final PermissionRule REDACT_PATIENTS = new PermissionRule("Patient",
+            EnumSet.noneOf(PermissionOperation.class), false, List.of("Patient.telecom", "Patient.address"), List.of());
+    private static final PermissionRule DENY_ALL_WRITES = new PermissionRule("*",
+            EnumSet.of(PermissionOperation.CREATE, PermissionOperation.UPDATE, PermissionOperation.DELETE), false,
+            List.of(), List.of(), "Permission/writes");
+
+    @TempDir
+    Path directory;
+
+    private final SimpleR4PermissionEvaluator evaluator = new SimpleR4PermissionEvaluator();
+
+    @Test
+    void read_shouldRestoreWrittenPolicies() throws IOException {
+        CompiledPolicy nurses = new CompiledPolicy(List.of(READ_PATIENTS, REDACT_PATIENTS, DENY_ALL_WRITES));
+        CompiledPolicy admins = new CompiledPolicy(List.of(DENY_ALL_WRITES));
+        Map<PermissionContextKey, CompiledPolicy> policies = new LinkedHashMap<>();
+        policies.put(new PermissionContextKey("alice", Set.of("nurse"), "org1"), nurses);
+        policies.put(new PermissionContextKey("bob", Set.of("nurse", "night"), "org1"), nurses);
+        policies.put(new PermissionContextKey("carol", Set.of(), null), admins);
+        policies.put(new PermissionContextKey(null, Set.of("admin"), null), new CompiledPolicy(List.of(DENY_ALL_WRITES)));
+
+        Path file = directory.resolve("policies.bin");
+        PolicySnapshot.write(file, "v1", policies);
+        Map<PermissionContextKey, CompiledPolicy> read = PolicySnapshot.read(file, "v1", evaluator::parseExpressions);
+
+        assertNotNull(read);
+        assertEquals(policies.keySet(), read.keySet());
+        for (PermissionContextKey key : policies.keySet()) {
+            assertEquals(policies.get(key).getRules(), read.get(key).getRules());
+        }
+        CompiledPolicy alice = read.get(new PermissionContextKey("alice", Set.of("nurse"), "org1"));
+        assertTrue(alice.canPerform("Patient", PermissionOperation.SEARCH));
+        assertFalse(alice.canPerform("Patient", PermissionOperation.UPDATE));
+        assertEquals(READ_PATIENTS.getSearchFragment(), alice.getSearchFragment(ResourceTypes.idOf("Patient")));
+        assertEquals(2, alice.getParsedBlacklistExpressions("Patient").size());
+
+        // Users sharing a policy, and policies sharing rules, share them once read
+        assertSame(alice, read.get(new PermissionContextKey("bob", Set.of("night", "nurse"), "org1")));
+        assertSame(alice.getRules().get(2), read.get(new PermissionContextKey(null, Set.of("admin"), null)).getRules().get(0));
+    }
+
+    @Test
+    void read_shouldDiscardStaleOrInvalidSnapshots() throws IOException {
+        Path file = directory.resolve("policies.bin");
+        assertNull(PolicySnapshot.read(file, "v1", evaluator::parseExpressions));
+
+        PolicySnapshot.write(file, "v1", Map.of(new PermissionContextKey("alice", Set.of(), null),
+                new CompiledPolicy(List.of(READ_PATIENTS))));
+        assertNull(PolicySnapshot.read(file, "v2", evaluator::parseExpressions));
+
+        byte[] content = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(content, content.length - 6));
+        assertNull(PolicySnapshot.read(file, "v1", evaluator::parseExpressions));
+
+        Files.writeString(file, "not a snapshot");
+        assertNull(PolicySnapshot.read(file, "v1", evaluator::parseExpressions));
+    }
+
+    @Test
+    void preload_shouldFillCacheFromEntries() throws IOException {
+        PolicyCache cache = new PolicyCache();
+        cache.get(new PermissionContext("alice", null, "token", Set.of("nurse"), null),
+                context -> new CompiledPolicy(List.of(READ_PATIENTS)));
+        Path file = directory.resolve("policies.bin");
+        PolicySnapshot.write(file, "v1", cache.entries());
+
+        PolicyCache restarted = new PolicyCache();
+        restarted.preload(PolicySnapshot.read(file, "v1", evaluator::parseExpressions));
+
+        assertEquals(1, restarted.size());
+        CompiledPolicy policy = restarted.get(new PermissionContext("alice", null, "other", Set.of("nurse"), null),
+                context -> fail("Policy should have been preloaded"));
+        assertEquals(List.of(READ_PATIENTS), policy.getRules());
+    }
+}
@@ -0,0 +1,65 @@
+package com.fyrstain.fhir.security.core.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class HistogramTest {
+
+    @Test
+    void buckets_shouldBeContiguousWithBoundedRelativeError() {
+        long previousHighest = -1;
+        for (int index = 0; index <= Histogram.indexOf(Long.MAX_VALUE); index++) {
+            long lowest = previousHighest + 1;
+            long highest = Histogram.highestValueOf(index);
+            assertThat(Histogram.indexOf(lowest)).isEqualTo(index);
+            assertThat(Histogram.indexOf(highest)).isEqualTo(index);
+            assertThat((double) (highest - lowest)).isLessThanOrEqualTo(lowest / 64.0);
+            previousHighest = highest;
+        }
+        assertThat(previousHighest).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    void percentiles_shouldMatchRecordedValues() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 10_000; value++) {
+            histogram.record(value * 1_000);
+        }
+
+        assertThat(histogram.getCount()).isEqualTo(10_000);
+        assertThat(histogram.getMean()).isCloseTo(5_000_500.0, within(0.1));
+        assertThat(histogram.getMax()).isEqualTo(10_000_000);
+        assertThat(histogram.getValueAtPercentile(50)).isCloseTo(5_000_000L, within(80_000L));
+        assertThat(histogram.getValueAtPercentile(99)).isCloseTo(9_900_000L, within(160_000L));
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(10_000_000);
+
+        histogram.reset();
+        assertThat(histogram.getCount()).isZero();
+        assertThat(histogram.getValueAtPercentile(50)).isZero();
+    }
+
+    @Test
+    void record_shouldNotLoseConcurrentValues() throws InterruptedException {
+        Histogram histogram = new Histogram();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            long offset = t;
+            executor.execute(() -> {
+                for (int i = 0; i < 25_000; i++) {
+                    histogram.record(i % 1_000 + offset);
+                }
+            });
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(30, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(histogram.getCount()).isEqualTo(100_000);
+        assertThat(histogram.getMax()).isEqualTo(1_002);
+    }
+}
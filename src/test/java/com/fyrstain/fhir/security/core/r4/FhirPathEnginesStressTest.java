@@ -0,0 +1,150 @@
+package com.fyrstain.fhir.security.core.r4;
+
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.fyrstain.fhir.security.core.model.PermissionRule;
+import org.hl7.fhir.r4.fhirpath.ExpressionNode;
+import org.hl7.fhir.r4.fhirpath.FHIRPathEngine;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static com.fyrstain.fhir.security.core.model.PermissionOperation.READ;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs redaction and matching from many threads at once, without external synchronization, and checks every result.
+ * Also checks that the engine pool lends every thread its own engine, and lends engines to threads concurrently rather
+ * than one at a time.
+ */
+class FhirPathEnginesStressTest {
+
+    private static final int OPERATIONS_PER_THREAD = 300;
+
+    private final List<ExpressionNode> expressions = List.of(
+            FilterUtils.parse("Patient.telecom.where(system='email')"),
+            FilterUtils.parse("Patient.name.given"));
+
+    private final List<PermissionRule> rules = List.of(
+            new PermissionRule("Patient", EnumSet.of(READ), true, List.of(), List.of("identifier=system|")));
+
+    @Test
+    void concurrentRedactionAndMatching_shouldGiveCorrectResults() throws Exception {
+        List<Integer> threadCounts = new ArrayList<>(List.of(1, 2, 4));
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (cores > 4) threadCounts.add(cores);
+
+        for (int threads : threadCounts) {
+            run(threads, this::check);
+        }
+    }
+
+    @Test
+    void withEngine_shouldNeverLendAnEngineToTwoThreadsAtOnce() throws Exception {
+        Set<FHIRPathEngine> inUse = ConcurrentHashMap.newKeySet();
+        AtomicInteger shared = new AtomicInteger();
+        ExpressionNode given = FilterUtils.parse("Patient.name.given");
+
+        run(Math.max(4, Runtime.getRuntime().availableProcessors()), suffix -> FhirPathEngines.withEngine(engine -> {
+            if (!inUse.add(engine)) shared.incrementAndGet();
+            try {
+                Patient patient = new Patient();
+                patient.addName().addGiven("John" + suffix);
+                List<Base> result = engine.evaluate(patient, given);
+                assertThat(result).hasSize(1);
+                assertThat(result.get(0).primitiveValue()).isEqualTo("John" + suffix);
+            } finally {
+                inUse.remove(engine);
+            }
+            return null;
+        }));
+
+        assertThat(shared.get()).as("engines lent to two threads at once").isZero();
+    }
+
+    @Test
+    void withEngine_shouldLendEnginesConcurrently() throws Exception {
+        int threads = 4;
+        // Each thread keeps its engine until all threads hold one: a pool serializing its callers would time out
+        CyclicBarrier allHoldingAnEngine = new CyclicBarrier(threads);
+        Set<FHIRPathEngine> engines = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> FhirPathEngines.withEngine(engine -> {
+                    engines.add(engine);
+                    try {
+                        return allHoldingAnEngine.await(30, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Engines were not lent concurrently", e);
+                    }
+                })));
+            }
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(engines).hasSize(threads);
+    }
+
+    private void run(int threads, Consumer<String> operation) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                        operation.accept(thread + "-" + i);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(2, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void check(String suffix) {
+        Patient patient = new Patient();
+        patient.addName().setFamily("Doe" + suffix).addGiven("John" + suffix);
+        patient.addTelecom().setSystem(ContactPoint.ContactPointSystem.EMAIL).setValue("mail" + suffix);
+        patient.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setValue("phone" + suffix);
+        patient.addIdentifier().setSystem(suffix.hashCode() % 2 == 0 ? "system" : "other").setValue(suffix);
+
+        FilterUtils.removeFieldsByParsedExpression(patient, expressions);
+
+        assertThat(patient.getTelecom()).hasSize(1);
+        assertThat(patient.getTelecomFirstRep().getValue()).isEqualTo("phone" + suffix);
+        assertThat(patient.getNameFirstRep().hasGiven()).isFalse();
+        assertThat(patient.getNameFirstRep().getFamily()).isEqualTo("Doe" + suffix);
+
+        boolean matched;
+        try {
+            MatcherUtils.matchOrThrow(patient, rules);
+            matched = true;
+        } catch (ResourceNotFoundException e) {
+            matched = false;
+        }
+        assertThat(matched).isEqualTo("system".equals(patient.getIdentifierFirstRep().getSystem()));
+    }
+}
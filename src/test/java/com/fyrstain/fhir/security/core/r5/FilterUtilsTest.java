@@ -1,10 +1,18 @@
 package com.fyrstain.fhir.security.core.r5;
 
 import com.fyrstain.fhir.security.core.r5.FilterUtils;
+import com.fyrstain.fhir.security.core.BundleParallelism;
+import com.fyrstain.fhir.security.core.PermissionHelper;
+import com.fyrstain.fhir.security.core.model.FhirResponse;
+import com.fyrstain.fhir.security.core.model.PermissionOperation;
+import com.fyrstain.fhir.security.core.model.PermissionRule;
+import org.hl7.fhir.r5.fhirpath.ExpressionNode;
 import org.hl7.fhir.r5.model.*;
 import org.junit.jupiter.api.Test;
 
+import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -103,4 +111,175 @@ class FilterUtilsTest {
 
         assertThat(patient.hasName()).isTrue();
     }
+
+    @Test
+    void parse_shouldReuseParsedExpressions() {
+        ExpressionNode first = FilterUtils.parse("Patient.telecom.where(system='email')");
+
+        assertThat(first).isNotNull();
+        assertThat(FilterUtils.parse("Patient.telecom.where(system='email')")).isSameAs(first);
+        assertThat(FilterUtils.parse("Patient.telecom.where(")).isNull();
+    }
+
+    @Test
+    void compileRules_shouldPreParseBlacklistExpressions() {
+        org.hl7.fhir.r5.model.Permission permission = PermissionHelper.buildPermission(true);
+        org.hl7.fhir.r5.model.Permission.RuleComponent rule = PermissionHelper.newRule(false);
+        rule.addActivity(PermissionHelper.activity("read"));
+        rule.addData(PermissionHelper.dataForInstance("Patient", "Patient.telecom", null));
+        permission.addRule(rule);
+
+        List<PermissionRule> rules = new SimpleR5PermissionEvaluator().compileRules(List.of(permission));
+
+        assertThat(rules).hasSize(1);
+        assertThat(rules.get(0).getParsedBlacklistExpressions()).isEqualTo(List.of(FilterUtils.parse("Patient.telecom")));
+
+        Patient patient = new Patient();
+        patient.addTelecom().setValue("123456");
+        new SimpleR5PermissionEvaluator().filterResponse(new FhirResponse().setResource(patient), rules);
+        assertThat(patient.hasTelecom()).isFalse();
+    }
+
+    @Test
+    void removeFieldsByExpression_shouldNotRemoveEqualElementElsewhere() {
+        // Arrange
+        Patient patient = new Patient();
+        patient.addTelecom().setValue("123456");
+        patient.addContact().addTelecom().setValue("123456");
+
+        // Act
+        FilterUtils.removeFieldsByExpression(patient, List.of("Patient.contact.telecom"));
+
+        // Assert
+        assertThat(patient.getTelecom()).hasSize(1);
+        assertThat(patient.getContactFirstRep().hasTelecom()).isFalse();
+    }
+
+    @Test
+    void removeFieldsByExpression_shouldRemoveMatchesOfSeveralExpressions() {
+        // Arrange
+        Patient patient = new Patient();
+        patient.addName().setFamily("Doe").addGiven("John").addGiven("Jack");
+        patient.addName().setFamily("Doe").addGiven("John");
+        patient.addTelecom().setValue("123456");
+        patient.addAddress().addLine("1 main street").setCity("Paris");
+
+        // Act
+        FilterUtils.removeFieldsByExpression(patient, List.of("Patient.name.given", "Patient.telecom", "Patient.address.line"));
+
+        // Assert
+        assertThat(patient.getName()).hasSize(2);
+        assertThat(patient.getName()).allMatch(n -> !n.hasGiven() && "Doe".equals(n.getFamily()));
+        assertThat(patient.hasTelecom()).isFalse();
+        assertThat(patient.getAddressFirstRep().hasLine()).isFalse();
+        assertThat(patient.getAddressFirstRep().getCity()).isEqualTo("Paris");
+    }
+
+    @Test
+    void removeFieldsByExpression_shouldRemoveInContainedResource() {
+        // Arrange
+        Organization org = new Organization();
+        org.setId("org");
+        org.setName("Acme");
+        org.addContact().addTelecom().setValue("0102030405");
+        Patient patient = new Patient();
+        patient.addContained(org);
+        patient.addTelecom().setValue("0102030405");
+
+        // Act
+        FilterUtils.removeFieldsByExpression(patient, List.of("Patient.contained.contact.telecom"));
+
+        // Assert
+        assertThat(org.getContactFirstRep().hasTelecom()).isFalse();
+        assertThat(org.getName()).isEqualTo("Acme");
+        assertThat(patient.hasTelecom()).isTrue();
+    }
+
+    @Test
+    void removeFieldsByParsedExpression_parallelShouldMatchSequential() {
+        // Arrange
+        Bundle sequential = new Bundle();
+        for (int i = 0; i < 300; i++) {
+            Patient patient = new Patient();
+            patient.addName().setFamily("Doe" + i).addGiven("John");
+            patient.addTelecom().setValue("mail" + i).setSystem(ContactPoint.ContactPointSystem.EMAIL);
+            patient.addTelecom().setValue("phone" + i).setSystem(ContactPoint.ContactPointSystem.PHONE);
+            sequential.addEntry().setResource(patient);
+            Observation obs = new Observation();
+            obs.addNote().setText("note" + i);
+            sequential.addEntry().setResource(obs);
+        }
+        Bundle parallel = sequential.copy();
+        List<ExpressionNode> expressions = List.of(
+                FilterUtils.parse("Patient.telecom.where(system='email')"),
+                FilterUtils.parse("Observation.note"));
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        // Act
+        try {
+            FilterUtils.removeFieldsByParsedExpression(sequential, expressions, BundleParallelism.SEQUENTIAL);
+            FilterUtils.removeFieldsByParsedExpression(parallel, expressions, new BundleParallelism(pool, 16));
+        } finally {
+            pool.shutdown();
+        }
+
+        // Assert
+        assertThat(((Patient) parallel.getEntryFirstRep().getResource()).getTelecom()).hasSize(1);
+        assertThat(parallel.equalsDeep(sequential)).isTrue();
+    }
+
+    @Test
+    void filterResponse_shouldRouteExpressionsByResourceType() {
+        List<PermissionRule> rules = List.of(
+                new PermissionRule("Patient", EnumSet.of(PermissionOperation.SEARCH), false, List.of("name", "Patient.telecom"), List.of()),
+                new PermissionRule("*", EnumSet.of(PermissionOperation.SEARCH), false, List.of("Observation.note"), List.of()));
+
+        Patient patient = new Patient();
+        patient.getText().setDivAsString("<div>Doe</div>");
+        patient.addName().setFamily("Doe");
+        patient.addTelecom().setValue("123456");
+        Practitioner practitioner = new Practitioner();
+        practitioner.getText().setDivAsString("<div>Smith</div>");
+        practitioner.addName().setFamily("Smith");
+        practitioner.addTelecom().setValue("654321");
+        Observation observation = new Observation();
+        observation.addNote().setText("note");
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(patient);
+        bundle.addEntry().setResource(practitioner);
+        bundle.addEntry().setResource(observation);
+
+        new SimpleR5PermissionEvaluator().filterResponse(new FhirResponse().setResource(bundle), rules);
+
+        assertThat(patient.hasName()).isFalse();
+        assertThat(patient.hasTelecom()).isFalse();
+        assertThat(patient.hasText()).isFalse();
+        // Only wildcard rules apply to practitioners: "name" of the Patient rule does not
+        assertThat(practitioner.hasName()).isTrue();
+        assertThat(practitioner.hasTelecom()).isTrue();
+        assertThat(practitioner.hasText()).isFalse();
+        assertThat(observation.hasNote()).isFalse();
+    }
+
+    @Test
+    void filterResponse_shouldRemoveNarrativeWhenNoExpressionParses() {
+        SimpleR5PermissionEvaluator evaluator = new SimpleR5PermissionEvaluator();
+        List<PermissionRule> rules = List.of(evaluator.parseExpressions(new PermissionRule("Patient",
+                EnumSet.of(PermissionOperation.READ), false, List.of("Patient.telecom.where("), List.of())));
+
+        Patient patient = new Patient();
+        patient.getText().setDivAsString("<div>Doe, 123456</div>");
+        patient.addTelecom().setValue("123456");
+        Practitioner practitioner = new Practitioner();
+        practitioner.getText().setDivAsString("<div>Smith</div>");
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(patient);
+        bundle.addEntry().setResource(practitioner);
+
+        evaluator.filterResponse(new FhirResponse().setResource(bundle), rules);
+
+        assertThat(patient.hasText()).isFalse();
+        assertThat(patient.hasTelecom()).isTrue();
+        assertThat(practitioner.hasText()).isTrue();
+    }
 }